@@ -0,0 +1,348 @@
+package bearmaps.jmh;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Inputs shared by the benchmarks: the map, the queries recorded in test_data and synthetic
+ * maps and queries for scaling. JMH forks a JVM for each benchmark and parameter set, and
+ * MapServer reads its properties when it loads, so each fork sets them and starts the server
+ * once in its setup.
+ * <p>
+ *     JMH will not generate benchmarks in the default package, where the server is, and Java
+ *     cannot import from it, so the benchmarks call the server through the method handles here.
+ *     They are constants, which the JIT inlines like direct calls.
+ * </p>
+ */
+final class BenchmarkInputs {
+    /** How many synthetic places to scatter over the map for the search benchmarks. */
+    private static final int PLACES = 2000;
+    private static final String[] FIRST = {"Top", "Golden", "Blue", "Cheese", "North", "Old",
+        "Sunny", "Little", "Grand", "Moe's", "Berkeley", "Green", "Bear", "Telegraph", "Shattuck"};
+    private static final String[] SECOND = {"Dog", "Board", "Bottle", "Gate", "Oak", "Bridge",
+        "Garden", "Hill", "Market", "Plaza", "Corner", "House"};
+    private static final String[] KIND = {"Cafe", "Books", "Pizza", "Bakery", "Library",
+        "Cinema", "Park", "Grocery", "Pharmacy", "Bar", "Noodles", "Tacos"};
+
+    private static final MethodHandle INITIALIZE, RASTER_TILES, MAP_RASTER, ROUTE,
+            PREFIX_SEARCH, SEARCH, GRAPH_DB, CURVY_GRID, PBF_FROM_XML, SELECT, SELECTED_NAMES,
+            SELECTED_COLUMNS, COMPOSITE, HISTOGRAM, RECORD;
+
+    static {
+        try {
+            Class<?> server = type("MapServer");
+            INITIALIZE = handle(server, "initialize");
+            RASTER_TILES = handle(server, "getRasterTiles", Map.class, Map.class);
+            MAP_RASTER = handle(server, "getMapRaster", Map.class, Map.class);
+            ROUTE = handle(server, "findAndDrawRoute", Map.class, Map.class,
+                    BufferedImage.class);
+            PREFIX_SEARCH = handle(server, "getLocationsByPrefix", String.class, int.class);
+            SEARCH = handle(server, "getLocations", String.class);
+            Constructor<?> db = type("GraphDB").getConstructor(String.class);
+            GRAPH_DB = MethodHandles.lookup().unreflectConstructor(db);
+            CURVY_GRID = handle(type("SyntheticOsm"), "curvyGrid", int.class,
+                    int.class, int.class, long.class, String[].class);
+            PBF_FROM_XML = handle(type("PbfFixture"), "fromXml", File.class,
+                    int.class, boolean.class);
+            Class<?> selection = type("QuadTree$Selection");
+            SELECT = handle(type("QuadTree"), "select", double.class, double.class,
+                    double.class, double.class, double.class, int.class);
+            SELECTED_NAMES = handle(selection, "names");
+            SELECTED_COLUMNS = handle(selection, "columns");
+            COMPOSITE = handle(type("RasterCompositor"), "render", type("TileCache"),
+                    List.class, int.class, int.class);
+            Class<?> histogram = type("LatencyHistogram");
+            HISTOGRAM = MethodHandles.lookup().unreflectConstructor(histogram.getConstructor());
+            RECORD = handle(histogram, "record", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private BenchmarkInputs() {
+    }
+
+    /** A class of the server, not yet initialized, so that its properties can still be set. */
+    private static Class<?> type(String name) throws ClassNotFoundException {
+        return Class.forName(name, false, BenchmarkInputs.class.getClassLoader());
+    }
+
+    private static MethodHandle handle(Class<?> owner, String name, Class<?>... parameters)
+            throws ReflectiveOperationException {
+        Method method = owner.getDeclaredMethod(name, parameters);
+        method.setAccessible(true);
+        return MethodHandles.lookup().unreflect(method).asFixedArity();
+    }
+
+    /** Rethrow what a method handle threw, unchecked. */
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+
+    /**
+     * The map to benchmark on: berkeley.osm if it is in the working directory, or else a
+     * synthetic city with curved streets and named places over the same area.
+     */
+    static String osm() {
+        if (new File("berkeley.osm").isFile()) {
+            return "berkeley.osm";
+        }
+        return curvyGrid(60, 60, 3, 31, placeNames(PLACES, 32)).getPath();
+    }
+
+    /**
+     * A bound of MapServer's root tile, which the recorded queries and synthetic maps lie in:
+     * "ROOT_ULLON" and so on. Only call it once the server has started.
+     */
+    static double root(String bound) {
+        try {
+            return type("MapServer").getField(bound).getDouble(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Start MapServer on osm() with the given routing mode. Routes are not cached, so every
+     * route query searches.
+     */
+    static void startServer(String routing) {
+        String osm = osm();
+        if (!osm.equals("berkeley.osm")) {
+            String base = osm.replaceFirst("\\.osm(\\.pbf)?$", "");
+            new File(base + ".graph").deleteOnExit();
+            new File(base + ".ch").deleteOnExit();
+        }
+        System.setProperty("bearmaps.osm", osm);
+        System.setProperty("bearmaps.routing", routing);
+        System.setProperty("bearmaps.routecache", "0");
+        try {
+            INITIALIZE.invoke();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * One field of every query recorded in test_data: "rasterParams", "routeParams",
+     * "prefixSearchParam" or "actualSearchParam".
+     */
+    @SuppressWarnings("unchecked")
+    static <T> List<T> recorded(String field) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream("test_data"))) {
+            List<Object> params = (List<Object>) in.readObject();
+            Field f = type("TestParams").getDeclaredField(field);
+            f.setAccessible(true);
+            List<T> values = new ArrayList<>(params.size());
+            for (Object p : params) {
+                values.add((T) f.get(p));
+            }
+            return values;
+        } catch (ReflectiveOperationException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** Names for <code>count</code> places, such as "Golden Oak Bakery"; some repeat. */
+    static String[] placeNames(int count, long seed) {
+        Random random = new Random(seed);
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = FIRST[random.nextInt(FIRST.length)] + " "
+                    + SECOND[random.nextInt(SECOND.length)]
+                    + (random.nextBoolean() ? " " + KIND[random.nextInt(KIND.length)] : "");
+        }
+        return names;
+    }
+
+    /** Raster parameters for a w x h viewport centred on (lon, lat), lonSpan degrees wide. */
+    static Map<String, Double> viewport(double lon, double lat, double lonSpan, int w, int h) {
+        double latSpan = lonSpan * h / w;
+        Map<String, Double> params = new HashMap<>();
+        params.put("ullon", lon - lonSpan / 2);
+        params.put("lrlon", lon + lonSpan / 2);
+        params.put("ullat", lat + latSpan / 2);
+        params.put("lrlat", lat - latSpan / 2);
+        params.put("w", (double) w);
+        params.put("h", (double) h);
+        return params;
+    }
+
+    /**
+     * Route parameters for <code>count</code> random routes over the root tile whose endpoints
+     * lie <code>fraction</code> of the tile's width apart as the crow flies.
+     */
+    static List<Map<String, Double>> routes(int count, double fraction, long seed) {
+        double ullon = root("ROOT_ULLON");
+        double ullat = root("ROOT_ULLAT");
+        double lrlon = root("ROOT_LRLON");
+        double lrlat = root("ROOT_LRLAT");
+        double width = lrlon - ullon;
+        double height = ullat - lrlat;
+        Random random = new Random(seed);
+        List<Map<String, Double>> routes = new ArrayList<>(count);
+        while (routes.size() < count) {
+            double startLon = ullon + width * random.nextDouble();
+            double startLat = lrlat + height * random.nextDouble();
+            double angle = 2 * Math.PI * random.nextDouble();
+            double endLon = startLon + fraction * width * Math.cos(angle);
+            double endLat = startLat + fraction * width * Math.sin(angle);
+            if (endLon < ullon || endLon > lrlon || endLat < lrlat || endLat > ullat) {
+                continue;
+            }
+            Map<String, Double> params = new HashMap<>();
+            params.put("start_lon", startLon);
+            params.put("start_lat", startLat);
+            params.put("end_lon", endLon);
+            params.put("end_lat", endLat);
+            routes.add(params);
+        }
+        return routes;
+    }
+
+    /** MapServer.getRasterTiles(). */
+    @SuppressWarnings("unchecked")
+    static List<String> rasterTiles(Map<String, Double> params) {
+        try {
+            return (List<String>) RASTER_TILES.invoke(params, new HashMap<String, Object>());
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /** MapServer.getMapRaster(). */
+    static BufferedImage mapRaster(Map<String, Double> params) {
+        try {
+            return (BufferedImage) MAP_RASTER.invoke(params, new HashMap<String, Object>());
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * A static field of MapServer, such as its quadtree "newtree" or tile cache "tiles". Only
+     * call it once the server has started.
+     */
+    static Object serverField(String name) {
+        try {
+            Field field = type("MapServer").getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The raster of MapServer.getMapRaster(), selected from <code>tree</code> and composited
+     * from <code>tiles</code> directly, so that no phase is timed.
+     */
+    static BufferedImage untimedRaster(Object tree, Object tiles, int tileSize,
+                                       Map<String, Double> params) {
+        double ullon = params.get("ullon");
+        double lrlon = params.get("lrlon");
+        try {
+            Object selection = SELECT.invoke(tree, ullon, (double) params.get("ullat"), lrlon,
+                    (double) params.get("lrlat"), (lrlon - ullon) / params.get("w"), tileSize);
+            return (BufferedImage) COMPOSITE.invoke(tiles, SELECTED_NAMES.invoke(selection),
+                    (int) SELECTED_COLUMNS.invoke(selection), tileSize);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /** new LatencyHistogram(). */
+    static Object latencyHistogram() {
+        try {
+            return HISTOGRAM.invoke();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /** LatencyHistogram.record() on a histogram of latencyHistogram(). */
+    static void record(Object histogram, long nanos) {
+        try {
+            RECORD.invoke(histogram, nanos);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /** MapServer.findAndDrawRoute(), without drawing. */
+    @SuppressWarnings("unchecked")
+    static List<Long> route(Map<String, Double> params) {
+        try {
+            return (List<Long>) ROUTE.invoke(params, (Map<String, Object>) null,
+                    (BufferedImage) null);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /** MapServer.getLocationsByPrefix(). */
+    @SuppressWarnings("unchecked")
+    static List<String> prefixSearch(String prefix, int limit) {
+        try {
+            return (List<String>) PREFIX_SEARCH.invoke(prefix, limit);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /** MapServer.getLocations(). */
+    @SuppressWarnings("unchecked")
+    static List<Map<String, Object>> search(String name) {
+        try {
+            return (List<Map<String, Object>>) SEARCH.invoke(name);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /** new GraphDB(path). */
+    static Object graphDB(String path) {
+        try {
+            return GRAPH_DB.invoke(path);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /** SyntheticOsm.curvyGrid(). */
+    static File curvyGrid(int rows, int cols, int shapePoints, long seed, String... places) {
+        try {
+            return (File) CURVY_GRID.invoke(rows, cols, shapePoints, seed, places);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /** PbfFixture.fromXml(), as dense nodes in blocks of 8000. */
+    static File pbf(File xml) {
+        try {
+            return (File) PBF_FROM_XML.invoke(xml, 8000, true);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+}
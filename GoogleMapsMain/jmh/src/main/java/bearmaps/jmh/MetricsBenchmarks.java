@@ -0,0 +1,93 @@
+package bearmaps.jmh;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What the /metrics instrumentation costs: one timed LatencyHistogram.record() on one thread
+ * and on every core into the same histogram, as a busy endpoint's, against rastering a viewport
+ * with its phases timed and without.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmarks {
+    private Object histogram;
+
+    @Setup
+    public void setUp() {
+        histogram = BenchmarkInputs.latencyHistogram();
+    }
+
+    /** A 1024 x 768 viewport a few blocks across in the middle of the map. */
+    @State(Scope.Benchmark)
+    public static class Viewport {
+        Map<String, Double> params;
+        Object tree;
+        Object tiles;
+        int tileSize;
+
+        @Setup
+        public void setUp() {
+            BenchmarkInputs.startServer("astar");
+            double lon = (BenchmarkInputs.root("ROOT_ULLON")
+                    + BenchmarkInputs.root("ROOT_LRLON")) / 2;
+            double lat = (BenchmarkInputs.root("ROOT_ULLAT")
+                    + BenchmarkInputs.root("ROOT_LRLAT")) / 2;
+            params = BenchmarkInputs.viewport(lon, lat, 0.03, 1024, 768);
+            tree = BenchmarkInputs.serverField("newtree");
+            tiles = BenchmarkInputs.serverField("tiles");
+            tileSize = (Integer) BenchmarkInputs.serverField("TILE_SIZE");
+        }
+    }
+
+    private void timedRecord() {
+        long start = System.nanoTime();
+        BenchmarkInputs.record(histogram, System.nanoTime() - start);
+    }
+
+    /** One phase timed and recorded, as a request does four or five times. */
+    @Benchmark
+    @Threads(1)
+    public void record() {
+        timedRecord();
+    }
+
+    /** The same on every core at once, contending for the histogram's counters. */
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void recordContended() {
+        timedRecord();
+    }
+
+    /** MapServer.getMapRaster(), which times tile selection and compositing. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public BufferedImage raster(Viewport viewport) {
+        return BenchmarkInputs.mapRaster(viewport.params);
+    }
+
+    /** The baseline: the same tiles selected and composited with nothing timed. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public BufferedImage rasterUntimed(Viewport viewport) {
+        return BenchmarkInputs.untimedRaster(viewport.tree, viewport.tiles, viewport.tileSize,
+                viewport.params);
+    }
+}
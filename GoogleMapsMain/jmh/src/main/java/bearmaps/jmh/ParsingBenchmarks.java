@@ -0,0 +1,51 @@
+package bearmaps.jmh;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building a GraphDB from OSM XML and from the same map as PBF, on synthetic cities of
+ * growing size, to see how parsing, cleaning and building the road graph scale.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParsingBenchmarks {
+    /** Rows and columns of streets, each with three shape points per block. */
+    @Param({"30", "60", "120"})
+    public int size;
+
+    @Param({"xml", "pbf"})
+    public String format;
+
+    private String path;
+
+    @Setup
+    public void setUp() {
+        File xml = BenchmarkInputs.curvyGrid(size, size, 3, 41,
+                BenchmarkInputs.placeNames(size * size / 4, 42));
+        File osm = format.equals("pbf") ? BenchmarkInputs.pbf(xml) : xml;
+        osm.deleteOnExit();
+        path = osm.getPath();
+    }
+
+    @Benchmark
+    public Object build() {
+        return BenchmarkInputs.graphDB(path);
+    }
+}
@@ -0,0 +1,75 @@
+package bearmaps.jmh;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rastering: choosing the tiles that cover a viewport, and compositing them into one image. The
+ * tile cache is warm after the first iteration, so compositing measures drawing, not disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RasterBenchmarks {
+    /**
+     * The longitude a 1024 x 768 viewport in the middle of the map spans, from the whole map
+     * down to a few blocks; "recorded" cycles through the viewports in test_data.
+     */
+    @Param({"0.09", "0.03", "0.01", "0.003", "recorded"})
+    public String zoom;
+
+    private List<Map<String, Double>> viewports;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkInputs.startServer("astar");
+        if (zoom.equals("recorded")) {
+            viewports = BenchmarkInputs.recorded("rasterParams");
+        } else {
+            double lon = (BenchmarkInputs.root("ROOT_ULLON")
+                    + BenchmarkInputs.root("ROOT_LRLON")) / 2;
+            double lat = (BenchmarkInputs.root("ROOT_ULLAT")
+                    + BenchmarkInputs.root("ROOT_LRLAT")) / 2;
+            viewports = Collections.singletonList(
+                    BenchmarkInputs.viewport(lon, lat, Double.parseDouble(zoom), 1024, 768));
+        }
+    }
+
+    private Map<String, Double> nextViewport() {
+        Map<String, Double> viewport = viewports.get(next);
+        next = (next + 1) % viewports.size();
+        return viewport;
+    }
+
+    /** The quadtree walk that picks the tiles, without drawing them. */
+    @Benchmark
+    public List<String> selectTiles() {
+        return BenchmarkInputs.rasterTiles(nextViewport());
+    }
+
+    /** Picking the tiles and compositing them, as /raster does before encoding. */
+    @Benchmark
+    public BufferedImage composite() {
+        return BenchmarkInputs.mapRaster(nextViewport());
+    }
+}
@@ -0,0 +1,71 @@
+package bearmaps.jmh;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Route queries through MapServer, from snapping the endpoints to the list of node ids, for each
+ * routing mode. The route cache is off so that every query searches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingBenchmarks {
+    /** Random routes this many queries long are cycled through. */
+    private static final int QUERIES = 256;
+
+    @Param({"astar", "alt", "ch"})
+    public String routing;
+
+    /**
+     * How far apart the endpoints are as the crow flies: a twentieth, a quarter or three fifths
+     * of the width of the map; "recorded" cycles through the routes in test_data.
+     */
+    @Param({"short", "medium", "long", "recorded"})
+    public String length;
+
+    private List<Map<String, Double>> routes;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkInputs.startServer(routing);
+        switch (length) {
+            case "short":
+                routes = BenchmarkInputs.routes(QUERIES, 0.05, 61);
+                break;
+            case "medium":
+                routes = BenchmarkInputs.routes(QUERIES, 0.25, 61);
+                break;
+            case "long":
+                routes = BenchmarkInputs.routes(QUERIES, 0.6, 61);
+                break;
+            default:
+                routes = BenchmarkInputs.recorded("routeParams");
+        }
+    }
+
+    @Benchmark
+    public List<Long> route() {
+        Map<String, Double> params = routes.get(next);
+        next = (next + 1) % routes.size();
+        return BenchmarkInputs.route(params);
+    }
+}
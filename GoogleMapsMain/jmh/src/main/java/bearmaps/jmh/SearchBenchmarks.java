@@ -0,0 +1,63 @@
+package bearmaps.jmh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Autocomplete and full location search. Queries are the searches recorded in test_data
+ * followed by prefixes and names of the synthetic places, so some hit and some miss whichever
+ * map is loaded, as typed searches do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmarks {
+    private List<String> prefixes;
+    private List<String> names;
+    private int nextPrefix;
+    private int nextName;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkInputs.startServer("astar");
+        prefixes = new ArrayList<>(BenchmarkInputs.<String>recorded("prefixSearchParam"));
+        names = new ArrayList<>(BenchmarkInputs.<String>recorded("actualSearchParam"));
+        for (String name : BenchmarkInputs.placeNames(200, 33)) {
+            prefixes.add(name.substring(0, 1 + names.size() % 4).toLowerCase());
+            names.add(name.toLowerCase());
+        }
+    }
+
+    /** The ten best completions of a prefix one to four letters long. */
+    @Benchmark
+    public List<String> prefix() {
+        String prefix = prefixes.get(nextPrefix);
+        nextPrefix = (nextPrefix + 1) % prefixes.size();
+        return BenchmarkInputs.prefixSearch(prefix, 10);
+    }
+
+    /** Every location with a name, falling back to near matches when none is exact. */
+    @Benchmark
+    public List<Map<String, Object>> full() {
+        String name = names.get(nextName);
+        nextName = (nextName + 1) % names.size();
+        return BenchmarkInputs.search(name);
+    }
+}
@@ -0,0 +1,207 @@
+import java.util.Arrays;
+
+/**
+ * A Router that searches the RoadGraph directly. The default search is A* with the straight-line
+ * distance to the target as its heuristic; since every edge is at least as long as the straight
+ * line between its endpoints, that heuristic is admissible and consistent, and each vertex is
+ * settled at most once. The optional bidirectional mode runs A* from both ends with the averaged
+ * potentials of Ikeda et al., which keeps both searches consistent so the usual bidirectional
+ * stopping rule still holds.
+ * <p>
+ *     Searches use a SearchState per thread, so one instance can serve concurrent requests.
+ * </p>
+ */
+public class AStarRouter implements Router {
+    /** The cost of a single source or target. */
+    static final double[] NO_COST = {0};
+
+    private final RoadGraph graph;
+    private final boolean bidirectional;
+    private final ThreadLocal<SearchState[]> states;
+
+    public AStarRouter(RoadGraph graph, boolean bidirectional) {
+        this.graph = graph;
+        this.bidirectional = bidirectional;
+        this.states = ThreadLocal.withInitial(() -> new SearchState[] {
+            new SearchState(graph.size()), new SearchState(graph.size())});
+    }
+
+    public AStarRouter(RoadGraph graph) {
+        this(graph, false);
+    }
+
+    @Override
+    public RoadGraph graph() {
+        return graph;
+    }
+
+    @Override
+    public int[] route(int source, int target) {
+        return route(new int[] {source}, NO_COST, new int[] {target}, NO_COST);
+    }
+
+    @Override
+    public int[] route(int[] sources, double[] sourceCosts, int[] targets,
+                       double[] targetCosts) {
+        SearchState[] s = states.get();
+        Ends ends = new Ends(sources, sourceCosts, targets, targetCosts);
+        return bidirectional ? bidirectional(ends, s[0], s[1]) : astar(ends, s[0]);
+    }
+
+    @Override
+    public int lastSettledCount() {
+        SearchState[] s = states.get();
+        return s[0].settledCount() + (bidirectional ? s[1].settledCount() : 0);
+    }
+
+    /**
+     * The endpoints of one query and the straight-line bounds on reaching them. With several
+     * targets the bound to finish is the least, over the targets, of the straight line to it
+     * plus its cost; a minimum of consistent bounds is consistent, so A* works unchanged.
+     */
+    private final class Ends {
+        final int[] sources;
+        final double[] sourceCosts;
+        final int[] targets;
+        final double[] targetCosts;
+
+        Ends(int[] sources, double[] sourceCosts, int[] targets, double[] targetCosts) {
+            this.sources = sources;
+            this.sourceCosts = sourceCosts;
+            this.targets = targets;
+            this.targetCosts = targetCosts;
+        }
+
+        /** Lower bound on the cost from <code>v</code> to the end of the route. */
+        double toTarget(int v) {
+            return bound(v, targets, targetCosts);
+        }
+
+        /** Lower bound on the cost from the start of the route to <code>v</code>. */
+        double fromSource(int v) {
+            return bound(v, sources, sourceCosts);
+        }
+
+        /** The averaged forward potential (toTarget(v) - fromSource(v)) / 2. */
+        double potential(int v) {
+            return (toTarget(v) - fromSource(v)) / 2;
+        }
+
+        private double bound(int v, int[] ends, double[] costs) {
+            double best = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < ends.length; i++) {
+                best = Math.min(best, graph.distance(v, ends[i]) + costs[i]);
+            }
+            return best;
+        }
+    }
+
+    /**
+     * A* from every source at once. Settling a target only offers a route, since another may
+     * cost less to end at, so the search runs until no queued key beats the best offer.
+     */
+    private int[] astar(Ends ends, SearchState state) {
+        state.reset();
+        IndexedMinHeap heap = state.heap;
+        for (int i = 0; i < ends.sources.length; i++) {
+            int v = ends.sources[i];
+            if (ends.sourceCosts[i] < state.dist(v)) {
+                state.reach(v, ends.sourceCosts[i], -1);
+                heap.push(v, ends.sourceCosts[i] + ends.toTarget(v));
+            }
+        }
+        double best = Double.POSITIVE_INFINITY;
+        int end = -1;
+        while (!heap.isEmpty() && heap.peekKey() < best) {
+            int u = heap.poll();
+            state.settle(u);
+            double du = state.dist(u);
+            for (int j = 0; j < ends.targets.length; j++) {
+                if (ends.targets[j] == u && du + ends.targetCosts[j] < best) {
+                    best = du + ends.targetCosts[j];
+                    end = u;
+                }
+            }
+            for (int e = graph.firstEdge(u); e < graph.endEdge(u); e++) {
+                int w = graph.target(e);
+                if (state.isSettled(w)) {
+                    continue;
+                }
+                double dw = du + graph.length(e);
+                if (dw < state.dist(w)) {
+                    state.reach(w, dw, u);
+                    heap.push(w, dw + ends.toTarget(w));
+                }
+            }
+        }
+        return end < 0 ? new int[0] : state.path(end);
+    }
+
+    /**
+     * Bidirectional A* from all sources and all targets. The target costs seed the backward
+     * search just as the source costs seed the forward one, as if a virtual vertex joined each
+     * set of ends.
+     */
+    private int[] bidirectional(Ends ends, SearchState fwd, SearchState bwd) {
+        fwd.reset();
+        bwd.reset();
+        for (int i = 0; i < ends.sources.length; i++) {
+            int v = ends.sources[i];
+            if (ends.sourceCosts[i] < fwd.dist(v)) {
+                fwd.reach(v, ends.sourceCosts[i], -1);
+                fwd.heap.push(v, ends.sourceCosts[i] + ends.potential(v));
+            }
+        }
+        double best = Double.POSITIVE_INFINITY;
+        int meet = -1;
+        for (int j = 0; j < ends.targets.length; j++) {
+            int v = ends.targets[j];
+            if (ends.targetCosts[j] < bwd.dist(v)) {
+                bwd.reach(v, ends.targetCosts[j], -1);
+                bwd.heap.push(v, ends.targetCosts[j] - ends.potential(v));
+                if (fwd.dist(v) + bwd.dist(v) < best) {
+                    best = fwd.dist(v) + bwd.dist(v);
+                    meet = v;
+                }
+            }
+        }
+        while (!fwd.heap.isEmpty() && !bwd.heap.isEmpty()) {
+            if (fwd.heap.peekKey() + bwd.heap.peekKey() >= best) {
+                break;
+            }
+            boolean forward = fwd.heap.size() <= bwd.heap.size();
+            SearchState self = forward ? fwd : bwd;
+            SearchState other = forward ? bwd : fwd;
+            double sign = forward ? 1 : -1;
+            int u = self.heap.poll();
+            self.settle(u);
+            double du = self.dist(u);
+            for (int e = graph.firstEdge(u); e < graph.endEdge(u); e++) {
+                int w = graph.target(e);
+                double dw = du + graph.length(e);
+                if (dw < self.dist(w)) {
+                    self.reach(w, dw, u);
+                    self.heap.push(w, dw + sign * ends.potential(w));
+                }
+                if (other.isReached(w) && dw + other.dist(w) < best) {
+                    best = dw + other.dist(w);
+                    meet = w;
+                }
+            }
+        }
+        if (meet < 0) {
+            return new int[0];
+        }
+        int[] head = fwd.path(meet);
+        int tail = 0;
+        for (int v = bwd.prev(meet); v >= 0; v = bwd.prev(v)) {
+            tail++;
+        }
+        int[] result = Arrays.copyOf(head, head.length + tail);
+        int i = head.length;
+        for (int v = bwd.prev(meet); v >= 0; v = bwd.prev(v)) {
+            result[i++] = v;
+        }
+        return result;
+    }
+}
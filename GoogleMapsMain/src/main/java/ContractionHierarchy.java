@@ -0,0 +1,543 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A Router backed by a contraction hierarchy over a RoadGraph.
+ * <p>
+ *     Preprocessing contracts the vertices one at a time, least important first, as ranked by
+ *     edge difference plus the number of already contracted neighbours. Contracting v removes it
+ *     from the remaining graph and adds a shortcut u-w for each pair of its neighbours unless a
+ *     local witness search finds a path from u to w that avoids v and is no longer than going
+ *     through it. Each vertex keeps the edges it had when it was contracted; all of them lead to
+ *     higher ranked vertices, so they form the upward graph.
+ * </p>
+ * <p>
+ *     A query runs Dijkstra upwards from both ends and meets at the highest ranked vertex of the
+ *     shortest path. Shortcuts remember the vertex they bypass, so the path is unpacked back into
+ *     the RoadGraph vertices it stands for. Since roads are two-way, one upward graph serves both
+ *     directions.
+ * </p>
+ * The hierarchy is built offline with <code>java ContractionHierarchy berkeley.osm
+ * berkeley.ch</code>, or on first start, and is stored in a file that shares the header of
+ * GraphSnapshot files.
+ */
+public class ContractionHierarchy implements Router {
+    static final int VERSION = 1;
+    private static final long MAGIC = 0x0052454948434d42L; // "BMCHIER\0"
+    /** Vertices a witness search may settle before it gives up and a shortcut is added. */
+    private static final int WITNESS_SETTLE_LIMIT = 64;
+
+    private final RoadGraph graph;
+    private final IntBuffer rank;
+    private final IntBuffer upOffsets;
+    private final IntBuffer upTargets;
+    private final IntBuffer upMiddle;
+    private final DoubleBuffer upWeights;
+    private final ThreadLocal<SearchState[]> states;
+
+    private ContractionHierarchy(RoadGraph graph, IntBuffer rank, IntBuffer upOffsets,
+                                 IntBuffer upTargets, IntBuffer upMiddle,
+                                 DoubleBuffer upWeights) {
+        this.graph = graph;
+        this.rank = rank;
+        this.upOffsets = upOffsets;
+        this.upTargets = upTargets;
+        this.upMiddle = upMiddle;
+        this.upWeights = upWeights;
+        this.states = ThreadLocal.withInitial(() -> new SearchState[] {
+            new SearchState(graph.size()), new SearchState(graph.size())});
+    }
+
+    @Override
+    public RoadGraph graph() {
+        return graph;
+    }
+
+    /** Number of edges in the upward graph, shortcuts included. */
+    public int upwardEdgeCount() {
+        return upTargets.limit();
+    }
+
+    /** The position of <code>v</code> in the contraction order. */
+    public int rank(int v) {
+        return rank.get(v);
+    }
+
+    @Override
+    public int[] route(int source, int target) {
+        return route(new int[] {source}, AStarRouter.NO_COST, new int[] {target},
+                AStarRouter.NO_COST);
+    }
+
+    /** Both upward searches start from all their ends at once, each at its cost. */
+    @Override
+    public int[] route(int[] sources, double[] sourceCosts, int[] targets,
+                       double[] targetCosts) {
+        SearchState[] s = states.get();
+        SearchState fwd = s[0];
+        SearchState bwd = s[1];
+        fwd.reset();
+        bwd.reset();
+        seed(fwd, sources, sourceCosts);
+        seed(bwd, targets, targetCosts);
+        double best = Double.POSITIVE_INFINITY;
+        int meet = -1;
+        while (!fwd.heap.isEmpty() || !bwd.heap.isEmpty()) {
+            boolean fwdDone = fwd.heap.isEmpty() || fwd.heap.peekKey() >= best;
+            boolean bwdDone = bwd.heap.isEmpty() || bwd.heap.peekKey() >= best;
+            if (fwdDone && bwdDone) {
+                break;
+            }
+            boolean forward = !fwdDone
+                    && (bwdDone || fwd.heap.peekKey() <= bwd.heap.peekKey());
+            SearchState self = forward ? fwd : bwd;
+            SearchState other = forward ? bwd : fwd;
+            int u = self.heap.poll();
+            self.settle(u);
+            double du = self.dist(u);
+            if (other.isReached(u) && du + other.dist(u) < best) {
+                best = du + other.dist(u);
+                meet = u;
+            }
+            for (int e = upOffsets.get(u); e < upOffsets.get(u + 1); e++) {
+                int w = upTargets.get(e);
+                double dw = du + upWeights.get(e);
+                if (dw < self.dist(w)) {
+                    self.reach(w, dw, u);
+                    self.heap.push(w, dw);
+                }
+            }
+        }
+        if (meet < 0) {
+            return new int[0];
+        }
+        IntList up = new IntList();
+        for (int v = meet; v >= 0; v = fwd.prev(v)) {
+            up.add(v);
+        }
+        IntList path = new IntList();
+        path.add(up.items[up.size - 1]);
+        for (int i = up.size - 1; i > 0; i--) {
+            unpack(up.items[i], up.items[i - 1], path);
+        }
+        for (int v = meet; bwd.prev(v) >= 0; v = bwd.prev(v)) {
+            unpack(v, bwd.prev(v), path);
+        }
+        return Arrays.copyOf(path.items, path.size);
+    }
+
+    @Override
+    public int lastSettledCount() {
+        SearchState[] s = states.get();
+        return s[0].settledCount() + s[1].settledCount();
+    }
+
+    private static void seed(SearchState state, int[] ends, double[] costs) {
+        for (int i = 0; i < ends.length; i++) {
+            if (costs[i] < state.dist(ends[i])) {
+                state.reach(ends[i], costs[i], -1);
+                state.heap.push(ends[i], costs[i]);
+            }
+        }
+    }
+
+    /** Append the RoadGraph vertices after <code>from</code> up to <code>to</code>. */
+    private void unpack(int from, int to, IntList path) {
+        IntList stack = new IntList();
+        stack.add(to);
+        int at = from;
+        while (stack.size > 0) {
+            int next = stack.items[stack.size - 1];
+            int middle = middle(at, next);
+            if (middle < 0) {
+                path.add(next);
+                at = next;
+                stack.size--;
+            } else {
+                stack.add(middle);
+            }
+        }
+    }
+
+    /** The vertex bypassed by the upward edge between u and v, or -1 for a road segment. */
+    private int middle(int u, int v) {
+        int low = rank.get(u) < rank.get(v) ? u : v;
+        int high = low == u ? v : u;
+        for (int e = upOffsets.get(low); e < upOffsets.get(low + 1); e++) {
+            if (upTargets.get(e) == high) {
+                return upMiddle.get(e);
+            }
+        }
+        throw new IllegalStateException("No upward edge between " + u + " and " + v + ".");
+    }
+
+    /**
+     * Loads the hierarchy for <code>graph</code> from <code>path</code>, or builds it and tries
+     * to save it there if the file is missing or was built for another graph.
+     */
+    public static ContractionHierarchy open(Path path, RoadGraph graph) {
+        if (Files.isRegularFile(path)) {
+            try {
+                return read(path, graph);
+            } catch (IOException e) {
+                System.out.println("Could not read contraction hierarchy, rebuilding: "
+                        + e.getMessage());
+            }
+        }
+        ContractionHierarchy ch = build(graph);
+        try {
+            ch.write(path);
+        } catch (IOException e) {
+            System.out.println("Could not save contraction hierarchy: " + e.getMessage());
+        }
+        return ch;
+    }
+
+    /** Contract every vertex of <code>graph</code>. */
+    public static ContractionHierarchy build(RoadGraph graph) {
+        return new Contractor(graph).contract();
+    }
+
+    /** Write the hierarchy next to <code>path</code> and move it into place. */
+    public void write(Path path) throws IOException {
+        int n = graph.size();
+        int m = upwardEdgeCount();
+        Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), "ch", ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            CRC32 crc = new CRC32();
+            out.position(GraphSnapshot.HEADER_BYTES);
+            ByteBuffer section = GraphSnapshot.allocate(8L * m);
+            section.asDoubleBuffer().put(upWeights.duplicate());
+            long payload = GraphSnapshot.writeSection(out, section, crc);
+            section = GraphSnapshot.allocate(4L * n);
+            section.asIntBuffer().put(rank.duplicate());
+            payload += GraphSnapshot.writeSection(out, section, crc);
+            section = GraphSnapshot.allocate(4L * (n + 1));
+            section.asIntBuffer().put(upOffsets.duplicate());
+            payload += GraphSnapshot.writeSection(out, section, crc);
+            section = GraphSnapshot.allocate(4L * m);
+            section.asIntBuffer().put(upTargets.duplicate());
+            payload += GraphSnapshot.writeSection(out, section, crc);
+            section = GraphSnapshot.allocate(4L * m);
+            section.asIntBuffer().put(upMiddle.duplicate());
+            payload += GraphSnapshot.writeSection(out, section, crc);
+            GraphSnapshot.writeHeader(out, MAGIC, VERSION, n, m, payload, crc,
+                    graph.fingerprint());
+            out.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Map a hierarchy written by write().
+     * @throws IOException If the file is unreadable, corrupt, or built for a different graph.
+     */
+    public static ContractionHierarchy read(Path path, RoadGraph graph) throws IOException {
+        ByteBuffer file = GraphSnapshot.map(path, MAGIC, VERSION, "contraction hierarchy");
+        int n = file.getInt(12);
+        int m = file.getInt(16);
+        if (n != graph.size() || file.getLong(40) != graph.fingerprint()) {
+            throw new IOException(path + " was built for a different graph.");
+        }
+        long at = GraphSnapshot.HEADER_BYTES;
+        DoubleBuffer weights = GraphSnapshot.slice(file, at, 8L * m).asDoubleBuffer();
+        at += GraphSnapshot.padded(8L * m);
+        IntBuffer rank = GraphSnapshot.slice(file, at, 4L * n).asIntBuffer();
+        at += GraphSnapshot.padded(4L * n);
+        IntBuffer offsets = GraphSnapshot.slice(file, at, 4L * (n + 1)).asIntBuffer();
+        at += GraphSnapshot.padded(4L * (n + 1));
+        IntBuffer targets = GraphSnapshot.slice(file, at, 4L * m).asIntBuffer();
+        at += GraphSnapshot.padded(4L * m);
+        IntBuffer middle = GraphSnapshot.slice(file, at, 4L * m).asIntBuffer();
+        return new ContractionHierarchy(graph, rank, offsets, targets, middle, weights);
+    }
+
+    /** A growable int array. */
+    private static class IntList {
+        private int[] items = new int[16];
+        private int size;
+
+        void add(int item) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = item;
+        }
+    }
+
+    /**
+     * The mutable state of preprocessing: the remaining graph as per-vertex adjacency lists,
+     * which shrink as vertices are contracted and grow as shortcuts are added.
+     */
+    private static class Contractor {
+        private final RoadGraph graph;
+        private final int n;
+        private final int[][] adj;
+        private final double[][] weight;
+        private final int[][] middle;
+        private final int[] degree;
+        private final boolean[] contracted;
+        private final int[] contractedNeighbors;
+        private final SearchState witness;
+        /* Marks the targets of the current witness search with targetStamp. */
+        private final int[] target;
+        private int targetStamp;
+        /* Upward edges, recorded as each vertex is contracted. */
+        private final int[] rank;
+        private final int[] upOffsets;
+        private int[] upTargets;
+        private int[] upMiddle;
+        private double[] upWeights;
+        private int upCount;
+
+        Contractor(RoadGraph graph) {
+            this.graph = graph;
+            n = graph.size();
+            adj = new int[n][];
+            weight = new double[n][];
+            middle = new int[n][];
+            degree = new int[n];
+            for (int v = 0; v < n; v++) {
+                int d = graph.degree(v);
+                adj[v] = new int[Math.max(4, d)];
+                weight[v] = new double[adj[v].length];
+                middle[v] = new int[adj[v].length];
+                for (int e = graph.firstEdge(v); e < graph.endEdge(v); e++) {
+                    adj[v][degree[v]] = graph.target(e);
+                    weight[v][degree[v]] = graph.length(e);
+                    middle[v][degree[v]] = -1;
+                    degree[v]++;
+                }
+            }
+            contracted = new boolean[n];
+            contractedNeighbors = new int[n];
+            witness = new SearchState(n);
+            target = new int[n];
+            rank = new int[n];
+            upOffsets = new int[n + 1];
+            upTargets = new int[graph.edgeCount()];
+            upMiddle = new int[graph.edgeCount()];
+            upWeights = new double[graph.edgeCount()];
+        }
+
+        ContractionHierarchy contract() {
+            IndexedMinHeap order = new IndexedMinHeap(n);
+            for (int v = 0; v < n; v++) {
+                order.push(v, priority(v));
+            }
+            /* Upward edges are appended in contraction order, then regrouped by vertex. */
+            int[] upFrom = new int[graph.edgeCount()];
+            int next = 0;
+            while (!order.isEmpty()) {
+                int v = order.poll();
+                double p = priority(v);
+                if (!order.isEmpty() && p > order.peekKey()) {
+                    order.push(v, p);
+                    continue;
+                }
+                rank[v] = next++;
+                for (int i = 0; i < degree[v]; i++) {
+                    if (upCount == upTargets.length) {
+                        int capacity = upCount * 2;
+                        upTargets = Arrays.copyOf(upTargets, capacity);
+                        upMiddle = Arrays.copyOf(upMiddle, capacity);
+                        upWeights = Arrays.copyOf(upWeights, capacity);
+                        upFrom = Arrays.copyOf(upFrom, capacity);
+                    }
+                    upFrom[upCount] = v;
+                    upTargets[upCount] = adj[v][i];
+                    upMiddle[upCount] = middle[v][i];
+                    upWeights[upCount] = weight[v][i];
+                    upCount++;
+                }
+                contractVertex(v);
+                /* Neighbour keys go stale here; the check on poll above re-evaluates them. */
+                for (int i = 0; i < degree[v]; i++) {
+                    contractedNeighbors[adj[v][i]]++;
+                }
+            }
+            return pack(upFrom);
+        }
+
+        private ContractionHierarchy pack(int[] upFrom) {
+            for (int i = 0; i < upCount; i++) {
+                upOffsets[upFrom[i] + 1]++;
+            }
+            for (int v = 0; v < n; v++) {
+                upOffsets[v + 1] += upOffsets[v];
+            }
+            int[] fill = Arrays.copyOf(upOffsets, n);
+            int[] targets = new int[upCount];
+            int[] middles = new int[upCount];
+            double[] weights = new double[upCount];
+            for (int i = 0; i < upCount; i++) {
+                int at = fill[upFrom[i]]++;
+                targets[at] = upTargets[i];
+                middles[at] = upMiddle[i];
+                weights[at] = upWeights[i];
+            }
+            return new ContractionHierarchy(graph, IntBuffer.wrap(rank),
+                    IntBuffer.wrap(upOffsets), IntBuffer.wrap(targets), IntBuffer.wrap(middles),
+                    DoubleBuffer.wrap(weights));
+        }
+
+        /** Twice the edge difference plus contracted neighbours; smaller is contracted sooner. */
+        private double priority(int v) {
+            int shortcuts = shortcuts(v, false);
+            return 2 * (shortcuts - degree[v]) + contractedNeighbors[v];
+        }
+
+        private void contractVertex(int v) {
+            shortcuts(v, true);
+            contracted[v] = true;
+            for (int i = 0; i < degree[v]; i++) {
+                remove(adj[v][i], v);
+            }
+        }
+
+        /**
+         * Count the shortcuts contracting <code>v</code> needs, and add them to the remaining
+         * graph if <code>apply</code> is set.
+         */
+        private int shortcuts(int v, boolean apply) {
+            int count = 0;
+            for (int i = 0; i < degree[v]; i++) {
+                int u = adj[v][i];
+                /* The neighbours after u are the targets; a witness must beat going via v. */
+                double limit = 0;
+                targetStamp++;
+                int targets = 0;
+                for (int j = i + 1; j < degree[v]; j++) {
+                    limit = Math.max(limit, weight[v][i] + weight[v][j]);
+                    if (target[adj[v][j]] != targetStamp) {
+                        target[adj[v][j]] = targetStamp;
+                        targets++;
+                    }
+                }
+                if (targets == 0) {
+                    continue;
+                }
+                witnessSearch(u, v, limit, targets);
+                for (int j = i + 1; j < degree[v]; j++) {
+                    int w = adj[v][j];
+                    double via = weight[v][i] + weight[v][j];
+                    if (witness.dist(w) > via) {
+                        count++;
+                        if (apply) {
+                            connect(u, w, via, v);
+                            connect(w, u, via, v);
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Dijkstra from u in the remaining graph without v. It stops once every target is
+         * settled, the distance limit is passed, or the settle limit is reached.
+         */
+        private void witnessSearch(int u, int v, double limit, int targets) {
+            witness.reset();
+            witness.reach(u, 0, -1);
+            witness.heap.push(u, 0);
+            while (!witness.heap.isEmpty() && witness.settledCount() < WITNESS_SETTLE_LIMIT) {
+                int x = witness.heap.poll();
+                witness.settle(x);
+                double dx = witness.dist(x);
+                if (dx > limit || (target[x] == targetStamp && --targets == 0)) {
+                    break;
+                }
+                for (int i = 0; i < degree[x]; i++) {
+                    int y = adj[x][i];
+                    if (y == v) {
+                        continue;
+                    }
+                    double dy = dx + weight[x][i];
+                    if (dy < witness.dist(y)) {
+                        witness.reach(y, dy, x);
+                        witness.heap.push(y, dy);
+                    }
+                }
+            }
+        }
+
+        /** Add or shorten the edge from u to w in the remaining graph. */
+        private void connect(int u, int w, double length, int via) {
+            for (int i = 0; i < degree[u]; i++) {
+                if (adj[u][i] == w) {
+                    if (length < weight[u][i]) {
+                        weight[u][i] = length;
+                        middle[u][i] = via;
+                    }
+                    return;
+                }
+            }
+            if (degree[u] == adj[u].length) {
+                int capacity = degree[u] * 2;
+                adj[u] = Arrays.copyOf(adj[u], capacity);
+                weight[u] = Arrays.copyOf(weight[u], capacity);
+                middle[u] = Arrays.copyOf(middle[u], capacity);
+            }
+            adj[u][degree[u]] = w;
+            weight[u][degree[u]] = length;
+            middle[u][degree[u]] = via;
+            degree[u]++;
+        }
+
+        /** Remove the edge from u to v from the remaining graph. */
+        private void remove(int u, int v) {
+            for (int i = 0; i < degree[u]; i++) {
+                if (adj[u][i] == v) {
+                    int last = --degree[u];
+                    adj[u][i] = adj[u][last];
+                    weight[u][i] = weight[u][last];
+                    middle[u][i] = middle[u][last];
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Build the hierarchy for an OSM file and save it. Like MapServer, it contracts the
+     * simplified core unless <code>-Dbearmaps.simplify=false</code>.
+     * @param args The OSM file to read and the hierarchy file to write.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java ContractionHierarchy <input.osm> <output.ch>");
+            System.exit(1);
+        }
+        if (!new File(args[0]).isFile()) {
+            System.err.println("No such file: " + args[0]);
+            System.exit(1);
+        }
+        RoadGraph graph = new GraphDB(args[0]).graph();
+        if (Boolean.parseBoolean(System.getProperty("bearmaps.simplify", "true"))) {
+            graph = new SimplifiedGraph(graph).core();
+        }
+        long start = System.nanoTime();
+        ContractionHierarchy ch = build(graph);
+        long built = System.nanoTime();
+        ch.write(Paths.get(args[1]));
+        System.out.printf("Contracted %d vertices in %.1f ms; %d upward edges for %d road "
+                + "edges%n", graph.size(), (built - start) / 1e6, ch.upwardEdgeCount(),
+                graph.edgeCount());
+    }
+}
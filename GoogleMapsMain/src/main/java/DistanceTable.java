@@ -0,0 +1,91 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Road distances in metres from every one of a set of sources to every one of a set of
+ * targets. Each source gets its own Dijkstra search, which stops as soon as it has settled every
+ * target, and the searches for different sources run at once on the common fork-join pool. A
+ * matrix of N sources costs N searches rather than the N x M of routing each pair.
+ * <p>
+ *     Routes are shortest in degrees, as RoadGraph.distance() measures them, but a distance
+ *     table is for estimating travel, so its searches weigh each road by its length in metres,
+ *     worked out once for every edge when the table is made. An Isochrone runs its searches
+ *     through search() as well, so the two share those lengths.
+ * </p>
+ */
+public class DistanceTable {
+    private final RoadGraph graph;
+    /** The length of each edge in metres. */
+    private final float[] metres;
+    private final ThreadLocal<SearchState> states;
+
+    public DistanceTable(RoadGraph graph) {
+        this.graph = graph;
+        this.metres = graph.edgeMetres();
+        this.states = ThreadLocal.withInitial(() -> new SearchState(graph.size()));
+    }
+
+    public RoadGraph graph() {
+        return graph;
+    }
+
+    /**
+     * The shortest road distance in metres from each of <code>sources</code> to each of
+     * <code>targets</code>, row by row: the distance from <code>sources[i]</code> to
+     * <code>targets[j]</code> is at <code>i * targets.length + j</code>. Unreachable targets are
+     * infinitely far.
+     */
+    public double[] distances(int[] sources, int[] targets) {
+        /* The distinct vertices a search must settle before it can stop. */
+        int[] goals = Arrays.stream(targets).sorted().distinct().toArray();
+        double[] table = new double[sources.length * targets.length];
+        IntStream.range(0, sources.length).parallel()
+                .forEach(i -> row(sources[i], goals, targets, table, i * targets.length));
+        return table;
+    }
+
+    /** Fill in the distances from <code>source</code>, starting at <code>table[row]</code>. */
+    private void row(int source, int[] goals, int[] targets, double[] table, int row) {
+        SearchState state = search(source, goals, Double.POSITIVE_INFINITY, null);
+        for (int j = 0; j < targets.length; j++) {
+            table[row + j] = state.dist(targets[j]);
+        }
+    }
+
+    /**
+     * Dijkstra in metres from <code>source</code> on this thread's SearchState, settling
+     * vertices nearest first. It stops once it has settled every one of the sorted, distinct
+     * <code>goals</code>, or when the next vertex is more than <code>budget</code> metres away.
+     * @param goals The vertices to settle, or null to search out to the budget.
+     * @param settled Told of each vertex as it is settled, or null.
+     * @return The state, holding the distance of every vertex reached.
+     */
+    SearchState search(int source, int[] goals, double budget, IntConsumer settled) {
+        SearchState state = states.get();
+        state.reset();
+        state.reach(source, 0, -1);
+        state.heap.push(source, 0);
+        int remaining = goals == null ? -1 : goals.length;
+        while (remaining != 0 && !state.heap.isEmpty() && state.heap.peekKey() <= budget) {
+            int u = state.heap.poll();
+            state.settle(u);
+            if (settled != null) {
+                settled.accept(u);
+            }
+            if (goals != null && Arrays.binarySearch(goals, u) >= 0) {
+                remaining--;
+            }
+            double du = state.dist(u);
+            for (int e = graph.firstEdge(u); e < graph.endEdge(u); e++) {
+                int w = graph.target(e);
+                double dw = du + metres[e];
+                if (dw <= budget && dw < state.dist(w)) {
+                    state.reach(w, dw, u);
+                    state.heap.push(w, dw);
+                }
+            }
+        }
+        return state;
+    }
+}
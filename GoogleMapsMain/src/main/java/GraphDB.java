@@ -1,6 +1,5 @@
 import org.xml.sax.SAXException;
 
-import java.awt.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
@@ -11,60 +10,189 @@ import javax.xml.parsers.SAXParserFactory;
 /**
  * Wraps the parsing functionality of the MapDBHandler as an example.
  * You may choose to add to the functionality of this class if you wish.
+ * Instances are immutable once constructed, so request threads can share one freely.
  * @author Alan Yao
  */
 public class GraphDB {
     /**
      * Example constructor shows how to create and start an XML parser.
-     * @param dbPath Path to the XML file to be parsed.
+     * @param dbPath Path to the OSM XML or PBF file to be parsed.
      */
     private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
             ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
                     "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
                     "secondary_link", "tertiary_link"));
-    private HashMap<Double, GraphNode> connectednodes = new HashMap<>();
-    private HashSet<GraphNode> norepeaters = new HashSet<>();
-    private HashMap<Double, GraphNode> result = new HashMap<>();
+    private final RoadGraph graph;
+    private final KdTree nodeIndex;
+    private final Locations locations;
+    private final PrefixIndex prefixIndex;
+    private final LocationIndex locationIndex;
+    /** The simplification mapped with a snapshot, or null to build one when asked. */
+    private final SimplifiedGraph simplified;
 
-    public HashMap<Double, GraphNode> getconnectednodes() {
-        return connectednodes;
+    /** The routable graph, in compressed sparse row form. */
+    public RoadGraph graph() {
+        return graph;
     }
-    public HashSet<GraphNode> getnorepeaters() {
-        return norepeaters;
+
+    /** Spatial index over the vertices of graph(). */
+    public KdTree nodeIndex() {
+        return nodeIndex;
+    }
+
+    /** The named places of the map. */
+    public Locations locations() {
+        return locations;
+    }
+
+    /** Autocompletion over the names of locations(). */
+    public PrefixIndex prefixIndex() {
+        return prefixIndex;
     }
-    public HashMap<Double, GraphNode> getresult() {
-        return result;
+
+    /** Typo-tolerant full-name search over locations(). */
+    public LocationIndex locationIndex() {
+        return locationIndex;
     }
-    public void conncetthemall(HashMap<Double, GraphNode> connect, double id, GraphNode temp) {
-        connect.put(id, temp);
+
+    /**
+     * The graph with its chains of shape points collapsed: the one stored in the snapshot this
+     * was mapped from, or else a new one, which takes a pass over the whole graph.
+     */
+    public SimplifiedGraph simplified() {
+        return simplified != null ? simplified : new SimplifiedGraph(graph);
+    }
+
+    /** Returns the vertex closest to (lon, lat), or -1 if the graph is empty. */
+    public int closest(double lon, double lat) {
+        return nodeIndex.nearest(lon, lat);
     }
 
     public GraphDB(String dbPath) {
+        this(parse(dbPath));
+    }
+
+    /** Keeps only the main road network of what was parsed; see pruned(). */
+    private GraphDB(MapDBHandler parsed) {
+        this(pruned(parsed.graph()), parsed.locations());
+    }
+
+    private GraphDB(RoadGraph graph, Locations locations) {
+        this(graph, new KdTree(graph), locations, null);
+    }
+
+    /**
+     * Wraps a graph that has already been built, such as one mapped by GraphSnapshot.
+     * @param simplified The simplification of graph, or null to build it when asked.
+     */
+    GraphDB(RoadGraph graph, KdTree nodeIndex, Locations locations,
+            SimplifiedGraph simplified) {
+        this.graph = graph;
+        this.simplified = simplified;
+        this.nodeIndex = nodeIndex;
+        this.locations = locations;
+        this.prefixIndex = new PrefixIndex(locations);
+        this.locationIndex = new LocationIndex(locations);
+    }
+
+    /**
+     * Parse the OSM file at <code>dbPath</code>, as PBF if its name ends in .pbf and as XML
+     * otherwise; an unreadable file gives an empty map.
+     */
+    private static MapDBHandler parse(String dbPath) {
+        MapDBHandler maphandler = new MapDBHandler();
         try {
             File inputFile = new File(dbPath);
+            if (dbPath.endsWith(".pbf")) {
+                PbfReader.read(inputFile, maphandler);
+                return maphandler;
+            }
             SAXParserFactory factory = SAXParserFactory.newInstance();
             SAXParser saxParser = factory.newSAXParser();
-            MapDBHandler maphandler = new MapDBHandler(this);
             saxParser.parse(inputFile, maphandler);
+            return maphandler;
         } catch (ParserConfigurationException | SAXException | IOException e) {
             e.printStackTrace();
         }
+        maphandler = new MapDBHandler();
+        maphandler.endDocument();
+        return maphandler;
+    }
 
+    /**
+     * Loads the graph from the snapshot at <code>snapshotPath</code> when there is one that is
+     * at least as new as the XML, and otherwise parses the XML at <code>dbPath</code>.
+     * @param snapshotPath Path to a file written by GraphSnapshot.
+     * @param dbPath Path to the OSM XML or PBF file to be parsed.
+     */
+    public static GraphDB open(String snapshotPath, String dbPath) {
+        File snapshot = new File(snapshotPath);
+        File xml = new File(dbPath);
+        if (snapshot.isFile() && (!xml.exists() || snapshot.lastModified() >= xml.lastModified())) {
+            try {
+                return GraphSnapshot.read(snapshot.toPath());
+            } catch (IOException e) {
+                System.out.println("Could not read graph snapshot, parsing XML: "
+                        + e.getMessage());
+            }
+        }
+        return new GraphDB(dbPath);
+    }
+
+    /**
+     * Parses an OSM file and prints how much memory its graph takes and how far pruning and
+     * simplification shrink it.
+     * @param args The path of the OSM XML file.
+     */
+    public static void main(String[] args) {
+        RoadGraph parsed = parse(args.length > 0 ? args[0] : "berkeley.osm").graph();
+        RoadGraph graph = pruned(parsed);
+        System.out.printf("Pruned %d of %d vertices outside the largest component%n",
+                parsed.size() - graph.size(), parsed.size());
+        System.out.println(graph.memoryReport());
+        System.out.println(new SimplifiedGraph(graph).report());
     }
 
     /**
      * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
+     * Keeps only ASCII letters, lowercased, and spaces. A string that is already clean is
+     * returned as it is, without copying.
      * @param s Input string.
      * @return Cleaned string.
      */
     static String cleanString(String s) {
-        return s.replaceAll("[^a-zA-Z ]", "").toLowerCase();
+        int n = s.length();
+        int i = 0;
+        while (i < n && isClean(s.charAt(i))) {
+            i++;
+        }
+        if (i == n) {
+            return s;
+        }
+        char[] cleaned = new char[n];
+        s.getChars(0, i, cleaned, 0);
+        int length = i;
+        for (; i < n; i++) {
+            char c = s.charAt(i);
+            if (isClean(c)) {
+                cleaned[length++] = c;
+            } else if (c >= 'A' && c <= 'Z') {
+                cleaned[length++] = (char) (c + ('a' - 'A'));
+            }
+        }
+        return new String(cleaned, 0, length);
+    }
+
+    private static boolean isClean(char c) {
+        return c >= 'a' && c <= 'z' || c == ' ';
     }
 
     /**
-     *  Remove nodes with no connections from the graph.
-     *  While this does not guarantee that any two nodes in the remaining graph are connected,
-     *  we can reasonably assume this since typically roads are connected.
+     * Remove the vertices that cannot reach the main road network, such as parking lots and
+     * private roads mapped without their connection. A query point near one would otherwise
+     * snap to it and find no route.
      */
-
+    static RoadGraph pruned(RoadGraph parsed) {
+        return parsed.largestComponent();
+    }
 }
@@ -0,0 +1,341 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the routable graph of a GraphDB as a versioned binary file, so the server can
+ * start by memory-mapping it instead of parsing the OSM XML. All values are little-endian.
+ * <p>
+ *     The file is a 64 byte header followed by the payload:
+ *     <ul>
+ *         <li>header: magic, version, vertex count, edge count, payload length, the CRC-32
+ *         of the payload and the number of named places. ContractionHierarchy files share this
+ *         header.</li>
+ *         <li>payload: OSM ids, latitudes and longitudes per vertex; CSR offsets, targets and
+ *         edge lengths; the KdTree layout; the SimplifiedGraph, as the sizes of its core, chains
+ *         and shape points, the core laid out like the graph and then its own arrays; then ids,
+ *         latitudes and longitudes per place, the offsets of their names and the names in
+ *         UTF-8. Each section starts on an 8 byte boundary.</li>
+ *     </ul>
+ * </p>
+ * Compile a snapshot offline with <code>java GraphSnapshot berkeley.osm berkeley.graph</code>.
+ */
+public class GraphSnapshot {
+    /**
+     * Bumped whenever the layout of the file or the graph written to it changes; older files
+     * are rejected and the map parsed again. Version 3 graphs hold only the largest component;
+     * version 4 adds the simplified graph, so a mapped start does no simplification.
+     */
+    static final int VERSION = 4;
+    private static final long MAGIC = 0x0048504152474d42L; // "BMGRAPH\0"
+    static final int HEADER_BYTES = 64;
+
+    /**
+     * Write the graph and node index of <code>db</code> to <code>path</code>. The file is
+     * written next to its destination and moved into place, so a running server never maps a
+     * half-written snapshot. The graph is simplified here, once, for every server that maps it.
+     */
+    public static void write(GraphDB db, Path path) throws IOException {
+        RoadGraph graph = db.graph();
+        int n = graph.size();
+        int m = graph.edgeCount();
+        Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), "graph", ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            CRC32 crc = new CRC32();
+            out.position(HEADER_BYTES);
+            long payload = writeGraph(out, graph, crc);
+            ByteBuffer section = allocate(4L * n);
+            section.asIntBuffer().put(db.nodeIndex().layout());
+            payload += writeSection(out, section, crc);
+
+            SimplifiedGraph simplified = db.simplified();
+            RoadGraph core = simplified.core();
+            section = allocate(16);
+            section.asIntBuffer().put(new int[] {core.size(), core.edgeCount(),
+                    simplified.chainFrom().length, simplified.shapes().length});
+            payload += writeSection(out, section, crc);
+            payload += writeGraph(out, core, crc);
+            for (int[] ints : new int[][] {simplified.graphOf(), simplified.chainFrom(),
+                    simplified.chainTo(), simplified.chainStart(), simplified.shapes()}) {
+                section = allocate(4L * ints.length);
+                section.asIntBuffer().put(ints);
+                payload += writeSection(out, section, crc);
+            }
+            for (double[] doubles : new double[][] {simplified.along(),
+                    simplified.chainLength()}) {
+                section = allocate(8L * doubles.length);
+                section.asDoubleBuffer().put(doubles);
+                payload += writeSection(out, section, crc);
+            }
+            section = allocate(4L * core.edgeCount());
+            section.asIntBuffer().put(simplified.edgeChain());
+            payload += writeSection(out, section, crc);
+
+            Locations places = db.locations();
+            int p = places.size();
+            ByteBuffer ids = allocate(8L * p);
+            ByteBuffer lats = allocate(8L * p);
+            ByteBuffer lons = allocate(8L * p);
+            ByteBuffer offsets = allocate(4L * (p + 1));
+            ByteArrayOutputStream names = new ByteArrayOutputStream();
+            for (int i = 0; i < p; i++) {
+                ids.putLong(places.id(i));
+                lats.putDouble(places.lat(i));
+                lons.putDouble(places.lon(i));
+                offsets.putInt(names.size());
+                byte[] name = places.name(i).getBytes(StandardCharsets.UTF_8);
+                names.write(name, 0, name.length);
+            }
+            offsets.putInt(names.size());
+            for (ByteBuffer placeSection : new ByteBuffer[] {ids, lats, lons, offsets}) {
+                ((Buffer) placeSection).clear();
+                payload += writeSection(out, placeSection, crc);
+            }
+            section = allocate(names.size());
+            section.put(names.toByteArray());
+            ((Buffer) section).clear();
+            payload += writeSection(out, section, crc);
+
+            writeHeader(out, MAGIC, VERSION, n, m, payload, crc, p);
+            out.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Map the snapshot at <code>path</code> and wrap it in a GraphDB whose graph reads directly
+     * from the mapped file.
+     * @throws IOException If the file cannot be read, is of another version, or fails its
+     * checksum.
+     */
+    public static GraphDB read(Path path) throws IOException {
+        ByteBuffer file = map(path, MAGIC, VERSION, "graph snapshot");
+        int n = file.getInt(12);
+        int m = file.getInt(16);
+
+        long at = HEADER_BYTES;
+        RoadGraph graph = readGraph(file, at, n, m);
+        at += graphBytes(n, m);
+        ByteBuffer layout = slice(file, at, 4L * n);
+        at += padded(4L * n);
+
+        IntBuffer sizes = slice(file, at, 16).asIntBuffer();
+        at += 16;
+        int coreSize = sizes.get(0);
+        int coreEdges = sizes.get(1);
+        int chains = sizes.get(2);
+        int shapeCount = sizes.get(3);
+        RoadGraph core = readGraph(file, at, coreSize, coreEdges);
+        at += graphBytes(coreSize, coreEdges);
+        int[] lengths = {coreSize, chains, chains, chains + 1, shapeCount};
+        int[][] ints = new int[lengths.length][];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = new int[lengths[i]];
+            slice(file, at, 4L * lengths[i]).asIntBuffer().get(ints[i]);
+            at += padded(4L * lengths[i]);
+        }
+        double[] along = new double[shapeCount];
+        slice(file, at, 8L * shapeCount).asDoubleBuffer().get(along);
+        at += padded(8L * shapeCount);
+        double[] chainLength = new double[chains];
+        slice(file, at, 8L * chains).asDoubleBuffer().get(chainLength);
+        at += padded(8L * chains);
+        int[] edgeChain = new int[coreEdges];
+        slice(file, at, 4L * coreEdges).asIntBuffer().get(edgeChain);
+        at += padded(4L * coreEdges);
+        SimplifiedGraph simplified = new SimplifiedGraph(graph, core, ints[0], ints[1], ints[2],
+                ints[3], ints[4], along, chainLength, edgeChain);
+
+        return new GraphDB(graph, new KdTree(graph, layout.asIntBuffer()),
+                readLocations(file, at, (int) file.getLong(40)), simplified);
+    }
+
+    /** Write the vertex and CSR sections of a graph, returning the bytes written. */
+    private static long writeGraph(FileChannel out, RoadGraph graph, CRC32 crc)
+            throws IOException {
+        int n = graph.size();
+        int m = graph.edgeCount();
+        ByteBuffer section = allocate(8L * n);
+        section.asLongBuffer().put(graph.ids());
+        long payload = writeSection(out, section, crc);
+        section = allocate(8L * n);
+        section.asDoubleBuffer().put(graph.lats());
+        payload += writeSection(out, section, crc);
+        section = allocate(8L * n);
+        section.asDoubleBuffer().put(graph.lons());
+        payload += writeSection(out, section, crc);
+        section = allocate(4L * (n + 1));
+        section.asIntBuffer().put(graph.offsets());
+        payload += writeSection(out, section, crc);
+        section = allocate(4L * m);
+        section.asIntBuffer().put(graph.targets());
+        payload += writeSection(out, section, crc);
+        section = allocate(4L * m);
+        section.asFloatBuffer().put(graph.lengths());
+        payload += writeSection(out, section, crc);
+        return payload;
+    }
+
+    /** A graph of writeGraph() read straight from the mapped file at <code>at</code>. */
+    private static RoadGraph readGraph(ByteBuffer file, long at, int n, int m) {
+        ByteBuffer ids = slice(file, at, 8L * n);
+        at += padded(8L * n);
+        ByteBuffer lat = slice(file, at, 8L * n);
+        at += padded(8L * n);
+        ByteBuffer lon = slice(file, at, 8L * n);
+        at += padded(8L * n);
+        ByteBuffer offsets = slice(file, at, 4L * (n + 1));
+        at += padded(4L * (n + 1));
+        ByteBuffer targets = slice(file, at, 4L * m);
+        at += padded(4L * m);
+        ByteBuffer lengths = slice(file, at, 4L * m);
+        return new RoadGraph(ids.asLongBuffer(), lat.asDoubleBuffer(), lon.asDoubleBuffer(),
+                offsets.asIntBuffer(), targets.asIntBuffer(), lengths.asFloatBuffer());
+    }
+
+    /** The bytes writeGraph() takes for <code>n</code> vertices and <code>m</code> edges. */
+    private static long graphBytes(int n, int m) {
+        return 3 * padded(8L * n) + padded(4L * (n + 1)) + 2 * padded(4L * m);
+    }
+
+    /** The <code>p</code> named places stored from <code>at</code> on. */
+    private static Locations readLocations(ByteBuffer file, long at, int p) {
+        long[] ids = new long[p];
+        double[] lats = new double[p];
+        double[] lons = new double[p];
+        String[] names = new String[p];
+        slice(file, at, 8L * p).asLongBuffer().get(ids);
+        at += padded(8L * p);
+        slice(file, at, 8L * p).asDoubleBuffer().get(lats);
+        at += padded(8L * p);
+        slice(file, at, 8L * p).asDoubleBuffer().get(lons);
+        at += padded(8L * p);
+        int[] offsets = new int[p + 1];
+        slice(file, at, 4L * (p + 1)).asIntBuffer().get(offsets);
+        at += padded(4L * (p + 1));
+        byte[] bytes = new byte[offsets[p]];
+        slice(file, at, bytes.length).get(bytes);
+        for (int i = 0; i < p; i++) {
+            names[i] = new String(bytes, offsets[i], offsets[i + 1] - offsets[i],
+                    StandardCharsets.UTF_8);
+        }
+        return new Locations(ids, lats, lons, names);
+    }
+
+    /**
+     * Fill in the header shared by the binary files of this project: magic, version, two
+     * counts, payload length and CRC-32, plus one long of file-specific data at offset 40.
+     */
+    static void writeHeader(FileChannel out, long magic, int version, int n, int m,
+                            long payload, CRC32 crc, long extra) throws IOException {
+        ByteBuffer header = allocate(HEADER_BYTES);
+        header.putLong(magic).putInt(version).putInt(n).putInt(m).putInt(0)
+                .putLong(payload).putLong(crc.getValue()).putLong(extra);
+        ((Buffer) header).clear();
+        out.position(0);
+        while (header.hasRemaining()) {
+            out.write(header);
+        }
+    }
+
+    /**
+     * Map a file written with writeHeader() and check its magic, version, length and checksum.
+     * @param what What the file should be, for error messages.
+     * @return The whole file, with the payload starting at offset 64.
+     */
+    static ByteBuffer map(Path path, long magic, int version, String what) throws IOException {
+        MappedByteBuffer file;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            file = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        }
+        file.order(ByteOrder.LITTLE_ENDIAN);
+        if (file.capacity() < HEADER_BYTES || file.getLong(0) != magic) {
+            throw new IOException(path + " is not a " + what + ".");
+        }
+        int fileVersion = file.getInt(8);
+        if (fileVersion != version) {
+            throw new IOException(path + " has " + what + " version " + fileVersion
+                    + ", expected " + version + ".");
+        }
+        long payload = file.getLong(24);
+        if (HEADER_BYTES + payload != file.capacity()) {
+            throw new IOException(path + " is truncated.");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(slice(file, HEADER_BYTES, payload));
+        if (crc.getValue() != file.getLong(32)) {
+            throw new IOException(path + " failed its checksum.");
+        }
+        return file;
+    }
+
+    /** A little-endian buffer for one section, padded to 8 bytes. */
+    static ByteBuffer allocate(long bytes) {
+        return ByteBuffer.allocate((int) padded(bytes)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static long padded(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /** Write a section at the channel's position and fold it into the checksum. */
+    static long writeSection(FileChannel out, ByteBuffer section, CRC32 crc)
+            throws IOException {
+        crc.update(section.duplicate());
+        while (section.hasRemaining()) {
+            out.write(section);
+        }
+        return section.capacity();
+    }
+
+    /** A little-endian view of <code>length</code> bytes of a mapped file. */
+    static ByteBuffer slice(ByteBuffer file, long offset, long length) {
+        ByteBuffer dup = file.duplicate();
+        ((Buffer) dup).limit((int) (offset + length));
+        ((Buffer) dup).position((int) offset);
+        return dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Compile an OSM XML file into a snapshot.
+     * @param args The OSM file to read and the snapshot file to write.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java GraphSnapshot <input.osm> <output.graph>");
+            System.exit(1);
+        }
+        if (!new File(args[0]).isFile()) {
+            System.err.println("No such file: " + args[0]);
+            System.exit(1);
+        }
+        long start = System.nanoTime();
+        GraphDB db = new GraphDB(args[0]);
+        long parsed = System.nanoTime();
+        write(db, Paths.get(args[1]));
+        long written = System.nanoTime();
+        read(Paths.get(args[1]));
+        long mapped = System.nanoTime();
+        System.out.println(db.graph().memoryReport());
+        System.out.printf("Parsed XML in %.1f ms, wrote snapshot in %.1f ms, "
+                + "mapped it back in %.1f ms%n", (parsed - start) / 1e6,
+                (written - parsed) / 1e6, (mapped - written) / 1e6);
+    }
+}
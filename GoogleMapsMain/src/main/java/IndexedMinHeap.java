@@ -0,0 +1,113 @@
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of int items in <code>[0, capacity)</code> ordered by double keys. Each item
+ * remembers its position in the heap, so its key can be decreased in place instead of pushing a
+ * duplicate entry.
+ */
+public class IndexedMinHeap {
+    private final int[] heap;
+    private final double[] keys;
+    /** Position of each item in heap, or -1 if it is not queued. */
+    private final int[] position;
+    private int size;
+
+    public IndexedMinHeap(int capacity) {
+        heap = new int[capacity];
+        keys = new double[capacity];
+        position = new int[capacity];
+        Arrays.fill(position, -1);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int item) {
+        return position[item] >= 0;
+    }
+
+    /** The smallest key in the heap; only valid when the heap is not empty. */
+    public double peekKey() {
+        return keys[heap[0]];
+    }
+
+    /** Insert <code>item</code>, or lower its key if it is already queued with a larger one. */
+    public void push(int item, double key) {
+        int i = position[item];
+        if (i < 0) {
+            i = size++;
+            heap[i] = item;
+            position[item] = i;
+        } else if (key >= keys[item]) {
+            return;
+        }
+        keys[item] = key;
+        siftUp(i);
+    }
+
+    /** Remove and return the item with the smallest key. */
+    public int poll() {
+        int top = heap[0];
+        position[top] = -1;
+        size--;
+        if (size > 0) {
+            int last = heap[size];
+            heap[0] = last;
+            position[last] = 0;
+            siftDown(0);
+        }
+        return top;
+    }
+
+    /** Empty the heap in time proportional to its current size. */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            position[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    private void siftUp(int i) {
+        int item = heap[i];
+        double key = keys[item];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            int p = heap[parent];
+            if (keys[p] <= key) {
+                break;
+            }
+            heap[i] = p;
+            position[p] = i;
+            i = parent;
+        }
+        heap[i] = item;
+        position[item] = i;
+    }
+
+    private void siftDown(int i) {
+        int item = heap[i];
+        double key = keys[item];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int c = heap[child];
+            if (child + 1 < size && keys[heap[child + 1]] < keys[c]) {
+                child++;
+                c = heap[child];
+            }
+            if (key <= keys[c]) {
+                break;
+            }
+            heap[i] = c;
+            position[c] = i;
+            i = child;
+        }
+        heap[i] = item;
+        position[item] = i;
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * What can be reached within a road distance of an origin. reachable() runs Dijkstra from the
+ * origin and stops at the first vertex past the budget, so it settles only the vertices it
+ * returns; hull() outlines them for drawing.
+ * <p>
+ *     Budgets are in metres, as people ask for them, so the search is the metre-weighted one of
+ *     a DistanceTable, bounded by the budget instead of by a set of targets. Made from the
+ *     server's table, an isochrone adds no edge lengths or search state of its own.
+ * </p>
+ */
+public class Isochrone {
+    private final RoadGraph graph;
+    private final DistanceTable table;
+
+    /** Isochrones searched by <code>table</code>, on its graph. */
+    public Isochrone(DistanceTable table) {
+        this.graph = table.graph();
+        this.table = table;
+    }
+
+    public Isochrone(RoadGraph graph) {
+        this(new DistanceTable(graph));
+    }
+
+    public RoadGraph graph() {
+        return graph;
+    }
+
+    /**
+     * The vertices at most <code>budget</code> metres of road from <code>origin</code>, nearest
+     * first. The origin itself comes first for any budget of at least zero.
+     */
+    public int[] reachable(int origin, double budget) {
+        if (!(budget >= 0)) {
+            return new int[0];
+        }
+        IntStream.Builder found = IntStream.builder();
+        table.search(origin, null, budget, found);
+        return found.build().toArray();
+    }
+
+    /**
+     * The convex hull of <code>vertices</code> in the lon/lat plane, as the vertices on it in
+     * counterclockwise order, by Andrew's monotone chain. Collinear points are left out; one or
+     * two vertices are their own hull. A city is small enough to treat degrees as flat.
+     */
+    public int[] hull(int[] vertices) {
+        Integer[] sorted = new Integer[vertices.length];
+        for (int i = 0; i < vertices.length; i++) {
+            sorted[i] = vertices[i];
+        }
+        Arrays.sort(sorted, (a, b) -> graph.lon(a) != graph.lon(b)
+                ? Double.compare(graph.lon(a), graph.lon(b))
+                : Double.compare(graph.lat(a), graph.lat(b)));
+        int n = sorted.length;
+        if (n < 3) {
+            int[] small = new int[n];
+            for (int i = 0; i < n; i++) {
+                small[i] = sorted[i];
+            }
+            return small;
+        }
+        int[] hull = new int[2 * n];
+        int k = 0;
+        /* The lower chain left to right, then the upper chain back. */
+        for (int i = 0; i < n; i++) {
+            while (k >= 2 && cross(hull[k - 2], hull[k - 1], sorted[i]) <= 0) {
+                k--;
+            }
+            hull[k++] = sorted[i];
+        }
+        for (int i = n - 2, lower = k + 1; i >= 0; i--) {
+            while (k >= lower && cross(hull[k - 2], hull[k - 1], sorted[i]) <= 0) {
+                k--;
+            }
+            hull[k++] = sorted[i];
+        }
+        /* The last point repeats the first. */
+        return Arrays.copyOf(hull, Math.max(1, k - 1));
+    }
+
+    /** Positive when o, a, b turn counterclockwise. */
+    private double cross(int o, int a, int b) {
+        return (graph.lon(a) - graph.lon(o)) * (graph.lat(b) - graph.lat(o))
+                - (graph.lat(a) - graph.lat(o)) * (graph.lon(b) - graph.lon(o));
+    }
+}
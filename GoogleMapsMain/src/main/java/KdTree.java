@@ -0,0 +1,238 @@
+import java.nio.IntBuffer;
+
+/**
+ * A static 2-d tree over the vertices of a <code>RoadGraph</code>, used to snap query points to
+ * their closest routable node. The tree is implicit: after construction the points are laid out
+ * so that the median of every range <code>[lo, hi)</code> sits at <code>(lo + hi) / 2</code>,
+ * split on longitude at even depths and latitude at odd depths. Queries walk that layout
+ * directly and allocate nothing.
+ */
+public class KdTree {
+    private final int[] vertex;
+    private final double[] lon;
+    private final double[] lat;
+
+    public KdTree(RoadGraph graph) {
+        int n = graph.size();
+        vertex = new int[n];
+        lon = new double[n];
+        lat = new double[n];
+        for (int v = 0; v < n; v++) {
+            vertex[v] = v;
+            lon[v] = graph.lon(v);
+            lat[v] = graph.lat(v);
+        }
+        build(0, n, 0);
+    }
+
+    /**
+     * Rebuilds a tree from a layout previously returned by layout(), skipping the sort.
+     * @param graph The graph the layout was computed for.
+     * @param layout The vertices in tree order.
+     */
+    KdTree(RoadGraph graph, IntBuffer layout) {
+        int n = graph.size();
+        vertex = new int[n];
+        lon = new double[n];
+        lat = new double[n];
+        layout.duplicate().get(vertex);
+        for (int i = 0; i < n; i++) {
+            lon[i] = graph.lon(vertex[i]);
+            lat[i] = graph.lat(vertex[i]);
+        }
+    }
+
+    /** The vertices in tree order, for GraphSnapshot. */
+    IntBuffer layout() {
+        return IntBuffer.wrap(vertex).asReadOnlyBuffer();
+    }
+
+    public int size() {
+        return vertex.length;
+    }
+
+    private void build(int lo, int hi, int depth) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, depth & 1);
+        build(lo, mid, depth + 1);
+        build(mid + 1, hi, depth + 1);
+    }
+
+    /** Quickselect so that position k holds the element it would hold if [lo, hi] were sorted. */
+    private void select(int lo, int hi, int k, int axis) {
+        double[] key = axis == 0 ? lon : lat;
+        while (hi > lo) {
+            double pivot = key[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (key[i] < pivot) {
+                    i++;
+                }
+                while (key[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        int v = vertex[i];
+        vertex[i] = vertex[j];
+        vertex[j] = v;
+        double x = lon[i];
+        lon[i] = lon[j];
+        lon[j] = x;
+        double y = lat[i];
+        lat[i] = lat[j];
+        lat[j] = y;
+    }
+
+    /**
+     * Returns the vertex closest to (lon, lat) by euclidean distance in degrees, or -1 if the
+     * tree is empty.
+     */
+    public int nearest(double qlon, double qlat) {
+        if (vertex.length == 0) {
+            return -1;
+        }
+        return vertex[nearestPosition(0, vertex.length, 0, qlon, qlat, -1)];
+    }
+
+    /**
+     * Recursive nearest-neighbour search over the range [lo, hi). The best candidate so far is
+     * threaded through as a position in the layout, so no state object is needed.
+     */
+    private int nearestPosition(int lo, int hi, int depth, double qlon, double qlat, int best) {
+        if (lo >= hi) {
+            return best;
+        }
+        int mid = (lo + hi) >>> 1;
+        double d = squared(mid, qlon, qlat);
+        if (best < 0 || d < squared(best, qlon, qlat)) {
+            best = mid;
+        }
+        double diff = (depth & 1) == 0 ? qlon - lon[mid] : qlat - lat[mid];
+        if (diff < 0) {
+            best = nearestPosition(lo, mid, depth + 1, qlon, qlat, best);
+            if (diff * diff < squared(best, qlon, qlat)) {
+                best = nearestPosition(mid + 1, hi, depth + 1, qlon, qlat, best);
+            }
+        } else {
+            best = nearestPosition(mid + 1, hi, depth + 1, qlon, qlat, best);
+            if (diff * diff < squared(best, qlon, qlat)) {
+                best = nearestPosition(lo, mid, depth + 1, qlon, qlat, best);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Finds the k vertices closest to (lon, lat). The results are written to
+     * <code>out</code> in increasing order of distance, with the matching euclidean distances
+     * in <code>dist</code>; both must have room for k entries.
+     * @return The number of vertices found, which is less than k only for small graphs, and 0
+     * when k is not positive.
+     */
+    public int nearest(double qlon, double qlat, int k, int[] out, double[] dist) {
+        if (k <= 0) {
+            return 0;
+        }
+        int found = nearestK(0, vertex.length, 0, qlon, qlat, k, out, dist, 0);
+        /* out/dist hold a max-heap on squared distance; sort it in place. */
+        for (int end = found - 1; end > 0; end--) {
+            swapHeap(out, dist, 0, end);
+            siftDown(out, dist, 0, end);
+        }
+        for (int i = 0; i < found; i++) {
+            out[i] = vertex[out[i]];
+            dist[i] = Math.sqrt(dist[i]);
+        }
+        return found;
+    }
+
+    private int nearestK(int lo, int hi, int depth, double qlon, double qlat, int k,
+                         int[] heap, double[] dist, int size) {
+        if (lo >= hi) {
+            return size;
+        }
+        int mid = (lo + hi) >>> 1;
+        double d = squared(mid, qlon, qlat);
+        if (size < k) {
+            heap[size] = mid;
+            dist[size] = d;
+            siftUp(heap, dist, size);
+            size++;
+        } else if (d < dist[0]) {
+            heap[0] = mid;
+            dist[0] = d;
+            siftDown(heap, dist, 0, size);
+        }
+        double diff = (depth & 1) == 0 ? qlon - lon[mid] : qlat - lat[mid];
+        int near = diff < 0 ? lo : mid + 1;
+        int nearEnd = diff < 0 ? mid : hi;
+        int far = diff < 0 ? mid + 1 : lo;
+        int farEnd = diff < 0 ? hi : mid;
+        size = nearestK(near, nearEnd, depth + 1, qlon, qlat, k, heap, dist, size);
+        if (size < k || diff * diff < dist[0]) {
+            size = nearestK(far, farEnd, depth + 1, qlon, qlat, k, heap, dist, size);
+        }
+        return size;
+    }
+
+    private static void siftUp(int[] heap, double[] dist, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (dist[parent] >= dist[i]) {
+                return;
+            }
+            swapHeap(heap, dist, parent, i);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, double[] dist, int i, int size) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && dist[child + 1] > dist[child]) {
+                child++;
+            }
+            if (dist[i] >= dist[child]) {
+                return;
+            }
+            swapHeap(heap, dist, i, child);
+            i = child;
+        }
+    }
+
+    private static void swapHeap(int[] heap, double[] dist, int i, int j) {
+        int h = heap[i];
+        heap[i] = heap[j];
+        heap[j] = h;
+        double d = dist[i];
+        dist[i] = dist[j];
+        dist[j] = d;
+    }
+
+    private double squared(int i, double qlon, double qlat) {
+        double dlon = lon[i] - qlon;
+        double dlat = lat[i] - qlat;
+        return dlon * dlon + dlat * dlat;
+    }
+}
@@ -0,0 +1,230 @@
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * A Router running A* with the ALT heuristic (A*, landmarks and the triangle inequality). A few
+ * landmark vertices are chosen around the edge of the graph and the road distance from each of
+ * them to every vertex is precomputed. For any landmark L, |d(L, t) - d(L, v)| is a lower bound
+ * on d(v, t), and the largest of those bounds is usually far tighter than the straight line.
+ * <p>
+ *     Unlike a ContractionHierarchy, preprocessing is just one Dijkstra per landmark, run in
+ *     parallel, so it is cheap enough to redo whenever the graph is reloaded. The tables cost
+ *     4 bytes per vertex per landmark.
+ * </p>
+ */
+public class LandmarkRouter implements Router {
+    /** The most entries an array can hold on every JVM, and so the most the tables can. */
+    static final int MAX_TABLE_ENTRIES = Integer.MAX_VALUE - 8;
+
+    private final RoadGraph graph;
+    private final int[] landmarks;
+    /** Distance from landmark l to vertex v at [v * landmarks.length + l]; infinite if none. */
+    private final float[] distances;
+    /** Bound on the float rounding error of a difference of two table entries. */
+    private final double slack;
+    private final ThreadLocal<SearchState> states;
+
+    /**
+     * Select up to <code>count</code> landmarks and compute their distance tables, several
+     * landmarks at once on the common fork-join pool. On a graph too large for
+     * <code>count</code> tables in one array, fewer landmarks are selected; see
+     * landmarkCount().
+     */
+    public LandmarkRouter(RoadGraph graph, int count) {
+        this.graph = graph;
+        this.landmarks = selectLandmarks(graph, landmarkCount(graph.size(), count));
+        int k = landmarks.length;
+        int n = graph.size();
+        float[][] rows = new float[k][];
+        IntStream.range(0, k).parallel()
+                .forEach(l -> rows[l] = distancesFrom(graph, landmarks[l]));
+        distances = new float[n * k];
+        float max = 0;
+        for (int l = 0; l < k; l++) {
+            for (int v = 0; v < n; v++) {
+                float d = rows[l][v];
+                distances[v * k + l] = d;
+                if (d != Float.POSITIVE_INFINITY) {
+                    max = Math.max(max, d);
+                }
+            }
+        }
+        slack = 2 * Math.ulp(max);
+        states = ThreadLocal.withInitial(() -> new SearchState(n));
+    }
+
+    /**
+     * How many of <code>count</code> landmarks the tables of a graph of <code>n</code> vertices
+     * have room for: no more than there are vertices, and few enough that n times the count,
+     * worked out in long, fits in one array, so no table index overflows an int.
+     */
+    static int landmarkCount(int n, int count) {
+        int fits = n == 0 ? 0 : (int) Math.min(count, MAX_TABLE_ENTRIES / (long) n);
+        if (fits < Math.min(count, n)) {
+            System.out.println("Only " + fits + " of " + count + " landmarks fit the tables of "
+                    + n + " vertices.");
+        }
+        return Math.min(fits, n);
+    }
+
+    @Override
+    public RoadGraph graph() {
+        return graph;
+    }
+
+    /** The landmark vertices, in the order they were selected. */
+    public int[] landmarks() {
+        return landmarks.clone();
+    }
+
+    /**
+     * A lower bound on the road distance from <code>v</code> to <code>t</code>: the larger of the
+     * straight line and the landmark bounds, less the rounding slack of the float tables.
+     */
+    public double lowerBound(int v, int t) {
+        int k = landmarks.length;
+        double best = 0;
+        for (int l = 0; l < k; l++) {
+            float dv = distances[v * k + l];
+            float dt = distances[t * k + l];
+            if (dv != Float.POSITIVE_INFINITY && dt != Float.POSITIVE_INFINITY) {
+                best = Math.max(best, Math.abs(dt - dv));
+            }
+        }
+        return Math.max(best - slack, graph.distance(v, t));
+    }
+
+    @Override
+    public int[] route(int source, int target) {
+        return route(new int[] {source}, AStarRouter.NO_COST, new int[] {target},
+                AStarRouter.NO_COST);
+    }
+
+    /**
+     * A* from every source at once, bounded by the least over the targets of lowerBound() plus
+     * the target's cost. The landmark bound is admissible but, after rounding, not always
+     * exactly consistent, so a settled vertex is reopened if a shorter path to it turns up, and
+     * the search runs until no queued key beats the best route found.
+     */
+    @Override
+    public int[] route(int[] sources, double[] sourceCosts, int[] targets,
+                       double[] targetCosts) {
+        SearchState state = states.get();
+        state.reset();
+        IndexedMinHeap heap = state.heap;
+        for (int i = 0; i < sources.length; i++) {
+            if (sourceCosts[i] < state.dist(sources[i])) {
+                state.reach(sources[i], sourceCosts[i], -1);
+                heap.push(sources[i], sourceCosts[i] + bound(sources[i], targets, targetCosts));
+            }
+        }
+        double best = Double.POSITIVE_INFINITY;
+        int end = -1;
+        while (!heap.isEmpty() && heap.peekKey() < best) {
+            int u = heap.poll();
+            state.settle(u);
+            double du = state.dist(u);
+            for (int j = 0; j < targets.length; j++) {
+                if (targets[j] == u && du + targetCosts[j] < best) {
+                    best = du + targetCosts[j];
+                    end = u;
+                }
+            }
+            for (int e = graph.firstEdge(u); e < graph.endEdge(u); e++) {
+                int w = graph.target(e);
+                double dw = du + graph.length(e);
+                if (dw < state.dist(w)) {
+                    state.reach(w, dw, u);
+                    heap.push(w, dw + bound(w, targets, targetCosts));
+                }
+            }
+        }
+        return end < 0 ? new int[0] : state.path(end);
+    }
+
+    private double bound(int v, int[] targets, double[] targetCosts) {
+        double best = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < targets.length; j++) {
+            best = Math.min(best, lowerBound(v, targets[j]) + targetCosts[j]);
+        }
+        return best;
+    }
+
+    @Override
+    public int lastSettledCount() {
+        return states.get().settledCount();
+    }
+
+    /**
+     * Farthest-point selection on the map: start from the vertex farthest from the centre, then
+     * repeatedly add the vertex whose straight-line distance to its nearest landmark is largest.
+     * This spreads the landmarks around the boundary, where their bounds are tightest, without
+     * a shortest path search per pick, so the tables can then be built in parallel.
+     */
+    static int[] selectLandmarks(RoadGraph graph, int count) {
+        int n = graph.size();
+        int[] selected = new int[Math.max(0, count)];
+        if (selected.length == 0) {
+            return selected;
+        }
+        double clon = 0;
+        double clat = 0;
+        for (int v = 0; v < n; v++) {
+            clon += graph.lon(v);
+            clat += graph.lat(v);
+        }
+        clon /= n;
+        clat /= n;
+        /* The first landmark is the vertex farthest from the centre. */
+        int next = 0;
+        double farthest = -1;
+        for (int v = 0; v < n; v++) {
+            double d = RoadGraph.distance(graph.lon(v), graph.lat(v), clon, clat);
+            if (d > farthest) {
+                farthest = d;
+                next = v;
+            }
+        }
+        double[] nearest = new double[n];
+        Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+        for (int i = 0; i < selected.length; i++) {
+            int l = next;
+            selected[i] = l;
+            farthest = -1;
+            for (int v = 0; v < n; v++) {
+                nearest[v] = Math.min(nearest[v], graph.distance(v, l));
+                if (nearest[v] > farthest) {
+                    farthest = nearest[v];
+                    next = v;
+                }
+            }
+        }
+        return selected;
+    }
+
+    /** Dijkstra from <code>source</code> over the whole graph. */
+    private static float[] distancesFrom(RoadGraph graph, int source) {
+        SearchState state = new SearchState(graph.size());
+        state.reset();
+        state.reach(source, 0, -1);
+        state.heap.push(source, 0);
+        while (!state.heap.isEmpty()) {
+            int u = state.heap.poll();
+            state.settle(u);
+            double du = state.dist(u);
+            for (int e = graph.firstEdge(u); e < graph.endEdge(u); e++) {
+                int w = graph.target(e);
+                double dw = du + graph.length(e);
+                if (dw < state.dist(w)) {
+                    state.reach(w, dw, u);
+                    state.heap.push(w, dw);
+                }
+            }
+        }
+        float[] row = new float[graph.size()];
+        for (int v = 0; v < row.length; v++) {
+            row[v] = (float) state.dist(v);
+        }
+        return row;
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds with buckets laid out as HdrHistogram lays them out:
+ * every power of two is split into 16 equal buckets, so a value's bucket is within 1/16 of it
+ * whether it took a microsecond or a minute, and the whole range up to about 18 minutes fits in
+ * 608 counters. Recording is one atomic increment and one LongAdder add, so it can stay on every
+ * request; readers see counts that may be a few records apart from the sum.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    /** The largest value kept apart; longer durations count as this. */
+    private static final long MAX = (1L << 40) - 1;
+    /** The number of buckets. */
+    static final int BUCKETS = index(MAX) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    /** Count one duration; negative ones count as zero. */
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, MAX));
+        counts.incrementAndGet(index(value));
+        sum.add(value);
+    }
+
+    /** The total of the recorded durations, in nanoseconds. */
+    public long sum() {
+        return sum.sum();
+    }
+
+    /** How many durations were recorded. */
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /** The count in each bucket, as of some moment while this runs. */
+    long[] counts() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * The duration at or below which a fraction <code>q</code> of the recorded ones lie, to
+     * within a bucket: the highest value of the bucket it falls in. 0 if there are none.
+     */
+    public long valueAt(double q) {
+        long[] copy = counts();
+        long total = 0;
+        for (long c : copy) {
+            total += c;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += copy[i];
+            if (seen >= rank) {
+                return highest(i);
+            }
+        }
+        return 0;
+    }
+
+    /** The bucket of a value from 0 to MAX. Values below SUB get one each. */
+    static int index(long value) {
+        if (value < SUB) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB + (int) ((value >>> shift) - SUB);
+    }
+
+    /** The smallest value in bucket <code>i</code>. */
+    static long lowest(int i) {
+        if (i < SUB) {
+            return i;
+        }
+        int shift = i / SUB - 1;
+        return (long) (SUB + i % SUB) << shift;
+    }
+
+    /** The largest value in bucket <code>i</code>. */
+    static long highest(int i) {
+        return i < SUB ? i : lowest(i) + (1L << (i / SUB - 1)) - 1;
+    }
+}
@@ -0,0 +1,219 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Full-name search over Locations that tolerates typos. A query whose cleaned form is the
+ * cleaned name of some places is answered from a hash map. Otherwise the distinct cleaned names
+ * sharing enough trigrams with the query are checked by a Levenshtein distance cut off at a
+ * small bound, and the places with the closest names are returned.
+ * <p>
+ *     Names are padded with two spaces in front and one behind, so a name of length n has n + 1
+ *     trigrams and one edit changes at most three of them. A name within d edits of the query
+ *     therefore shares all but 3d of the query's distinct trigrams, and only names reaching
+ *     that count are verified. Cleaned names only hold a-z and space, so a trigram is a number
+ *     below 27^3 and the postings are flat int arrays indexed by it.
+ * </p>
+ */
+public class LocationIndex {
+    private static final int ALPHABET = 27;
+    private static final int TRIGRAMS = ALPHABET * ALPHABET * ALPHABET;
+
+    /** Distinct cleaned names. */
+    private final String[] keys;
+    /** The places named by each key, as indices into the Locations. */
+    private final int[][] places;
+    private final Map<String, Integer> exact;
+    /** The keys containing trigram t are postings[postingStart[t] to postingStart[t + 1]]. */
+    private final int[] postingStart;
+    private final int[] postings;
+    private final ThreadLocal<int[]> counts;
+
+    public LocationIndex(Locations locations) {
+        Map<String, List<Integer>> byKey = new HashMap<>();
+        for (int i = 0; i < locations.size(); i++) {
+            byKey.computeIfAbsent(GraphDB.cleanString(locations.name(i)), k -> new ArrayList<>())
+                    .add(i);
+        }
+        int n = byKey.size();
+        keys = byKey.keySet().toArray(new String[n]);
+        Arrays.sort(keys);
+        places = new int[n][];
+        exact = new HashMap<>(n * 2);
+        for (int k = 0; k < n; k++) {
+            List<Integer> named = byKey.get(keys[k]);
+            places[k] = new int[named.size()];
+            for (int j = 0; j < places[k].length; j++) {
+                places[k][j] = named.get(j);
+            }
+            exact.put(keys[k], k);
+        }
+
+        /* Count each key once per distinct trigram, then fill the postings in key order. */
+        postingStart = new int[TRIGRAMS + 1];
+        int[] seen = new int[TRIGRAMS];
+        Arrays.fill(seen, -1);
+        for (int k = 0; k < n; k++) {
+            for (int t : trigrams(keys[k])) {
+                if (seen[t] != k) {
+                    seen[t] = k;
+                    postingStart[t + 1]++;
+                }
+            }
+        }
+        for (int t = 0; t < TRIGRAMS; t++) {
+            postingStart[t + 1] += postingStart[t];
+        }
+        postings = new int[postingStart[TRIGRAMS]];
+        int[] fill = Arrays.copyOf(postingStart, TRIGRAMS);
+        Arrays.fill(seen, -1);
+        for (int k = 0; k < n; k++) {
+            for (int t : trigrams(keys[k])) {
+                if (seen[t] != k) {
+                    seen[t] = k;
+                    postings[fill[t]++] = k;
+                }
+            }
+        }
+        counts = ThreadLocal.withInitial(() -> new int[n]);
+    }
+
+    /** Number of distinct cleaned names. */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * The places whose cleaned name is the cleaned query or, if there are none, those whose
+     * cleaned name is the fewest edits from it, up to maxEdits(). Empty if no name is close.
+     * @return Indices into the Locations the index was built from.
+     */
+    public int[] find(String query) {
+        String q = GraphDB.cleanString(query);
+        Integer hit = exact.get(q);
+        if (hit != null) {
+            return places[hit].clone();
+        }
+        int bound = maxEdits(q.length());
+        if (bound == 0) {
+            return new int[0];
+        }
+        int[] queryTrigrams = trigrams(q);
+        Arrays.sort(queryTrigrams);
+        int[] shared = counts.get();
+        List<Integer> touched = new ArrayList<>();
+        int distinct = 0;
+        int previous = -1;
+        for (int t : queryTrigrams) {
+            if (t == previous) {
+                continue;       // count each distinct trigram once, as the postings do
+            }
+            previous = t;
+            distinct++;
+            for (int p = postingStart[t]; p < postingStart[t + 1]; p++) {
+                int k = postings[p];
+                if (shared[k]++ == 0) {
+                    touched.add(k);
+                }
+            }
+        }
+        /* An edit removes at most three trigram occurrences, so at most three distinct ones. */
+        int needed = distinct - 3 * bound;
+        int best = bound + 1;
+        List<Integer> closest = new ArrayList<>();
+        for (int k : touched) {
+            if (shared[k] >= needed && Math.abs(keys[k].length() - q.length()) <= bound) {
+                int d = distance(q, keys[k], Math.min(bound, best));
+                if (d < best) {
+                    best = d;
+                    closest.clear();
+                }
+                if (d == best) {
+                    closest.add(k);
+                }
+            }
+            shared[k] = 0;
+        }
+        int total = 0;
+        for (int k : closest) {
+            total += places[k].length;
+        }
+        int[] found = new int[total];
+        int at = 0;
+        for (int k : closest) {
+            System.arraycopy(places[k], 0, found, at, places[k].length);
+            at += places[k].length;
+        }
+        return found;
+    }
+
+    /**
+     * The edits a cleaned query of this length may be away from a name: none below 4 letters,
+     * where nearly every name would match, one below 8 and two from then on.
+     */
+    static int maxEdits(int length) {
+        return Math.min(2, length / 4);
+    }
+
+    /**
+     * Levenshtein distance between a and b if it is at most <code>bound</code>, else
+     * bound + 1. Only the diagonal band of width 2 * bound + 1 is filled, and the search stops
+     * as soon as a whole row exceeds the bound.
+     */
+    static int distance(String a, String b, int bound) {
+        int n = a.length();
+        int m = b.length();
+        if (Math.abs(n - m) > bound) {
+            return bound + 1;
+        }
+        int over = bound + 1;
+        int[] prev = new int[m + 1];
+        int[] curr = new int[m + 1];
+        for (int j = 0; j <= m; j++) {
+            prev[j] = Math.min(j, over);
+        }
+        for (int i = 1; i <= n; i++) {
+            int from = Math.max(1, i - bound);
+            int to = Math.min(m, i + bound);
+            curr[from - 1] = from == 1 ? Math.min(i, over) : over;
+            int rowMin = curr[from - 1];
+            for (int j = from; j <= to; j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int d = Math.min(prev[j - 1] + cost, Math.min(prev[j], curr[j - 1]) + 1);
+                curr[j] = Math.min(d, over);
+                rowMin = Math.min(rowMin, curr[j]);
+            }
+            if (to < m) {
+                curr[to + 1] = over;
+            }
+            if (rowMin > bound) {
+                return over;
+            }
+            int[] swap = prev;
+            prev = curr;
+            curr = swap;
+        }
+        return prev[m];
+    }
+
+    /** The trigrams of "  " + s + " ", one per letter and one more. */
+    private static int[] trigrams(String s) {
+        int[] trigrams = new int[s.length() + 1];
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i <= s.length(); i++) {
+            int c = i < s.length() ? code(s.charAt(i)) : 0;
+            trigrams[i] = (a * ALPHABET + b) * ALPHABET + c;
+            a = b;
+            b = c;
+        }
+        return trigrams;
+    }
+
+    /** Space is 0 and a to z are 1 to 26. */
+    private static int code(char c) {
+        return c == ' ' ? 0 : c - 'a' + 1;
+    }
+}
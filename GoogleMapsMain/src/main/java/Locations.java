@@ -0,0 +1,71 @@
+import java.util.Arrays;
+
+/**
+ * The named places of the map: every OSM node with a name tag, such as shops, landmarks and
+ * named intersections, whether or not it lies on a road. Stored as parallel arrays in the order
+ * the nodes were read; instances are immutable.
+ */
+public class Locations {
+    private final long[] ids;
+    private final double[] lats;
+    private final double[] lons;
+    private final String[] names;
+
+    Locations(long[] ids, double[] lats, double[] lons, String[] names) {
+        this.ids = ids;
+        this.lats = lats;
+        this.lons = lons;
+        this.names = names;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /** OSM id of place <code>i</code>. */
+    public long id(int i) {
+        return ids[i];
+    }
+
+    public double lat(int i) {
+        return lats[i];
+    }
+
+    public double lon(int i) {
+        return lons[i];
+    }
+
+    /** The name of place <code>i</code>, as tagged. */
+    public String name(int i) {
+        return names[i];
+    }
+
+    /** Collects places while a map is parsed. */
+    static class Builder {
+        private long[] ids = new long[256];
+        private double[] lats = new double[256];
+        private double[] lons = new double[256];
+        private String[] names = new String[256];
+        private int count;
+
+        void add(long id, double lat, double lon, String name) {
+            if (count == ids.length) {
+                int capacity = count * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                lats = Arrays.copyOf(lats, capacity);
+                lons = Arrays.copyOf(lons, capacity);
+                names = Arrays.copyOf(names, capacity);
+            }
+            ids[count] = id;
+            lats[count] = lat;
+            lons[count] = lon;
+            names[count] = name;
+            count++;
+        }
+
+        Locations build() {
+            return new Locations(Arrays.copyOf(ids, count), Arrays.copyOf(lats, count),
+                    Arrays.copyOf(lons, count), Arrays.copyOf(names, count));
+        }
+    }
+}
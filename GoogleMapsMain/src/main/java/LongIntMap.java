@@ -0,0 +1,89 @@
+import java.util.Arrays;
+
+/**
+ * A map from long keys to non-negative int values, stored in two flat arrays with open
+ * addressing and linear probing, so a lookup neither boxes its key nor chases a pointer. Used to
+ * turn OSM ids into array indices while a file is parsed. Keys are mixed before probing because
+ * OSM ids are dense runs that would otherwise cluster.
+ */
+public class LongIntMap {
+    private static final int MISSING = -1;
+
+    private long[] keys;
+    /** The value of keys[i], or MISSING if slot i is empty. */
+    private int[] values;
+    private int mask;
+    private int size;
+
+    public LongIntMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        allocate(capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** The value of <code>key</code>, or -1 if it has none. */
+    public int get(long key) {
+        int i = slot(key);
+        while (values[i] != MISSING) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return MISSING;
+    }
+
+    /** Map <code>key</code> to <code>value</code>, which must not be negative. */
+    public void put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative value " + value);
+        }
+        int i = slot(key);
+        while (values[i] != MISSING) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        /* Grow at a load factor of one half, which keeps probe runs short. */
+        if (size * 2 > values.length) {
+            rehash();
+        }
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(oldValues.length * 2);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != MISSING) {
+                int j = slot(oldKeys[i]);
+                while (values[j] != MISSING) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, MISSING);
+        mask = capacity - 1;
+    }
+
+    /** The home slot of <code>key</code>: a Fibonacci hash folded to 32 bits. */
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
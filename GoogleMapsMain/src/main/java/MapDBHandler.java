@@ -26,14 +26,56 @@ public class MapDBHandler extends DefaultHandler {
             ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
                     "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
                     "secondary_link", "tertiary_link"));
-    private HashMap vertices;
-    private String activeState = "";
-    private final GraphDB g;
-    private GraphNode curr;
-    private LinkedList<GraphNode> waysnode = new LinkedList<>();
-
-    public MapDBHandler(GraphDB g) {
-        this.g = g;
+    /** Elements this handler reads; everything else is skipped. */
+    private static final int OTHER = 0, NODE = 1, WAY = 2, ND = 3, TAG = 4;
+
+    /** NODE or WAY while inside one, else OTHER. */
+    private int activeState = OTHER;
+    private final RoadGraph.Builder builder = new RoadGraph.Builder();
+    private final Locations.Builder places = new Locations.Builder();
+    private RoadGraph graph;
+    private Locations locations;
+    /** The node refs of the current way, reused from way to way. */
+    private long[] wayRefs = new long[256];
+    private int wayRefCount;
+    private boolean wayAdded;
+    private long nodeId;
+    private double nodeLat;
+    private double nodeLon;
+
+    /** The routable graph, once the whole document has been parsed; null before that. */
+    public RoadGraph graph() {
+        return graph;
+    }
+
+    /** The named nodes, once the whole document has been parsed; null before that. */
+    public Locations locations() {
+        return locations;
+    }
+
+    /** Whether a way tagged highway=<code>type</code> is routable. */
+    static boolean isAllowedHighway(String type) {
+        return ALLOWED_HIGHWAY_TYPES.contains(type);
+    }
+
+    /*
+     * The calls below build the graph and places. startElement makes them as it reads XML, and
+     * PbfReader makes them in the same order, nodes before the ways that refer to them.
+     */
+
+    /** Record an OSM node. */
+    void addNode(long id, double lat, double lon) {
+        builder.addNode(id, lat, lon);
+    }
+
+    /** Record the name of a node that has already been added. */
+    void addPlace(long id, double lat, double lon, String name) {
+        places.add(id, lat, lon, name);
+    }
+
+    /** Record the first <code>count</code> refs of a way whose highway type is allowed. */
+    void addWay(long[] refs, int count) {
+        builder.addWay(refs, count);
     }
 
     /**
@@ -53,42 +95,59 @@ public class MapDBHandler extends DefaultHandler {
     @Override
     public void startElement(String uri, String localName, String qName, Attributes attributes)
             throws SAXException {
-        /* Some example code on how you might begin to parse XML files. */
-
-        if (qName.equals("node")) {
-            activeState = "node";
-            double id = Double.parseDouble(attributes.getValue("id"));
-            double lat = Double.parseDouble(attributes.getValue("lat"));
-            double lon = Double.parseDouble(attributes.getValue("lon"));
-            GraphNode temp = new GraphNode(id, lat, lon,
-                    new HashMap<String, GraphNode>());
-            curr = temp;
-            g.conncetthemall(g.getconnectednodes(), id, temp);
-        } else if (qName.equals("way")) {
-            activeState = "way";
-            waysnode = new LinkedList<>();
-
-        } else if (activeState.equals("way") && qName.equals("nd")) {
-            double id = Double.parseDouble(attributes.getValue("ref"));
-            waysnode.add(g.getconnectednodes().get(id));
-        } else if (activeState.equals("way") && qName.equals("tag")) {
-            String k = attributes.getValue("k");
-            String v = attributes.getValue("v");
-            if (k.equals("highway") && ALLOWED_HIGHWAY_TYPES.contains(v)) {
-                for (GraphNode n : waysnode) {
-                    g.getresult().put(n.getid(), n);
+        switch (element(qName)) {
+            case NODE:
+                activeState = NODE;
+                nodeId = Long.parseLong(attributes.getValue("id"));
+                nodeLat = Double.parseDouble(attributes.getValue("lat"));
+                nodeLon = Double.parseDouble(attributes.getValue("lon"));
+                addNode(nodeId, nodeLat, nodeLon);
+                break;
+            case WAY:
+                activeState = WAY;
+                wayRefCount = 0;
+                wayAdded = false;
+                break;
+            case ND:
+                if (activeState == WAY) {
+                    if (wayRefCount == wayRefs.length) {
+                        wayRefs = Arrays.copyOf(wayRefs, wayRefCount * 2);
+                    }
+                    wayRefs[wayRefCount++] = Long.parseLong(attributes.getValue("ref"));
+                }
+                break;
+            case TAG:
+                String k = attributes.getValue("k");
+                if (activeState == NODE && k.equals("name")) {
+                    addPlace(nodeId, nodeLat, nodeLon, attributes.getValue("v"));
+                } else if (activeState == WAY && !wayAdded && k.equals("highway")
+                        && isAllowedHighway(attributes.getValue("v"))) {
+                    addWay(wayRefs, wayRefCount);
+                    wayAdded = true;
                 }
-                int current = 1;
-                int prev = 0;
-                while (current < waysnode.size()) {
-                    waysnode.get(current).getneighbors().
-                            put(waysnode.get(prev).getid(), waysnode.get(prev));
-                    waysnode.get(prev).getneighbors().
-                            put(waysnode.get(current).getid(), waysnode.get(current));
-                    current++;
-                    prev++;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Which of the elements read here <code>qName</code> is, telling them apart by length and
+     * first letter before comparing the whole name.
+     */
+    private static int element(String qName) {
+        switch (qName.length()) {
+            case 2:
+                return qName.equals("nd") ? ND : OTHER;
+            case 3:
+                if (qName.charAt(0) == 't') {
+                    return qName.equals("tag") ? TAG : OTHER;
                 }
-            }
+                return qName.equals("way") ? WAY : OTHER;
+            case 4:
+                return qName.equals("node") ? NODE : OTHER;
+            default:
+                return OTHER;
         }
     }
 
@@ -105,10 +164,24 @@ public class MapDBHandler extends DefaultHandler {
      */
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
+        int e = element(qName);
+        if (e == NODE || e == WAY) {
+            activeState = OTHER;
+        }
+    }
+
+    /**
+     * Receive notification of the end of the document. Every node and way has been seen, so
+     * this is where the routable graph and the named places are packed.
+     */
+    @Override
+    public void endDocument() {
+        graph = builder.build();
+        locations = places.build();
     }
 
     static String cleanString(String s) {
-        return s.replaceAll("[^a-zA-Z ]", "").toLowerCase();
+        return GraphDB.cleanString(s);
     }
 
 }
@@ -1,19 +1,35 @@
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
 
 /* Maven is used to pull in these dependencies. */
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
 
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 
 import static spark.Spark.*;
@@ -22,6 +38,12 @@ import static spark.Spark.*;
  * This MapServer class is the entry point for running the JavaSpark web server for the BearMaps
  * application project, receiving API calls, handling the API call processing, and generating
  * requested images and routes.
+ * <p>
+ *     Spark serves requests on a pool of Jetty threads. initialize() builds the graph, its
+ *     node index, the router and the quadtree before any request arrives, and none of them
+ *     change afterwards, so handlers read them without locking. The only state requests share
+ *     and mutate is the tile, route and isochrone caches, which are thread-safe.
+ * </p>
  * @author Alan Yao
  */
 public class MapServer {
@@ -36,6 +58,7 @@ public class MapServer {
     public static final int TILE_SIZE = 256;
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
+    private static final int NOT_FOUND = 404;
     /** Route stroke information: typically roads are not more than 5px wide. */
     public static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
     /** Route stroke information: Cyan with half transparency. */
@@ -44,9 +67,33 @@ public class MapServer {
     private static final String IMG_ROOT = "img/";
     /**
      * The OSM XML file path. Downloaded from <a href="http://download.bbbike.org/osm/">here</a>
-     * using custom region selection.
+     * using custom region selection. Another file can be served with
+     * <code>-Dbearmaps.osm=</code>, including a PBF extract ending in .osm.pbf.
      **/
-    private static final String OSM_DB_PATH = "berkeley.osm";
+    private static final String OSM_DB_PATH = System.getProperty("bearmaps.osm", "berkeley.osm");
+    /** OSM_DB_PATH without its extension; derived files are named after it. */
+    private static final String DB_NAME = OSM_DB_PATH.replaceFirst("\\.osm(\\.pbf)?$", "");
+    /**
+     * The graph snapshot compiled from OSM_DB_PATH with <code>java GraphSnapshot</code>. When it
+     * exists the server maps it instead of parsing the XML.
+     **/
+    private static final String GRAPH_SNAPSHOT_PATH = DB_NAME + ".graph";
+    /** The contraction hierarchy for the "ch" routing mode; built and saved if missing. */
+    private static final String CH_PATH = DB_NAME + ".ch";
+    /**
+     * The route search, set with <code>-Dbearmaps.routing=</code>: "astar" runs A* from the
+     * start, "bidirectional" runs A* from both ends, "ch" queries a contraction hierarchy and
+     * "alt" runs A* with landmark bounds.
+     **/
+    private static final String ROUTING_MODE = System.getProperty("bearmaps.routing", "astar");
+    /** Landmarks for the "alt" routing mode, set with <code>-Dbearmaps.landmarks=</code>. */
+    private static final int LANDMARK_COUNT = Integer.getInteger("bearmaps.landmarks", 16);
+    /**
+     * Whether routes are searched on the graph with its chains of shape points collapsed, set
+     * with <code>-Dbearmaps.simplify=</code>. Routes come out the same either way.
+     */
+    private static final boolean SIMPLIFY =
+            Boolean.parseBoolean(System.getProperty("bearmaps.simplify", "true"));
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -65,11 +112,103 @@ public class MapServer {
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    /**
+     * Route vertices kept by the route cache, set with
+     * <code>-Dbearmaps.routecache=</code>. Each costs 4 bytes plus a share of its entry.
+     **/
+    private static final long ROUTE_CACHE_VERTICES = Long.getLong("bearmaps.routecache", 1 << 22);
+    /**
+     * An isochrone request names its origin and its budget in metres of road:
+     * iso_lat -> origin latitude,<br> iso_lon -> origin longitude,<br>
+     * iso_distance -> how far from the origin to reach.
+     **/
+    private static final String[] REQUIRED_ISOCHRONE_REQUEST_PARAMS = {"iso_lat", "iso_lon",
+        "iso_distance"};
+    /**
+     * Reachable vertices kept by the isochrone cache, set with
+     * <code>-Dbearmaps.isochronecache=</code>.
+     **/
+    private static final long ISOCHRONE_CACHE_VERTICES =
+            Long.getLong("bearmaps.isochronecache", 1 << 22);
+    /** The fill drawn inside an isochrone's hull, under its ROUTE_STROKE_COLOR outline. */
+    public static final Color ISOCHRONE_FILL_COLOR = new Color(108, 181, 230, 60);
+    /**
+     * Decoded tile bytes kept by the tile cache, set with <code>-Dbearmaps.tilecache=</code>.
+     * A tile is cached as 192 KiB of BGR pixels, so the default holds about 1,400 of them.
+     **/
+    private static final long TILE_CACHE_BYTES = Long.getLong("bearmaps.tilecache", 256L << 20);
+    /**
+     * Quadtree levels whose tiles are decoded at startup, set with
+     * <code>-Dbearmaps.preload=</code>. Level n has 4^(n - 1) tiles.
+     **/
+    private static final int PRELOAD_LEVELS = Integer.getInteger("bearmaps.preload", 0);
+    /**
+     * Depth of the deepest tiles in img/, whose names have that many digits, set with
+     * <code>-Dbearmaps.tiledepth=</code>.
+     **/
+    private static final int TILE_DEPTH = Integer.getInteger("bearmaps.tiledepth", 7);
+    /**
+     * The most sources, and the most targets, one /table request may ask for, set with
+     * <code>-Dbearmaps.tablepoints=</code>.
+     **/
+    private static final int TABLE_POINTS = Integer.getInteger("bearmaps.tablepoints", 1000);
+    /**
+     * The most routes one POST to /routes may ask for, set with
+     * <code>-Dbearmaps.batchroutes=</code>, and the worker threads that solve batches, set with
+     * <code>-Dbearmaps.batchthreads=</code>.
+     **/
+    private static final int BATCH_ROUTES = Integer.getInteger("bearmaps.batchroutes", 10000);
+    private static final int BATCH_THREADS = Integer.getInteger("bearmaps.batchthreads",
+            Runtime.getRuntime().availableProcessors());
+    /**
+     * Names the search bar suggests as the user types, set with
+     * <code>-Dbearmaps.suggestions=</code>.
+     **/
+    private static final int SUGGESTIONS = Integer.getInteger("bearmaps.suggestions", 10);
+    /**
+     * How rasters are encoded unless a request asks otherwise: <code>-Dbearmaps.format=</code>
+     * "jpg" or "png", and <code>-Dbearmaps.quality=</code> the JPEG quality from 0 to 1. PNGs
+     * of at least <code>-Dbearmaps.parallelpixels=</code> pixels are encoded in parallel.
+     **/
+    private static final RasterEncoder ENCODER = new RasterEncoder(
+            RasterEncoder.Format.parse(System.getProperty("bearmaps.format", "jpg")),
+            Float.parseFloat(System.getProperty("bearmaps.quality", "0.75")),
+            Long.getLong("bearmaps.parallelpixels", 2_000_000L));
+    /**
+     * Latency histograms and counters for /metrics. Each endpoint's handling time goes to
+     * bearmaps_request_seconds, and the time spent in each phase of it to
+     * bearmaps_phase_seconds.
+     **/
+    private static final Metrics METRICS = new Metrics();
+    private static final String PHASE_SECONDS = "bearmaps_phase_seconds";
+    private static final String PHASE_HELP = "Time spent in each phase of handling requests.";
+    private static final LatencyHistogram SELECT_TIME = phase("tile_select");
+    private static final LatencyHistogram COMPOSITE_TIME = phase("composite");
+    private static final LatencyHistogram ROUTE_SEARCH_TIME = phase("route_search");
+    private static final LatencyHistogram ISOCHRONE_SEARCH_TIME = phase("isochrone_search");
+    private static final LatencyHistogram DRAW_TIME = phase("draw");
+    private static final LatencyHistogram ENCODE_TIME = phase("encode");
+    private static final LatencyHistogram SERIALIZE_TIME = phase("serialize");
+    private static final LongAdder ENCODED_BYTES = new LongAdder();
+    /**
+     * Identical raster and route requests in flight at once, computed once and shared: rasters
+     * by ETag, routes by their snapped endpoints.
+     **/
+    private static final SingleFlight<String, RenderedRaster> RASTER_FLIGHTS =
+            new SingleFlight<>();
+    private static final SingleFlight<Long, int[]> ROUTE_FLIGHTS = new SingleFlight<>();
     /* Define any static variables here. Do not define any instance variables of MapServer. */
     private static GraphDB g;
+    private static Router router;
+    private static DistanceTable distanceTable;
+    private static RouteBatch routeBatch;
     private static QuadTree newtree;
-    private static HashMap<String, BufferedImage> rememberer;
-    private static HashMap<Map<String, Double>, List<Long>> memoize;
+    private static TileCache tiles;
+    private static RouteCache routeCache;
+    private static Isochrone isochrone;
+    private static RouteCache isochroneCache;
+    /** Fingerprint of the graph, so ETags of routed rasters change when the graph does. */
+    private static long graphTag;
 
     /**
      * Place any initialization statements that will be run before the server main loop here.
@@ -77,10 +216,113 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        g = new GraphDB(OSM_DB_PATH);
-        newtree = new QuadTree(ROOT_ULLON, ROOT_ULLAT, ROOT_LRLON, ROOT_LRLAT, 0, 0);
-        rememberer = new HashMap<>();
-        memoize = new HashMap<>();
+        g = GraphDB.open(GRAPH_SNAPSHOT_PATH, OSM_DB_PATH);
+        SimplifiedGraph simplified = null;
+        RoadGraph searched = g.graph();
+        if (SIMPLIFY) {
+            simplified = g.simplified();
+            searched = simplified.core();
+            System.out.println(simplified.report());
+        }
+        if (ROUTING_MODE.equals("ch")) {
+            router = ContractionHierarchy.open(Paths.get(CH_PATH), searched);
+        } else if (ROUTING_MODE.equals("alt")) {
+            router = new LandmarkRouter(searched, LANDMARK_COUNT);
+        } else {
+            router = new AStarRouter(searched, ROUTING_MODE.equals("bidirectional"));
+        }
+        if (simplified != null) {
+            router = new SimplifiedRouter(simplified, router);
+        }
+        distanceTable = new DistanceTable(g.graph());
+        routeBatch = new RouteBatch(BATCH_THREADS);
+        newtree = new QuadTree(ROOT_ULLON, ROOT_ULLAT, ROOT_LRLON, ROOT_LRLAT, TILE_DEPTH);
+        tiles = new TileCache(IMG_ROOT, TILE_CACHE_BYTES);
+        tiles.preload(PRELOAD_LEVELS);
+        routeCache = new RouteCache(ROUTE_CACHE_VERTICES);
+        isochrone = new Isochrone(distanceTable);
+        isochroneCache = new RouteCache(ISOCHRONE_CACHE_VERTICES, "isochrone");
+        graphTag = g.graph().fingerprint();
+        registerMetrics(searched);
+    }
+
+    /** The histogram of one phase of handling requests, such as "encode". */
+    private static LatencyHistogram phase(String name) {
+        return METRICS.histogram(PHASE_SECONDS, Metrics.labels("phase", name), PHASE_HELP);
+    }
+
+    /**
+     * Expose the sizes of the graphs and the counters and sizes of the caches that
+     * initialize() just made, replacing those of any earlier call.
+     * @param searched The graph routes are searched on: the simplified core, if there is one.
+     */
+    private static void registerMetrics(RoadGraph searched) {
+        RoadGraph graph = g.graph();
+        String vertices = "Vertices of the road graph, and of the graph routes are searched on.";
+        String edges = "Directed edges of the road graph, and of the graph routes are searched on.";
+        METRICS.gauge("bearmaps_graph_vertices", Metrics.labels("graph", "road"), vertices,
+                graph::size);
+        METRICS.gauge("bearmaps_graph_vertices", Metrics.labels("graph", "searched"), vertices,
+                searched::size);
+        METRICS.gauge("bearmaps_graph_edges", Metrics.labels("graph", "road"), edges,
+                graph::edgeCount);
+        METRICS.gauge("bearmaps_graph_edges", Metrics.labels("graph", "searched"), edges,
+                searched::edgeCount);
+        TileCache tileCache = tiles;
+        RouteCache routes = routeCache;
+        RouteCache isochrones = isochroneCache;
+        registerCache("tile", tileCache::hits, tileCache::misses, tileCache::evictions,
+                tileCache::size, tileCache::bytes);
+        registerCache("route", routes::hits, routes::misses, routes::evictions, routes::size,
+                () -> routes.weight() * Integer.BYTES);
+        registerCache("isochrone", isochrones::hits, isochrones::misses,
+                isochrones::evictions, isochrones::size,
+                () -> isochrones.weight() * Integer.BYTES);
+        METRICS.histogram(PHASE_SECONDS, Metrics.labels("phase", "tile_load"), PHASE_HELP,
+                tileCache.loadLatency());
+        METRICS.counter("bearmaps_encoded_bytes_total", "", "Bytes of encoded rasters.",
+                ENCODED_BYTES::sum);
+        registerFlights("raster", RASTER_FLIGHTS);
+        registerFlights("route", ROUTE_FLIGHTS);
+    }
+
+    private static void registerFlights(String name, SingleFlight<?, ?> flights) {
+        String kind = Metrics.labels("kind", name);
+        METRICS.counter("bearmaps_coalesced_requests_total", kind,
+                "Requests that waited on an identical one in flight instead of computing.",
+                flights::coalesced);
+        METRICS.counter("bearmaps_coalesce_computations_total", kind,
+                "Computations run, each shared by the requests coalesced onto it.",
+                flights::computed);
+    }
+
+    private static void registerCache(String name, DoubleSupplier hits, DoubleSupplier misses,
+                                      DoubleSupplier evictions, DoubleSupplier entries,
+                                      DoubleSupplier bytes) {
+        String cache = Metrics.labels("cache", name);
+        METRICS.counter("bearmaps_cache_hits_total", cache, "Lookups found in each cache.",
+                hits);
+        METRICS.counter("bearmaps_cache_misses_total", cache, "Lookups missing from each cache.",
+                misses);
+        METRICS.counter("bearmaps_cache_evictions_total", cache,
+                "Entries evicted from each cache to make room.", evictions);
+        METRICS.gauge("bearmaps_cache_entries", cache, "Entries in each cache.", entries);
+        METRICS.gauge("bearmaps_cache_bytes", cache, "Bytes held by each cache: decoded pixels "
+                + "for tiles, and 4 a vertex for routes and isochrones.", bytes);
+    }
+
+    /** The handler, with the time it takes recorded under <code>endpoint</code>. */
+    private static spark.Route timed(String endpoint, spark.Route handler) {
+        LatencyHistogram latency = METRICS.histogram("bearmaps_request_seconds",
+                Metrics.labels("endpoint", endpoint), "Time spent handling requests.");
+        return (req, res) -> {
+            long start = System.nanoTime();
+            try {
+                return handler.handle(req, res);
+            } finally {
+                latency.record(System.nanoTime() - start);
+            }
+        };
     }
 
     public static void main(String[] args) {
@@ -96,39 +338,160 @@ public class MapServer {
 
         /* Define the raster endpoint for HTTP GET requests. I use anonymous functions to define
          * the request handlers. */
-        get("/raster", (req, res) -> {
+        get("/raster", timed("raster", (req, res) -> {
             HashMap<String, Double> rasterParams =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
             /* Required to have valid raster params */
             validateRequestParameters(rasterParams, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* Create the Map for return parameters. */
-            Map<String, Object> rasteredImgParams = new HashMap<>();
-            /* getMapRaster() does almost all the work for this API call */
-            BufferedImage im = getMapRaster(rasterParams, rasteredImgParams);
-            /* Check if we have routing parameters. */
+            /* Check if we have routing parameters, and an isochrone to draw under the route. */
             HashMap<String, Double> routeParams =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            /* If we do, draw the route too. */
-            if (hasRequestParameters(routeParams, REQUIRED_ROUTE_REQUEST_PARAMS)) {
-                findAndDrawRoute(routeParams, rasteredImgParams, im);
+            if (!hasRequestParameters(routeParams, REQUIRED_ROUTE_REQUEST_PARAMS)) {
+                routeParams = null;
+            }
+            HashMap<String, Double> isoParams =
+                    getRequestParams(req, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+            if (!hasRequestParameters(isoParams, REQUIRED_ISOCHRONE_REQUEST_PARAMS)) {
+                isoParams = null;
             }
+            RasterRequest request = new RasterRequest(rasterParams, routeParams, isoParams,
+                    RasterEncoder.tag(ENCODER.format(), ENCODER.quality()));
+            /* renderRaster() does almost all the work for this API call */
+            RenderedRaster raster = renderRaster(request, ENCODER.format(), ENCODER.quality());
+            /* Create the Map for return parameters. */
+            Map<String, Object> rasteredImgParams = new HashMap<>(raster.params);
+            long start = System.nanoTime();
             /* On an image query success, add the image data to the response */
-            if (rasteredImgParams.containsKey("query_success")
-                    && (Boolean) rasteredImgParams.get("query_success")) {
-                ByteArrayOutputStream os = new ByteArrayOutputStream();
-                writeJpgToStream(im, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
+            if (raster.body != null) {
+                reportEncoding(res, raster.stats);
+                String encodedImage = Base64.getEncoder().encodeToString(raster.body);
                 rasteredImgParams.put("b64_encoded_image_data", encodedImage);
-                os.flush();
-                os.close();
             }
             /* Encode response to Json */
             Gson gson = new Gson();
-            return gson.toJson(rasteredImgParams);
-        });
+            String json = gson.toJson(rasteredImgParams);
+            SERIALIZE_TIME.record(System.nanoTime() - start);
+            return json;
+        }));
+
+        /* The same raster as an image body, with the JSON fields as headers. */
+        get("/raster.jpg", timed("raster.jpg",
+                (req, res) -> serveRaster(req, res, RasterEncoder.Format.JPEG)));
+        get("/raster.png", timed("raster.png",
+                (req, res) -> serveRaster(req, res, RasterEncoder.Format.PNG)));
+
+        /* Only the tile list and bounds of a raster, for the browser to composite itself. */
+        get("/raster/tiles", timed("raster_tiles", (req, res) -> {
+            HashMap<String, Double> rasterParams =
+                    getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
+            validateRequestParameters(rasterParams, REQUIRED_RASTER_REQUEST_PARAMS);
+            Map<String, Object> rasteredImgParams = new HashMap<>();
+            rasteredImgParams.put("tiles", getRasterTiles(rasterParams, rasteredImgParams));
+            HashMap<String, Double> routeParams =
+                    getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
+            if (hasRequestParameters(routeParams, REQUIRED_ROUTE_REQUEST_PARAMS)) {
+                rasteredImgParams.put("route", getRouteCoordinates(routeParams));
+            }
+            HashMap<String, Double> isoParams =
+                    getRequestParams(req, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+            if (hasRequestParameters(isoParams, REQUIRED_ISOCHRONE_REQUEST_PARAMS)) {
+                rasteredImgParams.put("isochrone", getIsochrone(isoParams).get("hull"));
+            }
+            res.type("application/json");
+            return new Gson().toJson(rasteredImgParams);
+        }));
+
+        /* The tile files themselves, sent unchanged. */
+        get("/tiles/:file", timed("tiles", MapServer::serveTile));
+
+        /*
+         * Road distances in metres between every source and every target, each a list of
+         * lon,lat points separated by semicolons; targets default to the sources. The matrix is
+         * JSON rows, with null where a target cannot be reached, or with format=bin row-major
+         * little-endian 32-bit floats, NaN where unreachable, so a browser can view the body as
+         * a Float32Array.
+         */
+        get("/table", timed("table", (req, res) -> {
+            List<double[]> sources = null;
+            List<double[]> targets = null;
+            try {
+                sources = parsePoints(req.queryParams("sources"));
+                targets = req.queryParams("targets") == null ? sources
+                        : parsePoints(req.queryParams("targets"));
+            } catch (IllegalArgumentException e) {
+                halt(HALT_RESPONSE, "Incorrect parameters - " + e.getMessage());
+            }
+            if (sources.size() > TABLE_POINTS || targets.size() > TABLE_POINTS) {
+                halt(HALT_RESPONSE, "Request failed - at most " + TABLE_POINTS
+                        + " sources and targets.");
+            }
+            double[] table = getDistanceTable(sources, targets);
+            res.header("X-Table-Rows", Integer.toString(sources.size()));
+            res.header("X-Table-Columns", Integer.toString(targets.size()));
+            res.header("Access-Control-Expose-Headers", "*");
+            if ("bin".equals(req.queryParams("format"))) {
+                res.type("application/octet-stream");
+                byte[] body = tableBytes(table);
+                res.raw().setContentLength(body.length);
+                res.raw().getOutputStream().write(body);
+                res.raw().getOutputStream().flush();
+                return "";
+            }
+            res.type("application/json");
+            return tableJson(table, targets.size());
+        }));
+
+        /*
+         * Many routes in one request: the body is a JSON array of objects with the four
+         * REQUIRED_ROUTE_REQUEST_PARAMS. The response streams one JSON line per route, in the
+         * order asked, as each is solved; see routeLine().
+         */
+        post("/routes", timed("routes", (req, res) -> {
+            List<Map<String, Double>> queries = parseRouteQueries(req.body());
+            if (queries.size() > BATCH_ROUTES) {
+                halt(HALT_RESPONSE, "Request failed - at most " + BATCH_ROUTES + " routes.");
+            }
+            int[] starters = new int[queries.size()];
+            int[] enders = new int[queries.size()];
+            for (int i = 0; i < starters.length; i++) {
+                Map<String, Double> query = queries.get(i);
+                starters[i] = g.closest(query.get("start_lon"), query.get("start_lat"));
+                enders[i] = g.closest(query.get("end_lon"), query.get("end_lat"));
+            }
+            res.type("application/x-ndjson");
+            Writer out = new BufferedWriter(new OutputStreamWriter(res.raw().getOutputStream(),
+                    StandardCharsets.UTF_8));
+            routeBatch.solve(starters, enders, MapServer::cachedRoute, new RouteBatch.Sink() {
+                @Override
+                public void accept(int index, int[] path) throws IOException {
+                    out.write(routeLine(index, path));
+                    out.write('\n');
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+            });
+            out.flush();
+            return "";
+        }));
+
+        /*
+         * What can be reached within iso_distance metres of road from the point nearest
+         * (iso_lon, iso_lat): the OSM ids of the reachable nodes, nearest first, and their
+         * convex hull as [lon, lat] points. The same parameters on a raster request draw it.
+         */
+        get("/isochrone", timed("isochrone", (req, res) -> {
+            HashMap<String, Double> isoParams =
+                    getRequestParams(req, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+            validateRequestParameters(isoParams, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+            res.type("application/json");
+            return new Gson().toJson(getIsochrone(isoParams));
+        }));
 
         /* Define the API endpoint for search */
-        get("/search", (req, res) -> {
+        get("/search", timed("search", (req, res) -> {
             Set<String> reqParams = req.queryParams();
             String term = req.queryParams("term");
             Gson gson = new Gson();
@@ -138,9 +501,15 @@ public class MapServer {
                 return gson.toJson(data);
             } else {
                 /* Search for prefix matching strings. */
-                List<String> matches = getLocationsByPrefix(term);
+                List<String> matches = getLocationsByPrefix(term, SUGGESTIONS);
                 return gson.toJson(matches);
             }
+        }));
+
+        /* Latency histograms, cache counters and sizes, in the Prometheus text format. */
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4; charset=utf-8");
+            return METRICS.scrape();
         });
 
         /* Define map application redirect */
@@ -150,6 +519,172 @@ public class MapServer {
         });
     }
 
+    /**
+     * Render a raster straight into the response body. An optional <code>quality</code> query
+     * parameter overrides the JPEG quality. Rendering is skipped when the client already holds
+     * the image, as told by If-None-Match.
+     */
+    private static Object serveRaster(spark.Request req, spark.Response res,
+                                      RasterEncoder.Format format) throws IOException {
+        HashMap<String, Double> rasterParams =
+                getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
+        validateRequestParameters(rasterParams, REQUIRED_RASTER_REQUEST_PARAMS);
+        HashMap<String, Double> routeParams =
+                getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
+        boolean routed = hasRequestParameters(routeParams, REQUIRED_ROUTE_REQUEST_PARAMS);
+        HashMap<String, Double> isoParams =
+                getRequestParams(req, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+        boolean reached = hasRequestParameters(isoParams, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+        float quality = ENCODER.quality();
+        if (req.queryParams("quality") != null) {
+            try {
+                quality = Float.parseFloat(req.queryParams("quality"));
+            } catch (NumberFormatException e) {
+                halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            }
+            if (!(quality >= 0 && quality <= 1)) {
+                halt(HALT_RESPONSE, "Incorrect parameters - quality is from 0 to 1.");
+            }
+        }
+        RasterRequest request = new RasterRequest(rasterParams, routed ? routeParams : null,
+                reached ? isoParams : null, RasterEncoder.tag(format, quality));
+        String etag = request.etag;
+        res.header("ETag", etag);
+        res.header("Cache-Control", "public, no-cache");
+        res.header("Access-Control-Expose-Headers", "*");
+        if (etagMatches(req.headers("If-None-Match"), etag)) {
+            res.status(304);
+            return "";
+        }
+        RenderedRaster raster = renderRaster(request, format, quality);
+        if (raster.body == null) {
+            halt(HALT_RESPONSE, "Request failed - the query box is outside the map.");
+        }
+        for (Map.Entry<String, Object> param : raster.params.entrySet()) {
+            res.header(rasterHeader(param.getKey()), String.valueOf(param.getValue()));
+        }
+        res.type(format.mediaType());
+        reportEncoding(res, raster.stats);
+        res.raw().setContentLength(raster.body.length);
+        OutputStream out = res.raw().getOutputStream();
+        out.write(raster.body);
+        out.flush();
+        return "";
+    }
+
+    /** A raster drawn and encoded, shared by every request coalesced onto it. */
+    private static final class RenderedRaster {
+        /** The raster parameters of getMapRaster(); callers must not change them. */
+        final Map<String, Object> params;
+        /** The encoded image, or null if the query box misses the map. */
+        final byte[] body;
+        final RasterEncoder.Stats stats;
+
+        RenderedRaster(Map<String, Object> params, byte[] body, RasterEncoder.Stats stats) {
+            this.params = params;
+            this.body = body;
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * Render a raster, draw the isochrone and then the route on it and encode it; or, if a
+     * request with the same ETag is already doing that, wait for its bytes. The tag is the
+     * canonical form of the request: requests with equal tags select the same tiles, snap to the
+     * same route and isochrone vertices and encode the same way, so they would render the same
+     * bytes, and a burst of them renders once. The image is drawn from the tiles and vertices
+     * the tag was made of, so nothing is selected or snapped twice.
+     * @param request The request, whose encoding tag is that of format and quality.
+     */
+    private static RenderedRaster renderRaster(RasterRequest request,
+                                               RasterEncoder.Format format, float quality)
+            throws IOException {
+        return RASTER_FLIGHTS.get(request.etag, () -> {
+            Map<String, Object> params = new HashMap<>();
+            BufferedImage im = drawRaster(request.selection, params);
+            if (im == null) {
+                return new RenderedRaster(params, null, null);
+            }
+            if (request.reached) {
+                drawHull(isochrone.hull(findIsochrone(request.origin, request.budget)), params,
+                        im);
+            }
+            if (request.routed) {
+                drawRoute(cachedRoute(request.starter, request.ender), params, im);
+            }
+            /* Encode into a buffer first, so the size and timing can still go in the headers. */
+            ByteArrayOutputStream body = new ByteArrayOutputStream(1 << 16);
+            RasterEncoder.Stats stats = ENCODER.encode(im, body, format, quality);
+            ENCODE_TIME.record(stats.nanos());
+            ENCODED_BYTES.add(stats.bytes());
+            return new RenderedRaster(params, body.toByteArray(), stats);
+        });
+    }
+
+    /**
+     * Send a tile PNG from img/ as it is on disk, copied by the file channel rather than decoded
+     * and re-encoded. A tile only changes when img/ is replaced, so clients may keep it for a
+     * year and revalidate with its ETag after that.
+     */
+    private static Object serveTile(spark.Request req, spark.Response res) throws IOException {
+        String file = req.params(":file");
+        if (!isTileFile(file)) {
+            halt(NOT_FOUND, "No such tile.");
+        }
+        Path path = Paths.get(IMG_ROOT, file);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            String etag = "\"" + Long.toHexString(size) + "-"
+                    + Long.toHexString(Files.getLastModifiedTime(path).toMillis()) + "\"";
+            res.header("ETag", etag);
+            res.header("Cache-Control", "public, max-age=31536000, immutable");
+            if (etagMatches(req.headers("If-None-Match"), etag)) {
+                res.status(304);
+                return "";
+            }
+            res.type("image/png");
+            res.raw().setContentLengthLong(size);
+            WritableByteChannel out = Channels.newChannel(res.raw().getOutputStream());
+            for (long sent = 0; sent < size; ) {
+                sent += channel.transferTo(sent, size - sent, out);
+            }
+            res.raw().getOutputStream().flush();
+        } catch (NoSuchFileException e) {
+            halt(NOT_FOUND, "No such tile.");
+        }
+        return "";
+    }
+
+    /**
+     * Whether <code>file</code> names a tile: "root.png", or a quadrant digit from 1 to 4 for
+     * each of up to TILE_DEPTH levels followed by ".png". Nothing else, so no path can leave
+     * img/.
+     */
+    static boolean isTileFile(String file) {
+        if (file == null || !file.endsWith(".png")) {
+            return false;
+        }
+        String name = file.substring(0, file.length() - ".png".length());
+        if (name.equals("root")) {
+            return true;
+        }
+        if (name.isEmpty() || name.length() > TILE_DEPTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) < '1' || name.charAt(i) > '4') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Report how long encoding took and how large the result was, in response headers. */
+    private static void reportEncoding(spark.Response res, RasterEncoder.Stats stats) {
+        res.header("Server-Timing", String.format("encode;dur=%.1f", stats.millis()));
+        res.header("X-Encoded-Bytes", Long.toString(stats.bytes()));
+    }
+
     /**
      * Check if the computed parameter map matches the required parameters on length.
      */
@@ -195,18 +730,14 @@ public class MapServer {
 
     /**
      * Write a <code>BufferedImage</code> to an <code>OutputStream</code>. The image is written as
-     * a lossy JPG, but with the highest quality possible.
+     * a lossy JPG at the configured quality, using this thread's pooled writer. The default of
+     * 0.75 is what the original writer.write(im) produced: it ignored the quality of 1.0 it set.
      * @param im Image to be written.
      * @param os Stream to be written to.
      */
     static void writeJpgToStream(BufferedImage im, OutputStream os) {
-        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
-        ImageWriteParam param = writer.getDefaultWriteParam();
-        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-        param.setCompressionQuality(1.0F); // Highest quality of jpg possible
-        writer.setOutput(new MemoryCacheImageOutputStream(os));
         try {
-            writer.write(im);
+            ENCODER.encode(im, os, RasterEncoder.Format.JPEG, ENCODER.quality());
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -240,68 +771,178 @@ public class MapServer {
      * "depth"         -> Integer, the 1-indexed quadtree depth of the nodes of the rastered image.
      * Can also be interpreted as the length of the numbers in the image string. <br>
      * "query_success" -> Boolean, whether an image was successfully rastered. <br>
-     * @return a <code>BufferedImage</code>, which is the rastered result.
+     * @return a <code>BufferedImage</code>, which is the rastered result, or null if the query
+     * box misses the map, when query_success is false.
      * @see #REQUIRED_RASTER_REQUEST_PARAMS
      */
 
     public static BufferedImage getMapRaster(Map<String, Double> inputParams,
                                              Map<String, Object> rasteredImageParams) {
 
+        return drawRaster(rasterTiles(inputParams), rasteredImageParams);
+    }
+
+    /** Composite the tiles of a selection, as getMapRaster() does for the request's. */
+    private static BufferedImage drawRaster(QuadTree.Selection selection,
+                                            Map<String, Object> rasteredImageParams) {
+        List<String> imagenames = describeRaster(selection, rasteredImageParams);
+        if (selection.size() == 0) {
+            return null;
+        }
+        long start = System.nanoTime();
+        BufferedImage raster = RasterCompositor.render(tiles, imagenames, selection.columns(),
+                TILE_SIZE);
+        COMPOSITE_TIME.record(System.nanoTime() - start);
+        return raster;
+    }
+
+    /**
+     * Like getMapRaster(), but only fills in <code>rasteredImageParams</code> and returns the
+     * names of the tiles the raster is made of, in row-major order, instead of drawing them.
+     * Each tile is TILE_SIZE pixels square, so a row holds raster_width / TILE_SIZE of them.
+     */
+    public static List<String> getRasterTiles(Map<String, Double> inputParams,
+                                              Map<String, Object> rasteredImageParams) {
+        return describeRaster(rasterTiles(inputParams), rasteredImageParams);
+    }
+
+    /** Put the bounds and size of a raster of these tiles into the response parameters. */
+    private static List<String> describeRaster(QuadTree.Selection selection,
+                                               Map<String, Object> rasteredImageParams) {
+        rasteredImageParams.put("raster_ul_lon", selection.ullon());
+        rasteredImageParams.put("raster_ul_lat", selection.ullat());
+        rasteredImageParams.put("raster_lr_lon", selection.lrlon());
+        rasteredImageParams.put("raster_lr_lat", selection.lrlat());
+        rasteredImageParams.put("raster_width", selection.columns() * TILE_SIZE);
+        rasteredImageParams.put("raster_height", selection.rows() * TILE_SIZE);
+        rasteredImageParams.put("depth", selection.depth());
+        rasteredImageParams.put("query_success", selection.size() > 0);
+        return selection.names();
+    }
+
+    /** The tiles getMapRaster() draws for a request. */
+    private static QuadTree.Selection rasterTiles(Map<String, Double> inputParams) {
         double ullon = inputParams.get("ullon");
-        double ullat = inputParams.get("ullat");
         double lrlon = inputParams.get("lrlon");
-        double lrlat = inputParams.get("lrlat");
-        double w = inputParams.get("w");
-        double h = inputParams.get("h");
-        List<QuadTree> listofsuccessfultrees = new ArrayList<>();
-        newtree.rasteredImages(listofsuccessfultrees, newtree,
-                (inputParams.get("lrlon") - inputParams.get("ullon")) / inputParams.get("w"),
-                inputParams);
-        Collections.sort(listofsuccessfultrees);
-        List<String> imagenames = newtree.converttoString(listofsuccessfultrees);
-        List<Integer> widthandheight = newtree.findwidthheight(listofsuccessfultrees);
-        BufferedImage result = new BufferedImage(widthandheight.get(1) * 256,
-                widthandheight.get(0) * 256, BufferedImage.TYPE_3BYTE_BGR);
-        Graphics graph = result.getGraphics();
-        rasteredImageParams.put("raster_ul_lon", listofsuccessfultrees.get(0).returnULLON());
-        rasteredImageParams.put("raster_ul_lat", listofsuccessfultrees.get(0).returnULLAT());
-        rasteredImageParams.put("raster_lr_lon",
-                listofsuccessfultrees.get(listofsuccessfultrees.size() - 1).returnLRLON());
-        rasteredImageParams.put("raster_lr_lat",
-                listofsuccessfultrees.get(listofsuccessfultrees.size() - 1).returnLRLAT());
-        rasteredImageParams.put("raster_width", widthandheight.get(1) * 256);
-        rasteredImageParams.put("raster_height", widthandheight.get(0) * 256);
-        rasteredImageParams.put("depth", imagenames.get(0).length());
-        rasteredImageParams.put("query_success", true);
-        try {
-            int x = 0;
-            int y = 0;
-            for (String image : imagenames) {
-                BufferedImage im = null;
-                if (rememberer.containsKey(image)) {
-                    im = rememberer.get(image);
-                } else {
-                    im = ImageIO.read(new File(IMG_ROOT + image + ".png"));
-                    rememberer.put(image, im);
-                }
-                graph.drawImage(im, x, y, null);
-                x += 256;
-                if (x >= result.getWidth()) {
-                    x = 0;
-                    y += 256;
+        long start = System.nanoTime();
+        QuadTree.Selection selection = newtree.select(ullon, inputParams.get("ullat"), lrlon,
+                inputParams.get("lrlat"), (lrlon - ullon) / inputParams.get("w"), TILE_SIZE);
+        SELECT_TIME.record(System.nanoTime() - start);
+        return selection;
+    }
+
+    /**
+     * A strong ETag for a rendered raster: a hash of the encoding, the tiles the image is made
+     * of and, when a route is drawn, the graph and the snapped route endpoints. Two requests
+     * with the same tag render identical bytes, so neither needs rendering twice.
+     * @param routeParams The route to draw, or null for none.
+     * @param encoding The RasterEncoder tag of the format and quality.
+     */
+    static String rasterETag(Map<String, Double> rasterParams, Map<String, Double> routeParams,
+                             String encoding) {
+        return rasterETag(rasterParams, routeParams, null, encoding);
+    }
+
+    /**
+     * The ETag of a raster with an isochrone drawn on it as well, which adds the graph, the
+     * snapped origin and the budget to the hash.
+     * @param isoParams The isochrone to draw, or null for none.
+     */
+    static String rasterETag(Map<String, Double> rasterParams, Map<String, Double> routeParams,
+                             Map<String, Double> isoParams, String encoding) {
+        return new RasterRequest(rasterParams, routeParams, isoParams, encoding).etag;
+    }
+
+    /**
+     * A raster request in canonical form: the tiles it selects, the vertices its route and
+     * isochrone snap to and its encoding. Both its ETag and its image are made from these, so a
+     * request selects its tiles and snaps its points once.
+     */
+    private static final class RasterRequest {
+        final QuadTree.Selection selection;
+        final boolean routed;
+        final int starter;
+        final int ender;
+        final boolean reached;
+        final int origin;
+        final int budget;
+        final String etag;
+
+        /**
+         * @param routeParams The route to draw, or null for none.
+         * @param isoParams The isochrone to draw, or null for none.
+         * @param encoding The RasterEncoder tag of the format and quality.
+         */
+        RasterRequest(Map<String, Double> rasterParams, Map<String, Double> routeParams,
+                      Map<String, Double> isoParams, String encoding) {
+            selection = rasterTiles(rasterParams);
+            routed = routeParams != null;
+            starter = routed
+                    ? g.closest(routeParams.get("start_lon"), routeParams.get("start_lat")) : -1;
+            ender = routed
+                    ? g.closest(routeParams.get("end_lon"), routeParams.get("end_lat")) : -1;
+            reached = isoParams != null;
+            origin = reached ? g.closest(isoParams.get("iso_lon"), isoParams.get("iso_lat")) : -1;
+            budget = reached ? isochroneBudget(isoParams) : -1;
+            etag = hash(encoding);
+        }
+
+        private String hash(String encoding) {
+            StringBuilder key = new StringBuilder(encoding);
+            for (int i = 0; i < selection.size(); i++) {
+                key.append(',').append(selection.name(i));
+            }
+            if (routed) {
+                key.append('|').append(graphTag).append('|').append(starter).append('|')
+                        .append(ender);
+            }
+            if (reached) {
+                key.append("|iso|").append(graphTag).append('|').append(origin).append('|')
+                        .append(budget);
+            }
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256")
+                        .digest(key.toString().getBytes(StandardCharsets.UTF_8));
+                StringBuilder tag = new StringBuilder("\"");
+                for (int i = 0; i < 16; i++) {
+                    tag.append(String.format("%02x", digest[i]));
                 }
+                return tag.append('"').toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);     // every JVM must provide SHA-256
             }
-        } catch (IOException ioException) {
-            System.out.println("Could not read image");
         }
-        return result;
     }
-    public static double euclidean(double lon, double goallon, double lat, double goallat) {
-        double result = Math.sqrt(Math.pow(Math.abs(lon - goallon), 2)
-                + Math.abs(Math.pow(Math.abs(lat - goallat), 2)));
-        return result;
+
+    /**
+     * Whether an If-None-Match header lists <code>etag</code>. The header holds "*" or a comma
+     * separated list of tags; it is compared weakly, as RFC 7232 specifies for this header.
+     */
+    static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
     }
 
+    /** The header carrying a raster parameter, such as X-Raster-Ul-Lon for raster_ul_lon. */
+    static String rasterHeader(String param) {
+        StringBuilder header = new StringBuilder("X");
+        for (String word : param.split("_")) {
+            header.append('-').append(Character.toUpperCase(word.charAt(0)))
+                    .append(word.substring(1));
+        }
+        return header.toString();
+    }
 
     /**
      * Searches for the shortest route satisfying the input request parameters, and returns a
@@ -322,99 +963,316 @@ public class MapServer {
     public static List<Long> findAndDrawRoute(Map<String, Double> routeParams,
                                               Map<String, Object> rasterImageParams,
                                               BufferedImage im) {
-        if (memoize.containsKey(routeParams) && rasterImageParams != null) {
-            ArrayList<GraphNode> ogpath = new ArrayList<>();
-            for (int x = 0; x < memoize.get(routeParams).size(); x++) {
-                GraphNode adder = g.getresult().get((double) memoize.get(routeParams).get(x));
-                ogpath.add(adder);
-            }
-            drawme(rasterImageParams, im, ogpath);
-            return memoize.get(routeParams);
-        }
-        HashMap<GraphNode, Double> distance = new HashMap<>();
-        HashMap<GraphNode, GraphNode> previous = new HashMap<>();
-        HashMap temp = new HashMap<Double, GraphNode>(g.getresult());
-        double closesttostart = Double.MAX_VALUE;
-        double closesttoend = Double.MAX_VALUE;
-        double starterid = 0;
-        double enderid = 0;
-        for (Object value : temp.values()) {
-            GraphNode user = (GraphNode) value;
-            double startherustic = Math.sqrt(
-                    Math.pow(Math.abs(
-                            user.getlon() - routeParams.get("start_lon")), 2)
-                    + Math.abs(Math.pow(Math.abs(
-                            user.getlat() - routeParams.get("start_lat")), 2)));
-            double endherustic = Math.sqrt(
-                    Math.pow(Math.abs(user.getlon() - routeParams.get("end_lon")), 2)
-                    + Math.abs(Math.pow(
-                            Math.abs(user.getlat() - routeParams.get("end_lat")), 2)));
-            if (startherustic < closesttostart) {
-                closesttostart = startherustic; starterid = user.getid();
-            }
-            if (endherustic < closesttoend) {
-                closesttoend = endherustic; enderid = user.getid();
-            }
-        }
-        class NodeComparator implements Comparator {
-            public int compare(Object o1, Object o2) {
-                GraphNode node1 = (GraphNode) o1;
-                GraphNode node2 = (GraphNode) o2;
-                if (distance.get(o1) > distance.get(o2)) {
-                    return 1;
-                } else if (distance.get(o1) < distance.get(o2)) {
-                    return -1;
-                } else {
-                    return 0;
-                }
+        RoadGraph graph = g.graph();
+        int[] path = findRoute(routeParams);
+        ArrayList<Long> finalresult = new ArrayList<>(path.length);
+        for (int v : path) {
+            finalresult.add(graph.id(v));
+        }
+        if (rasterImageParams != null) {
+            drawRoute(path, rasterImageParams, im);
+        }
+        return finalresult;
+    }
+
+    /** Draw a route found already onto the raster, timed as a draw phase. */
+    private static void drawRoute(int[] path, Map<String, Object> rasterImageParams,
+                                  BufferedImage im) {
+        long start = System.nanoTime();
+        drawme(rasterImageParams, im, path);
+        DRAW_TIME.record(System.nanoTime() - start);
+    }
+
+    /**
+     * The route of findAndDrawRoute() as [lon, lat] pairs, for the browser to draw over tiles
+     * it composites itself.
+     */
+    public static List<double[]> getRouteCoordinates(Map<String, Double> routeParams) {
+        RoadGraph graph = g.graph();
+        int[] path = findRoute(routeParams);
+        List<double[]> coordinates = new ArrayList<>(path.length);
+        for (int v : path) {
+            coordinates.add(new double[] {graph.lon(v), graph.lat(v)});
+        }
+        return coordinates;
+    }
+
+    /** The vertices of the shortest route between the snapped endpoints, cached. */
+    private static int[] findRoute(Map<String, Double> routeParams) {
+        int starter = g.closest(routeParams.get("start_lon"), routeParams.get("start_lat"));
+        int ender = g.closest(routeParams.get("end_lon"), routeParams.get("end_lat"));
+        return cachedRoute(starter, ender);
+    }
+
+    /**
+     * The shortest route between two snapped vertices, from the route cache if it is there.
+     * Concurrent misses for the same pair search once.
+     */
+    private static int[] cachedRoute(int starter, int ender) {
+        if (starter < 0) {
+            return new int[0];
+        }
+        int[] path = routeCache.get(starter, ender);
+        if (path == null) {
+            try {
+                path = ROUTE_FLIGHTS.get((long) starter << 32 | (ender & 0xffffffffL), () -> {
+                    long start = System.nanoTime();
+                    int[] found = router.route(starter, ender);
+                    ROUTE_SEARCH_TIME.record(System.nanoTime() - start);
+                    routeCache.put(starter, ender, found);
+                    return found;
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
         }
-        Queue<GraphNode> fringe = new PriorityQueue<GraphNode>(new NodeComparator());
-        distance.put(g.getresult().get(starterid), 0.0);
-        fringe.add(g.getresult().get(starterid));
-        while (!fringe.isEmpty()) {
-            GraphNode current = fringe.poll();
-            if (current.getid() == enderid) {
-                break;
+        return path;
+    }
+
+    /**
+     * Road distances in metres from each of <code>sources</code> to each of
+     * <code>targets</code>, given as [lon, lat] points and snapped to the road network as
+     * routes are. Row i holds the distances from source i, starting at
+     * <code>i * targets.size()</code>; unreachable targets are infinitely far. When the
+     * targets are the sources list itself, as for a /table request without targets, its points
+     * are snapped once.
+     */
+    public static double[] getDistanceTable(List<double[]> sources, List<double[]> targets) {
+        int[] snappedSources = snap(sources);
+        int[] snappedTargets = targets == sources ? snappedSources : snap(targets);
+        return distanceTable.distances(snappedSources, snappedTargets);
+    }
+
+    private static int[] snap(List<double[]> points) {
+        int[] vertices = new int[points.size()];
+        for (int i = 0; i < vertices.length; i++) {
+            vertices[i] = g.closest(points.get(i)[0], points.get(i)[1]);
+        }
+        return vertices;
+    }
+
+    /**
+     * Parse "lon,lat;lon,lat;..." into [lon, lat] points.
+     * @throws IllegalArgumentException if the list is missing, empty or not made of numbers.
+     */
+    static List<double[]> parsePoints(String points) {
+        if (points == null || points.isEmpty()) {
+            throw new IllegalArgumentException("provide points as lon,lat;lon,lat.");
+        }
+        List<double[]> parsed = new ArrayList<>();
+        for (String point : points.split(";")) {
+            String[] lonLat = point.split(",");
+            if (lonLat.length != 2) {
+                throw new IllegalArgumentException("provide points as lon,lat.");
             }
-            for (Object value : current.getneighbors().values()) {
-                GraphNode user = (GraphNode) value;
-                if (!distance.containsKey(user)) {
-                    distance.put(user, Double.MAX_VALUE);
-                }
-                double curr2user = euclidean(current.getlon(), user.getlon(),
-                        current.getlat(), user.getlat());
-                if (distance.get(user) > distance.get(current)
-                        + curr2user) {
-                    distance.put(user, (distance.get(current)
-                            + curr2user));
-                    previous.put(user, current);
-                    fringe.add(user);
+            try {
+                parsed.add(new double[] {Double.parseDouble(lonLat[0]),
+                    Double.parseDouble(lonLat[1])});
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("provide numbers.");
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Parse the body of a batch route request, halting if it is not a JSON array of objects
+     * each with every one of the REQUIRED_ROUTE_REQUEST_PARAMS as a number.
+     */
+    static List<Map<String, Double>> parseRouteQueries(String body) {
+        List<Map<String, Double>> queries = null;
+        try {
+            queries = new Gson().fromJson(body,
+                    new TypeToken<List<Map<String, Double>>>() { }.getType());
+        } catch (JsonParseException | ClassCastException | NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide a JSON array of routes.");
+        }
+        if (queries == null) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide a JSON array of routes.");
+        }
+        for (Map<String, Double> query : queries) {
+            for (String param : REQUIRED_ROUTE_REQUEST_PARAMS) {
+                if (query == null || query.get(param) == null) {
+                    halt(HALT_RESPONSE, "Request failed - parameters missing.");
                 }
+            }
+        }
+        return queries;
+    }
 
+    /**
+     * One line of a batch route response: the position of the route in the request, the ids of
+     * its nodes and its length on the ground in metres to the decimetre, as in
+     * {"index":0,"nodes":[1,2,3],"distance":123.4}. A route that cannot be found has no nodes
+     * and a null distance.
+     */
+    static String routeLine(int index, int[] path) {
+        RoadGraph graph = g.graph();
+        StringBuilder line = new StringBuilder(32 + path.length * 12)
+                .append("{\"index\":").append(index).append(",\"nodes\":[");
+        double metres = 0;
+        for (int i = 0; i < path.length; i++) {
+            if (i > 0) {
+                line.append(',');
+                metres += graph.metres(path[i - 1], path[i]);
             }
+            line.append(graph.id(path[i]));
         }
-        ArrayList<Long> finalresult = new ArrayList<>();
-        ArrayList<GraphNode> path = new ArrayList<>();
-        GraphNode i = g.getresult().get(enderid);
-        finalresult.add((long) i.getid());
-        path.add(i);
-        while (!i.equals(g.getresult().get(starterid))) {
-            finalresult.add((long) previous.get(i).getid());
-            path.add(previous.get(i));
-            i = previous.get(i);
+        line.append("],\"distance\":");
+        line.append(path.length == 0 ? "null" : Double.toString(Math.round(metres * 10) / 10.0));
+        return line.append('}').toString();
+    }
+
+    /** A distance table as JSON rows of metres to the decimetre, null where unreachable. */
+    static String tableJson(double[] table, int columns) {
+        StringBuilder json = new StringBuilder(table.length * 8 + 16).append("{\"distances\":[");
+        for (int i = 0; i < table.length; i++) {
+            if (i % columns == 0) {
+                json.append(i == 0 ? "[" : "],[");
+            } else {
+                json.append(',');
+            }
+            double d = table[i];
+            if (d == Double.POSITIVE_INFINITY) {
+                json.append("null");
+            } else {
+                json.append(Math.round(d * 10) / 10.0);
+            }
         }
-        Collections.reverse(finalresult);
-        Collections.reverse(path);
-        if (rasterImageParams != null) {
-            drawme(rasterImageParams, im, path);
+        return json.append(table.length > 0 ? "]]}" : "]}").toString();
+    }
+
+    /** A distance table as little-endian 32-bit floats, NaN where unreachable. */
+    static byte[] tableBytes(double[] table) {
+        ByteBuffer bytes = ByteBuffer.allocate(4 * table.length).order(ByteOrder.LITTLE_ENDIAN);
+        for (double d : table) {
+            bytes.putFloat(d == Double.POSITIVE_INFINITY ? Float.NaN : (float) d);
         }
-        memoize.put(routeParams, finalresult);
-        return finalresult;
+        return bytes.array();
+    }
+
+    /**
+     * What can be reached from the node nearest (iso_lon, iso_lat) within iso_distance metres
+     * of road, as a map for the Json response: <br>
+     * "origin" -> Number, the id of the node searched from. <br>
+     * "nodes" -> List of Number, the ids of the reachable nodes, nearest first. <br>
+     * "hull" -> List of [lon, lat], the convex hull of the reachable nodes, counterclockwise.
+     * @param isoParams Params collected from the API call. Members are as
+     *                  described in REQUIRED_ISOCHRONE_REQUEST_PARAMS.
+     */
+    public static Map<String, Object> getIsochrone(Map<String, Double> isoParams) {
+        RoadGraph graph = g.graph();
+        int[] reached = findIsochrone(isoParams);
+        List<Long> nodes = new ArrayList<>(reached.length);
+        for (int v : reached) {
+            nodes.add(graph.id(v));
+        }
+        List<double[]> hull = new ArrayList<>();
+        for (int v : isochrone.hull(reached)) {
+            hull.add(new double[] {graph.lon(v), graph.lat(v)});
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("origin", reached.length > 0 ? graph.id(reached[0]) : null);
+        result.put("nodes", nodes);
+        result.put("hull", hull);
+        return result;
+    }
+
+    /**
+     * The vertices within the budget of the snapped origin, nearest first, cached by origin and
+     * budget in whole metres.
+     */
+    private static int[] findIsochrone(Map<String, Double> isoParams) {
+        return findIsochrone(g.closest(isoParams.get("iso_lon"), isoParams.get("iso_lat")),
+                isochroneBudget(isoParams));
+    }
+
+    /** The vertices within <code>budget</code> metres of a snapped origin, cached. */
+    private static int[] findIsochrone(int origin, int budget) {
+        if (origin < 0 || budget < 0) {
+            return new int[0];
+        }
+        int[] reached = isochroneCache.get(origin, budget);
+        if (reached == null) {
+            long start = System.nanoTime();
+            reached = isochrone.reachable(origin, budget);
+            ISOCHRONE_SEARCH_TIME.record(System.nanoTime() - start);
+            isochroneCache.put(origin, budget, reached);
+        }
+        return reached;
+    }
+
+    /** The isochrone budget rounded to whole metres, or -1 if it is negative or not a number. */
+    private static int isochroneBudget(Map<String, Double> isoParams) {
+        double distance = isoParams.get("iso_distance");
+        return distance >= 0 ? (int) Math.min(Integer.MAX_VALUE, Math.round(distance)) : -1;
+    }
+
+    /**
+     * Draw the convex hull of the isochrone of getIsochrone() onto the raster, filled with
+     * ISOCHRONE_FILL_COLOR and outlined as drawme() draws routes.
+     * @param rasterParams parameters returned from the image rastering.
+     */
+    public static void drawIsochrone(Map<String, Double> isoParams,
+                                     Map<String, Object> rasterParams, BufferedImage tempim) {
+        drawHull(isochrone.hull(findIsochrone(isoParams)), rasterParams, tempim);
+    }
+
+    /** Fill and outline an isochrone hull found already on the raster, as drawIsochrone(). */
+    private static void drawHull(int[] hull, Map<String, Object> rasterParams,
+                                 BufferedImage tempim) {
+        if (hull.length == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        RoadGraph graph = g.graph();
+        double ullon = (Double) rasterParams.get("raster_ul_lon");
+        double ullat = (Double) rasterParams.get("raster_ul_lat");
+        double lrlon = (Double) rasterParams.get("raster_lr_lon");
+        double lrlat = (Double) rasterParams.get("raster_lr_lat");
+        int width = (Integer) rasterParams.get("raster_width");
+        int height = (Integer) rasterParams.get("raster_height");
+        double x = Math.abs(ullon - lrlon) / width;
+        double y = Math.abs(ullat - lrlat) / height;
+        int[] xs = new int[hull.length];
+        int[] ys = new int[hull.length];
+        for (int i = 0; i < hull.length; i++) {
+            xs[i] = (int) ((graph.lon(hull[i]) - ullon) / x);
+            ys[i] = (int) ((ullat - graph.lat(hull[i])) / y);
+        }
+        Graphics2D newImage = (Graphics2D) tempim.getGraphics();
+        newImage.setColor(ISOCHRONE_FILL_COLOR);
+        newImage.fillPolygon(xs, ys, hull.length);
+        newImage.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
+                BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        newImage.setColor(ROUTE_STROKE_COLOR);
+        newImage.drawPolygon(xs, ys, hull.length);
+        DRAW_TIME.record(System.nanoTime() - start);
+    }
+
+    /** The isochrone cache, for its hit, miss and eviction counters. */
+    public static RouteCache isochroneCache() {
+        return isochroneCache;
+    }
+
+    /** The histograms and counters served on /metrics. */
+    public static Metrics metrics() {
+        return METRICS;
+    }
+
+    /** The tile cache, for its hit, miss and eviction counters. */
+    public static TileCache tileCache() {
+        return tiles;
+    }
+
+    /** The route cache, for its hit, miss and eviction counters. */
+    public static RouteCache routeCache() {
+        return routeCache;
     }
 
     public static void drawme(Map<String, Object> rasterParams, BufferedImage tempim,
-                              ArrayList<GraphNode> route) {
+                              int[] route) {
+        RoadGraph graph = g.graph();
         double ullon = (Double) rasterParams.get("raster_ul_lon");
         double ullat = (Double) rasterParams.get("raster_ul_lat");
         double lrlon = (Double) rasterParams.get("raster_lr_lon");
@@ -428,29 +1286,39 @@ public class MapServer {
                 BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
         newImage.setStroke(stroke);
         newImage.setColor(ROUTE_STROKE_COLOR);
-        for (int n = 0; n < route.size() - 1; n++) {
-            double x1 = (route.get(n).getlon() - ullon) / x;
-            double y1 = (ullat - route.get(n).getlat()) / y;
-            double x2 = (route.get(n + 1).getlon() - ullon) / x;
-            double y2 = (ullat - route.get(n + 1).getlat()) / y;
+        for (int n = 0; n < route.length - 1; n++) {
+            double x1 = (graph.lon(route[n]) - ullon) / x;
+            double y1 = (ullat - graph.lat(route[n])) / y;
+            double x2 = (graph.lon(route[n + 1]) - ullon) / x;
+            double y2 = (ullat - graph.lat(route[n + 1])) / y;
             newImage.drawLine((int) x1, (int) y1, (int) x2, (int) y2);
         }
     }
 
     /**
-     * In linear time, collect all the names of OSM locations that prefix-match the query string.
+     * Collect all the names of OSM locations that prefix-match the query string, from the
+     * prefix index built when the map was loaded.
      * @param prefix Prefix string to be searched for. Could be any case, with our without
      *               punctuation.
      * @return A <code>List</code> of the full names of locations whose cleaned name matches the
      * cleaned <code>prefix</code>.
      */
     public static List<String> getLocationsByPrefix(String prefix) {
-        return new LinkedList<>();
+        return getLocationsByPrefix(prefix, Integer.MAX_VALUE);
+    }
+
+    /**
+     * The best <code>limit</code> matches of getLocationsByPrefix(), best first: names that
+     * more places share, then shorter names.
+     */
+    public static List<String> getLocationsByPrefix(String prefix, int limit) {
+        return g.prefixIndex().complete(prefix, limit);
     }
 
     /**
      * Collect all locations that match a cleaned <code>locationName</code>, and return
-     * information about each node that matches.
+     * information about each node that matches. When no name matches exactly, the locations
+     * with the names fewest edits away are returned instead, so typos still find a place.
      * @param locationName A full name of a location searched for.
      * @return A list of locations whose cleaned name matches the
      * cleaned <code>locationName</code>, and each location is a map of parameters for the Json
@@ -461,6 +1329,17 @@ public class MapServer {
      * "id" -> Number, The id of the node. <br>
      */
     public static List<Map<String, Object>> getLocations(String locationName) {
-        return new LinkedList<>();
+        Locations places = g.locations();
+        int[] found = g.locationIndex().find(locationName);
+        List<Map<String, Object>> locations = new ArrayList<>(found.length);
+        for (int i : found) {
+            Map<String, Object> location = new HashMap<>();
+            location.put("lat", places.lat(i));
+            location.put("lon", places.lon(i));
+            location.put("name", places.name(i));
+            location.put("id", places.id(i));
+            locations.add(location);
+        }
+        return locations;
     }
 }
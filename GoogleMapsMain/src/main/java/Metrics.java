@@ -0,0 +1,147 @@
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Counters, gauges and latency histograms, written out by scrape() in the Prometheus text
+ * exposition format for /metrics. Counters and gauges are read from suppliers only when
+ * scraped, so the caches keep counting with their own LongAdders and nothing more runs per
+ * request; histograms are recorded into directly.
+ * <p>
+ *     Samples are grouped into families by name, each with a help text and a type, and told
+ *     apart within a family by their labels, as made by labels(). Registering a counter or
+ *     gauge again under the same name and labels replaces it, so MapServer.initialize() can
+ *     run more than once.
+ * </p>
+ */
+public class Metrics {
+    /**
+     * Upper bounds of the histogram buckets exposed, in seconds. A LatencyHistogram bucket
+     * counts under the first bound at or above its highest value, so a duration may be counted
+     * up to 1/16 slower than it was, never faster.
+     */
+    static final double[] BOUNDS = {0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025,
+        0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private static final class Family {
+        final String type;
+        final String help;
+        /** Labels to a DoubleSupplier, or to a LatencyHistogram for histograms. */
+        final Map<String, Object> samples = new LinkedHashMap<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    /** A label set with one label, such as <code>cache="tile"</code>. */
+    public static String labels(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n") + "\"";
+    }
+
+    /** A count that only goes up; its name should end in _total. */
+    public synchronized void counter(String name, String labels, String help,
+                                     DoubleSupplier value) {
+        register(name, "counter", help).samples.put(labels, value);
+    }
+
+    /** A value that goes up and down. */
+    public synchronized void gauge(String name, String labels, String help,
+                                   DoubleSupplier value) {
+        register(name, "gauge", help).samples.put(labels, value);
+    }
+
+    /**
+     * The histogram of durations named <code>name</code> with these labels, made the first
+     * time it is asked for; its name should end in _seconds.
+     */
+    public synchronized LatencyHistogram histogram(String name, String labels, String help) {
+        return (LatencyHistogram) register(name, "histogram", help).samples
+                .computeIfAbsent(labels, l -> new LatencyHistogram());
+    }
+
+    /** Expose a histogram kept elsewhere, replacing any with the same name and labels. */
+    public synchronized void histogram(String name, String labels, String help,
+                                       LatencyHistogram histogram) {
+        register(name, "histogram", help).samples.put(labels, histogram);
+    }
+
+    private synchronized Family register(String name, String type, String help) {
+        Family family = families.computeIfAbsent(name, n -> new Family(type, help));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already a " + family.type);
+        }
+        return family;
+    }
+
+    /** Every sample, in the Prometheus text format, version 0.0.4. */
+    public synchronized String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> sample : family.samples.entrySet()) {
+                String labels = sample.getKey();
+                if (sample.getValue() instanceof LatencyHistogram) {
+                    writeHistogram(out, name, labels, (LatencyHistogram) sample.getValue());
+                } else {
+                    writeSample(out, name, labels,
+                            ((DoubleSupplier) sample.getValue()).getAsDouble());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String labels,
+                                       LatencyHistogram histogram) {
+        long[] counts = histogram.counts();
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        int bucket = 0;
+        for (double bound : BOUNDS) {
+            long nanos = (long) (bound * 1e9);
+            while (bucket < counts.length && LatencyHistogram.highest(bucket) <= nanos) {
+                cumulative += counts[bucket++];
+            }
+            String le = BigDecimal.valueOf(bound).stripTrailingZeros().toPlainString();
+            writeSample(out, name + "_bucket", prefix + "le=\"" + le + "\"", cumulative);
+        }
+        while (bucket < counts.length) {
+            cumulative += counts[bucket++];
+        }
+        writeSample(out, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+        writeSample(out, name + "_sum", labels, histogram.sum() / 1e9);
+        writeSample(out, name + "_count", labels, cumulative);
+    }
+
+    private static void writeSample(StringBuilder out, String name, String labels,
+                                    double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(number(value)).append('\n');
+    }
+
+    /** A value as Prometheus reads it, whole numbers without a fraction. */
+    private static String number(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
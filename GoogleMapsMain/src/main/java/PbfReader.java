@@ -0,0 +1,583 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads OpenStreetMap PBF extracts, the binary format regional downloads ship in, into a
+ * MapDBHandler, which builds the same graph and places it does from XML. See
+ * <a href="https://wiki.openstreetmap.org/wiki/PBF_Format">the PBF format</a>.
+ * <p>
+ *     A file is a sequence of blobs, each a zlib-compressed or raw protobuf block of a few
+ *     thousand nodes or ways. The blobs are read in order on the calling thread and inflated
+ *     and decoded on the common fork-join pool, a bounded window of them at a time. Decoded
+ *     blocks are handed to the handler in file order, so nodes still come before the ways that
+ *     refer to them. Only the fields the map needs are decoded: node ids, coordinates and names,
+ *     and the refs of ways with an allowed highway tag. The protobuf wire format is decoded by
+ *     hand, so no generated code or library is needed.
+ * </p>
+ */
+public class PbfReader {
+    /** Limits set by the format. */
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+    private static final int MAX_BLOB_BYTES = 32 * 1024 * 1024;
+    private static final Set<String> SUPPORTED_FEATURES =
+            new HashSet<>(Arrays.asList("OsmSchema-V0.6", "DenseNodes"));
+
+    /** Parse the PBF file into <code>handler</code>, ending its document when done. */
+    public static void read(File file, MapDBHandler handler) throws IOException {
+        int window = 2 * Runtime.getRuntime().availableProcessors();
+        ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            int first;
+            while ((first = in.read()) >= 0) {
+                int headerBytes = first << 24 | in.readUnsignedByte() << 16
+                        | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+                if (headerBytes < 0 || headerBytes > MAX_HEADER_BYTES) {
+                    throw new IOException("Bad PBF blob header size " + headerBytes);
+                }
+                String type = null;
+                int blobBytes = -1;
+                Proto header = new Proto(readFully(in, headerBytes));
+                while (header.hasMore()) {
+                    int tag = header.tag();
+                    if (tag == (1 << 3 | 2)) {
+                        type = header.string();
+                    } else if (tag == (3 << 3)) {
+                        blobBytes = (int) header.varint();
+                    } else {
+                        header.skip(tag);
+                    }
+                }
+                if (type == null || blobBytes < 0 || blobBytes > MAX_BLOB_BYTES) {
+                    throw new IOException("Bad PBF blob header");
+                }
+                byte[] blob = readFully(in, blobBytes);
+                if (type.equals("OSMHeader")) {
+                    checkFeatures(inflate(blob));
+                } else if (type.equals("OSMData")) {
+                    pending.add(ForkJoinPool.commonPool().submit(() -> decode(inflate(blob))));
+                    if (pending.size() >= window) {
+                        apply(pending.poll(), handler);
+                    }
+                }
+                /* Blobs of other types may be skipped, as the format allows. */
+            }
+            while (!pending.isEmpty()) {
+                apply(pending.poll(), handler);
+            }
+        } finally {
+            for (Future<Block> f : pending) {
+                f.cancel(false);
+            }
+        }
+        handler.endDocument();
+    }
+
+    private static byte[] readFully(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        try {
+            in.readFully(bytes);
+        } catch (EOFException e) {
+            throw new IOException("Truncated PBF file", e);
+        }
+        return bytes;
+    }
+
+    /** Wait for a decoded block and add its nodes, places and ways to the handler. */
+    private static void apply(Future<Block> decoded, MapDBHandler handler) throws IOException {
+        Block block;
+        try {
+            block = decoded.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reading PBF");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not decode PBF block", e.getCause());
+        }
+        int named = 0;
+        for (int i = 0; i < block.nodeCount; i++) {
+            handler.addNode(block.ids[i], block.lats[i], block.lons[i]);
+            if (named < block.names.size() && block.namedNodes[named] == i) {
+                handler.addPlace(block.ids[i], block.lats[i], block.lons[i],
+                        block.names.get(named++));
+            }
+        }
+        for (long[] refs : block.ways) {
+            handler.addWay(refs, refs.length);
+        }
+    }
+
+    /** The block inside a Blob message, inflated if it was compressed. */
+    private static byte[] inflate(byte[] blob) throws IOException {
+        Proto p = new Proto(blob);
+        int rawSize = -1;
+        int dataTag = 0;
+        int dataStart = 0;
+        int dataLength = 0;
+        while (p.hasMore()) {
+            int tag = p.tag();
+            if (tag == (1 << 3 | 2) || tag == (3 << 3 | 2)) {
+                dataTag = tag;
+                dataLength = p.length();
+                dataStart = p.pos;
+                p.pos += dataLength;
+            } else if (tag == (2 << 3)) {
+                rawSize = (int) p.varint();
+            } else if (tag >>> 3 >= 4 && tag >>> 3 <= 7) {
+                throw new IOException("Unsupported PBF compression, field " + (tag >>> 3));
+            } else {
+                p.skip(tag);
+            }
+        }
+        if (dataTag == (1 << 3 | 2)) {
+            return Arrays.copyOfRange(blob, dataStart, dataStart + dataLength);
+        }
+        if (dataTag == 0 || rawSize < 0 || rawSize > MAX_BLOB_BYTES) {
+            throw new IOException("Bad PBF blob");
+        }
+        byte[] raw = new byte[rawSize];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(blob, dataStart, dataLength);
+            int n = 0;
+            while (n < rawSize && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, n, rawSize - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != rawSize) {
+                throw new IOException("PBF blob inflated to " + n + " bytes, not " + rawSize);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt PBF blob", e);
+        } finally {
+            inflater.end();
+        }
+        return raw;
+    }
+
+    /** Reject files that need features this reader lacks, such as history. */
+    private static void checkFeatures(byte[] headerBlock) throws IOException {
+        Proto p = new Proto(headerBlock);
+        while (p.hasMore()) {
+            int tag = p.tag();
+            if (tag == (4 << 3 | 2)) {
+                String feature = p.string();
+                if (!SUPPORTED_FEATURES.contains(feature)) {
+                    throw new IOException("Unsupported PBF feature " + feature);
+                }
+            } else {
+                p.skip(tag);
+            }
+        }
+    }
+
+    /** The nodes, named nodes and allowed ways of one block, in the order they appear. */
+    private static final class Block {
+        long[] ids = new long[1024];
+        double[] lats = new double[1024];
+        double[] lons = new double[1024];
+        int nodeCount;
+        /** Ascending indices of the nodes that have a name, and their names. */
+        int[] namedNodes = new int[64];
+        final List<String> names = new ArrayList<>();
+        final List<long[]> ways = new ArrayList<>();
+
+        void addNode(long id, double lat, double lon) {
+            if (nodeCount == ids.length) {
+                ids = Arrays.copyOf(ids, nodeCount * 2);
+                lats = Arrays.copyOf(lats, nodeCount * 2);
+                lons = Arrays.copyOf(lons, nodeCount * 2);
+            }
+            ids[nodeCount] = id;
+            lats[nodeCount] = lat;
+            lons[nodeCount] = lon;
+            nodeCount++;
+        }
+
+        /** Name the node added last. */
+        void addName(String name) {
+            if (names.size() == namedNodes.length) {
+                namedNodes = Arrays.copyOf(namedNodes, names.size() * 2);
+            }
+            namedNodes[names.size()] = nodeCount - 1;
+            names.add(name);
+        }
+    }
+
+    /** Decode a PrimitiveBlock. */
+    private static Block decode(byte[] data) throws IOException {
+        Proto p = new Proto(data);
+        String[] strings = new String[0];
+        List<Proto> groups = new ArrayList<>();
+        long granularity = 100;
+        long latOffset = 0;
+        long lonOffset = 0;
+        while (p.hasMore()) {
+            int tag = p.tag();
+            switch (tag) {
+                case 1 << 3 | 2:
+                    strings = stringTable(p.message());
+                    break;
+                case 2 << 3 | 2:
+                    groups.add(p.message());
+                    break;
+                case 17 << 3:
+                    granularity = p.varint();
+                    break;
+                case 19 << 3:
+                    latOffset = p.varint();
+                    break;
+                case 20 << 3:
+                    lonOffset = p.varint();
+                    break;
+                default:
+                    p.skip(tag);
+            }
+        }
+        Block block = new Block();
+        Coordinates at = new Coordinates(granularity, latOffset, lonOffset);
+        int name = indexOf(strings, "name");
+        int highway = indexOf(strings, "highway");
+        boolean[] allowed = new boolean[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            allowed[i] = MapDBHandler.isAllowedHighway(strings[i]);
+        }
+        for (Proto group : groups) {
+            while (group.hasMore()) {
+                int tag = group.tag();
+                switch (tag) {
+                    case 1 << 3 | 2:
+                        node(group.message(), strings, name, at, block);
+                        break;
+                    case 2 << 3 | 2:
+                        denseNodes(group.message(), strings, name, at, block);
+                        break;
+                    case 3 << 3 | 2:
+                        way(group.message(), highway, allowed, block);
+                        break;
+                    default:
+                        group.skip(tag);    // relations and changesets
+                }
+            }
+        }
+        return block;
+    }
+
+    private static String[] stringTable(Proto p) throws IOException {
+        List<String> strings = new ArrayList<>();
+        while (p.hasMore()) {
+            int tag = p.tag();
+            if (tag == (1 << 3 | 2)) {
+                strings.add(p.string());
+            } else {
+                p.skip(tag);
+            }
+        }
+        return strings.toArray(new String[0]);
+    }
+
+    /** The index of <code>s</code> in the string table, or -1; index 0 is never a key. */
+    private static int indexOf(String[] strings, String s) {
+        for (int i = 1; i < strings.length; i++) {
+            if (strings[i].equals(s)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Turns a block's stored coordinates into degrees. Nanodegrees are divided by 1e9 rather
+     * than multiplied by 1e-9, which rounds once and so gives the same double as parsing the
+     * decimal the XML would have held.
+     */
+    private static final class Coordinates {
+        final long granularity;
+        final long latOffset;
+        final long lonOffset;
+
+        Coordinates(long granularity, long latOffset, long lonOffset) {
+            this.granularity = granularity;
+            this.latOffset = latOffset;
+            this.lonOffset = lonOffset;
+        }
+
+        double lat(long stored) {
+            return (latOffset + granularity * stored) / 1e9;
+        }
+
+        double lon(long stored) {
+            return (lonOffset + granularity * stored) / 1e9;
+        }
+    }
+
+    private static void node(Proto p, String[] strings, int name, Coordinates at, Block block)
+            throws IOException {
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        Proto keys = null;
+        Proto vals = null;
+        while (p.hasMore()) {
+            int tag = p.tag();
+            switch (tag) {
+                case 1 << 3:
+                    id = p.sint();
+                    break;
+                case 2 << 3 | 2:
+                    keys = p.message();
+                    break;
+                case 3 << 3 | 2:
+                    vals = p.message();
+                    break;
+                case 8 << 3:
+                    lat = p.sint();
+                    break;
+                case 9 << 3:
+                    lon = p.sint();
+                    break;
+                default:
+                    p.skip(tag);
+            }
+        }
+        block.addNode(id, at.lat(lat), at.lon(lon));
+        while (keys != null && vals != null && keys.hasMore() && vals.hasMore()) {
+            int k = (int) keys.varint();
+            int v = (int) vals.varint();
+            if (k == name) {
+                block.addName(string(strings, v));
+                break;
+            }
+        }
+    }
+
+    /** Dense nodes store ids and coordinates as deltas, and all tags in one keys_vals list. */
+    private static void denseNodes(Proto p, String[] strings, int name, Coordinates at,
+                                   Block block) throws IOException {
+        Proto ids = null;
+        Proto lats = null;
+        Proto lons = null;
+        Proto tags = null;
+        while (p.hasMore()) {
+            int tag = p.tag();
+            switch (tag) {
+                case 1 << 3 | 2:
+                    ids = p.message();
+                    break;
+                case 8 << 3 | 2:
+                    lats = p.message();
+                    break;
+                case 9 << 3 | 2:
+                    lons = p.message();
+                    break;
+                case 10 << 3 | 2:
+                    tags = p.message();
+                    break;
+                default:
+                    p.skip(tag);
+            }
+        }
+        if (ids == null) {
+            return;
+        }
+        if (lats == null || lons == null) {
+            throw new IOException("PBF dense nodes without coordinates");
+        }
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        while (ids.hasMore()) {
+            id += ids.sint();
+            lat += lats.sint();
+            lon += lons.sint();
+            block.addNode(id, at.lat(lat), at.lon(lon));
+            /* This node's tags run up to a 0; an absent list means no node has tags. */
+            boolean named = false;
+            while (tags != null && tags.hasMore()) {
+                int k = (int) tags.varint();
+                if (k == 0) {
+                    break;
+                }
+                int v = (int) tags.varint();
+                if (k == name && !named) {
+                    block.addName(string(strings, v));
+                    named = true;
+                }
+            }
+        }
+    }
+
+    private static void way(Proto p, int highway, boolean[] allowed, Block block)
+            throws IOException {
+        Proto keys = null;
+        Proto vals = null;
+        Proto refs = null;
+        while (p.hasMore()) {
+            int tag = p.tag();
+            switch (tag) {
+                case 2 << 3 | 2:
+                    keys = p.message();
+                    break;
+                case 3 << 3 | 2:
+                    vals = p.message();
+                    break;
+                case 8 << 3 | 2:
+                    refs = p.message();
+                    break;
+                default:
+                    p.skip(tag);
+            }
+        }
+        boolean routable = false;
+        while (highway >= 0 && keys != null && vals != null && keys.hasMore() && vals.hasMore()) {
+            int k = (int) keys.varint();
+            int v = (int) vals.varint();
+            if (k == highway) {
+                routable = v >= 0 && v < allowed.length && allowed[v];
+                break;
+            }
+        }
+        if (!routable || refs == null) {
+            return;
+        }
+        long[] nodes = new long[16];
+        int count = 0;
+        long ref = 0;
+        while (refs.hasMore()) {
+            ref += refs.sint();
+            if (count == nodes.length) {
+                nodes = Arrays.copyOf(nodes, count * 2);
+            }
+            nodes[count++] = ref;
+        }
+        block.ways.add(Arrays.copyOf(nodes, count));
+    }
+
+    private static String string(String[] strings, int i) throws IOException {
+        if (i < 0 || i >= strings.length) {
+            throw new IOException("PBF string index " + i + " out of range");
+        }
+        return strings[i];
+    }
+
+    /** A cursor over protobuf fields in <code>buf[pos, limit)</code>. */
+    private static final class Proto {
+        private final byte[] buf;
+        private int pos;
+        private final int limit;
+
+        Proto(byte[] buf) {
+            this(buf, 0, buf.length);
+        }
+
+        private Proto(byte[] buf, int pos, int limit) {
+            this.buf = buf;
+            this.pos = pos;
+            this.limit = limit;
+        }
+
+        boolean hasMore() {
+            return pos < limit;
+        }
+
+        /** The next field's number and wire type, as (number << 3) | type. */
+        int tag() throws IOException {
+            return (int) varint();
+        }
+
+        long varint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= limit) {
+                    throw new IOException("Truncated PBF varint");
+                }
+                byte b = buf[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed PBF varint");
+        }
+
+        /** A zigzag-encoded signed varint. */
+        long sint() throws IOException {
+            long v = varint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        /** The length prefix of a length-delimited field, checked against the limit. */
+        int length() throws IOException {
+            long n = varint();
+            if (n < 0 || n > limit - pos) {
+                throw new IOException("PBF field overruns its message");
+            }
+            return (int) n;
+        }
+
+        /** A cursor over the next length-delimited field, which this one steps past. */
+        Proto message() throws IOException {
+            int n = length();
+            Proto inner = new Proto(buf, pos, pos + n);
+            pos += n;
+            return inner;
+        }
+
+        String string() throws IOException {
+            int n = length();
+            String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+
+        void skip(int tag) throws IOException {
+            switch (tag & 7) {
+                case 0:
+                    varint();
+                    break;
+                case 1:
+                    advance(8);
+                    break;
+                case 2:
+                    int n = length();   // read before pos, which the length prefix moves
+                    pos += n;
+                    break;
+                case 5:
+                    advance(4);
+                    break;
+                default:
+                    throw new IOException("Unsupported PBF wire type " + (tag & 7));
+            }
+        }
+
+        private void advance(int n) throws IOException {
+            if (n > limit - pos) {
+                throw new IOException("Truncated PBF field");
+            }
+            pos += n;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Autocompletion over the names of Locations. Each distinct name is stored once, in the order
+ * of its cleaned form, so the names starting with a cleaned prefix are one contiguous range
+ * found by two binary searches. Names are ranked by how many places carry them, then shorter
+ * first, then alphabetically.
+ * <p>
+ *     A sparse table holds the best ranked name of every power-of-two run of the sorted
+ *     array, which gives the best name of any range in two lookups. The top k names of a range
+ *     are then found by repeatedly taking the best name and splitting the range around it, so a
+ *     query costs O(log n + k log k) however many names share the prefix.
+ * </p>
+ */
+public class PrefixIndex {
+    /** Cleaned names, sorted. */
+    private final String[] keys;
+    /** The full name of each key. */
+    private final String[] names;
+    /** Position of each name in the ranking; 0 is the best. */
+    private final int[] rank;
+    /** best[j][i] is the best ranked index in [i, i + 2^j). */
+    private final int[][] best;
+
+    public PrefixIndex(Locations locations) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < locations.size(); i++) {
+            counts.merge(locations.name(i), 1, Integer::sum);
+        }
+        int n = counts.size();
+        String[] unique = counts.keySet().toArray(new String[n]);
+        String[] cleaned = new String[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            cleaned[i] = GraphDB.cleanString(unique[i]);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int c = cleaned[a].compareTo(cleaned[b]);
+            return c != 0 ? c : unique[a].compareTo(unique[b]);
+        });
+        keys = new String[n];
+        names = new String[n];
+        for (int k = 0; k < n; k++) {
+            keys[k] = cleaned[order[k]];
+            names[k] = unique[order[k]];
+        }
+
+        Integer[] byRank = new Integer[n];
+        for (int k = 0; k < n; k++) {
+            byRank[k] = k;
+        }
+        Arrays.sort(byRank, (a, b) -> {
+            int c = Integer.compare(counts.get(names[b]), counts.get(names[a]));
+            if (c == 0) {
+                c = Integer.compare(names[a].length(), names[b].length());
+            }
+            return c != 0 ? c : names[a].compareTo(names[b]);
+        });
+        rank = new int[n];
+        for (int r = 0; r < n; r++) {
+            rank[byRank[r]] = r;
+        }
+
+        int levels = n == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(n);
+        best = new int[levels][];
+        if (levels > 0) {
+            best[0] = new int[n];
+            for (int i = 0; i < n; i++) {
+                best[0][i] = i;
+            }
+        }
+        for (int j = 1; j < levels; j++) {
+            int half = 1 << (j - 1);
+            best[j] = new int[n - (1 << j) + 1];
+            for (int i = 0; i < best[j].length; i++) {
+                best[j][i] = better(best[j - 1][i], best[j - 1][i + half]);
+            }
+        }
+    }
+
+    /** Number of distinct names. */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * The best ranked <code>limit</code> names whose cleaned form starts with the cleaned
+     * <code>prefix</code>, best first.
+     */
+    public List<String> complete(String prefix, int limit) {
+        String p = GraphDB.cleanString(prefix);
+        int lo = lowerBound(p);
+        int hi = endOfPrefix(p, lo);
+        List<String> result = new ArrayList<>(Math.max(0, Math.min(limit, hi - lo)));
+        if (lo >= hi || limit <= 0) {
+            return result;
+        }
+        PriorityQueue<int[]> ranges =
+                new PriorityQueue<>((a, b) -> Integer.compare(rank[a[2]], rank[b[2]]));
+        ranges.add(range(lo, hi));
+        while (!ranges.isEmpty() && result.size() < limit) {
+            int[] range = ranges.poll();
+            int top = range[2];
+            result.add(names[top]);
+            if (range[0] < top) {
+                ranges.add(range(range[0], top));
+            }
+            if (top + 1 < range[1]) {
+                ranges.add(range(top + 1, range[1]));
+            }
+        }
+        return result;
+    }
+
+    /** The range [lo, hi) with the index of its best ranked name. */
+    private int[] range(int lo, int hi) {
+        int j = 31 - Integer.numberOfLeadingZeros(hi - lo);
+        return new int[] {lo, hi, better(best[j][lo], best[j][hi - (1 << j)])};
+    }
+
+    private int better(int a, int b) {
+        return rank[a] <= rank[b] ? a : b;
+    }
+
+    /** The first index whose key is not less than <code>p</code>. */
+    private int lowerBound(String p) {
+        int lo = 0;
+        int hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(p) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** The first index from <code>lo</code> on whose key does not start with <code>p</code>. */
+    private int endOfPrefix(String p, int lo) {
+        int hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].startsWith(p)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -1,136 +1,219 @@
-import java.util.*;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Created by Family on 7/17/16.
+ * The quadtree of map tiles, kept implicitly: no node objects exist. At depth d the root is split
+ * into a 2^d by 2^d grid, and the tile in row r and column c is named by one digit per level,
+ * most significant first, of 1 for the upper left quadrant, 2 upper right, 3 lower left and
+ * 4 lower right. Tile edges are found by halving the root box level by level, exactly as the
+ * node objects used to compute them, so the bounds reported to clients are unchanged.
+ * <p>
+ *     Selecting the tiles of a raster takes O(1) arithmetic to pick the depth and O(depth) to
+ *     find the ranges of rows and columns, however many tiles the raster covers. Instances are
+ *     immutable, so one can serve concurrent raster requests.
+ * </p>
  */
-public class QuadTree implements Comparable<QuadTree> {
-    private QuadTree parent;
-    private QuadTree[] children;
-    private double ullon;
-    private double ullat;
-    private double lrlon;
-    private double lrlat;
-    private int img;
-    private double depth;
-
-    public QuadTree(double ullon, double ullat, double lrlon, double lrlat, int img, double depth) {
+public class QuadTree {
+    private final double ullon;
+    private final double ullat;
+    private final double lrlon;
+    private final double lrlat;
+    private final int maxDepth;
+
+    /**
+     * @param maxDepth The depth of the deepest tiles; the root's children are at depth 1.
+     */
+    public QuadTree(double ullon, double ullat, double lrlon, double lrlat, int maxDepth) {
+        if (maxDepth < 1 || maxDepth > 30) {
+            throw new IllegalArgumentException("Depth must be from 1 to 30: " + maxDepth);
+        }
         this.ullon = ullon;
         this.ullat = ullat;
         this.lrlon = lrlon;
         this.lrlat = lrlat;
-        this.img = img;
-        this.depth = depth;
-        this.children = new QuadTree[4];
-        if (this.depth < 7) {
-            this.children[0] = new QuadTree(ullon, ullat, (ullon + lrlon) / 2,
-                    (ullat + lrlat) / 2, (img * 10) + 1, depth + 1);
-            this.children[1] = new QuadTree((ullon + lrlon) / 2, ullat, lrlon,
-                    (ullat + lrlat) / 2, (img * 10) + 2, depth + 1);
-            this.children[2] = new QuadTree(ullon, (ullat + lrlat) / 2,
-                    (ullon + lrlon) / 2, lrlat, (img * 10) + 3, depth + 1);
-            this.children[3] = new QuadTree((ullon + lrlon) / 2,
-                    (ullat + lrlat) / 2, lrlon, lrlat, (img * 10) + 4, depth + 1);
-        } else {
-            this.children = null;
-        }
+        this.maxDepth = maxDepth;
     }
-    public void rasteredImages(List lisstrees, QuadTree tree,
-                               double querydpp, Map<String, Double> params) {
-        if (intersectsTile(tree.children[0], params)) {
-            if (satisfiesDepthorisLeaf(tree.children[0], 256, querydpp)) {
 
-                lisstrees.add(tree.children[0]);
-            } else {
-                rasteredImages(lisstrees, tree.children[0], querydpp, params);
-            }
-        }
-        if (intersectsTile(tree.children[1], params)) {
-            if (satisfiesDepthorisLeaf(tree.children[1], 256, querydpp)) {
+    public int maxDepth() {
+        return maxDepth;
+    }
 
-                lisstrees.add(tree.children[1]);
-            } else {
-                rasteredImages(lisstrees, tree.children[1], querydpp, params);
-            }
+    /**
+     * The tiles a raster of the query box is made of: those of the shallowest depth, at least 1,
+     * whose tiles cover no more longitude per pixel than the query, or of the deepest depth if
+     * none do, that intersect the query box, edges included.
+     * @param queryLonDPP Longitude per pixel of the query.
+     * @param tileSize The width of a tile, in pixels.
+     */
+    public Selection select(double qullon, double qullat, double qlrlon, double qlrlat,
+                            double queryLonDPP, int tileSize) {
+        int depth = depthFor(queryLonDPP, tileSize);
+        int n = 1 << depth;
+        /* Estimate each range by arithmetic, then settle it on the exact edges. */
+        double lonStep = (lrlon - ullon) / n;
+        double latStep = (ullat - lrlat) / n;
+        int firstColumn = clamp((int) Math.floor((qullon - ullon) / lonStep), n);
+        while (firstColumn > 0 && qullon <= lon(depth, firstColumn)) {
+            firstColumn--;
+        }
+        while (firstColumn < n && qullon > lon(depth, firstColumn + 1)) {
+            firstColumn++;
+        }
+        int lastColumn = clamp((int) Math.floor((qlrlon - ullon) / lonStep), n);
+        while (lastColumn < n - 1 && lon(depth, lastColumn + 1) <= qlrlon) {
+            lastColumn++;
+        }
+        while (lastColumn >= 0 && lon(depth, lastColumn) > qlrlon) {
+            lastColumn--;
+        }
+        int firstRow = clamp((int) Math.floor((ullat - qullat) / latStep), n);
+        while (firstRow > 0 && qullat >= lat(depth, firstRow)) {
+            firstRow--;
+        }
+        while (firstRow < n && qullat < lat(depth, firstRow + 1)) {
+            firstRow++;
         }
-        if (intersectsTile(tree.children[2], params)) {
-            if (satisfiesDepthorisLeaf(tree.children[2], 256, querydpp)) {
+        int lastRow = clamp((int) Math.floor((ullat - qlrlat) / latStep), n);
+        while (lastRow < n - 1 && lat(depth, lastRow + 1) >= qlrlat) {
+            lastRow++;
+        }
+        while (lastRow >= 0 && lat(depth, lastRow) < qlrlat) {
+            lastRow--;
+        }
+        return new Selection(this, depth, firstRow, lastRow, firstColumn, lastColumn);
+    }
 
-                lisstrees.add(tree.children[2]);
-            } else {
-                rasteredImages(lisstrees, tree.children[2], querydpp, params);
-            }
+    /** The shallowest depth whose tiles have at most <code>lonDPP</code>, or the deepest. */
+    private int depthFor(double lonDPP, int tileSize) {
+        int depth = 1;
+        double ratio = (lrlon - ullon) / (tileSize * lonDPP);
+        if (ratio > 2) {
+            depth = Math.min(maxDepth, (int) Math.ceil(Math.log(ratio) / Math.log(2)));
         }
-        if (intersectsTile(tree.children[3], params)) {
-            if (satisfiesDepthorisLeaf(tree.children[3], 256, querydpp)) {
-                lisstrees.add(tree.children[3]);
-            } else {
-                rasteredImages(lisstrees, tree.children[3], querydpp, params);
-            }
+        while (depth > 1 && tileLonDPP(depth - 1, tileSize) <= lonDPP) {
+            depth--;
         }
+        while (depth < maxDepth && tileLonDPP(depth, tileSize) > lonDPP) {
+            depth++;
+        }
+        return depth;
     }
-    public boolean intersectsTile(QuadTree tree, Map<String, Double> params) {
-        return ((tree.ullon <= params.get("lrlon"))
-                && (params.get("ullon") <= tree.lrlon)
-                && (tree.ullat >= params.get("lrlat"))
-                && (params.get("ullat") >= tree.lrlat));
+
+    private double tileLonDPP(int depth, int tileSize) {
+        return (lon(depth, 1) - lon(depth, 0)) / tileSize;
     }
-    public boolean satisfiesDepthorisLeaf(QuadTree tree, double width, double querydpp) {
-        if (((tree.lrlon - tree.ullon) / width) <= querydpp || tree.children == null) {
-            return true;
-        }
-        return false;
+
+    /** Longitude of the left edge of column <code>k</code> at <code>depth</code>. */
+    private double lon(int depth, int k) {
+        return edge(ullon, lrlon, depth, k);
     }
-    public int compareTo(QuadTree compared) {
-        if (this.ullat == compared.ullat) {
-            if (this.ullon < compared.ullon) {
-                return -1;
+
+    /** Latitude of the top edge of row <code>k</code> at <code>depth</code>. */
+    private double lat(int depth, int k) {
+        return edge(ullat, lrlat, depth, k);
+    }
+
+    /**
+     * Edge <code>k</code> of the 2^depth parts of [from, to], found by repeated halving so it
+     * is bit for bit what splitting the tiles one level at a time gives.
+     */
+    private static double edge(double from, double to, int depth, int k) {
+        for (int level = depth - 1; level >= 0; level--) {
+            if (k == 0) {
+                return from;
+            }
+            if (k == 2 << level) {
+                return to;
+            }
+            double mid = (from + to) / 2;
+            if (k < 1 << level) {
+                to = mid;
             } else {
-                return 1;
+                from = mid;
+                k -= 1 << level;
             }
-        } else if (this.ullat < compared.ullat) {
-            return 1;
-        } else if (this.ullat > compared.ullat) {
-            return -1;
-        } else {
-            return 0;
         }
+        return k == 0 ? from : to;
     }
 
-    public List<String> converttoString(List<QuadTree> list) {
-        List<String> files = new ArrayList<>();
-        for (QuadTree tree : list) {
-            files.add(Integer.toString(tree.img));
-        }
-        return files;
+    private static int clamp(int index, int n) {
+        return Math.max(0, Math.min(n - 1, index));
     }
 
-    public List<Integer> findwidthheight(List<QuadTree> findCoordinates) {
-        HashSet<Double> lat = new HashSet<>();
-        HashSet<Double> lon = new HashSet<>();
-        List<Integer> widthandheight = new ArrayList<>();
-        QuadTree first = findCoordinates.get(0);
-        for (QuadTree tree : findCoordinates) {
-            lat.add(tree.ullat);
-            lon.add(tree.ullon);
+    /**
+     * A rectangle of tiles at one depth, listed in row-major order. Empty when the query box
+     * misses the root.
+     */
+    public static class Selection {
+        private final QuadTree tree;
+        private final int depth;
+        private final int firstRow;
+        private final int rows;
+        private final int firstColumn;
+        private final int columns;
+
+        Selection(QuadTree tree, int depth, int firstRow, int lastRow, int firstColumn,
+                  int lastColumn) {
+            this.tree = tree;
+            this.depth = depth;
+            this.firstRow = firstRow;
+            this.firstColumn = firstColumn;
+            boolean empty = lastRow < firstRow || lastColumn < firstColumn;
+            this.rows = empty ? 0 : lastRow - firstRow + 1;
+            this.columns = empty ? 0 : lastColumn - firstColumn + 1;
         }
-        widthandheight.add(lat.size());
-        widthandheight.add(lon.size());
 
-        return widthandheight;
+        public int depth() {
+            return depth;
+        }
 
-    }
+        public int rows() {
+            return rows;
+        }
 
-    public double returnULLON() {
-        return this.ullon;
-    }
-    public double returnULLAT() {
-        return this.ullat;
-    }
-    public double returnLRLON() {
-        return this.lrlon;
-    }
-    public double returnLRLAT() {
-        return this.lrlat;
-    }
+        public int columns() {
+            return columns;
+        }
+
+        public int size() {
+            return rows * columns;
+        }
 
+        public double ullon() {
+            return tree.lon(depth, firstColumn);
+        }
+
+        public double ullat() {
+            return tree.lat(depth, firstRow);
+        }
+
+        public double lrlon() {
+            return tree.lon(depth, firstColumn + columns);
+        }
+
+        public double lrlat() {
+            return tree.lat(depth, firstRow + rows);
+        }
+
+        /** Name of the i'th tile in row-major order, such as "1423". */
+        public String name(int i) {
+            int row = firstRow + i / columns;
+            int column = firstColumn + i % columns;
+            char[] digits = new char[depth];
+            for (int level = 0; level < depth; level++) {
+                int shift = depth - 1 - level;
+                digits[level] = (char) ('1' + (column >> shift & 1) + 2 * (row >> shift & 1));
+            }
+            return new String(digits);
+        }
+
+        /** Names of all the tiles, in row-major order. */
+        public List<String> names() {
+            List<String> names = new ArrayList<>(size());
+            for (int i = 0; i < size(); i++) {
+                names.add(name(i));
+            }
+            return names;
+        }
+    }
 }
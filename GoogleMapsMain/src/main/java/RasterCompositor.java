@@ -0,0 +1,117 @@
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Assembles rasters from map tiles. Tiles are fetched from the TileCache in parallel on the
+ * common fork-join pool, so a cold request decodes its missing tiles at once instead of one
+ * after another, and each is copied straight into the byte array of a TYPE_3BYTE_BGR raster.
+ * <p>
+ *     Most tiles in img/ are palette PNGs, which Graphics.drawImage converts pixel by pixel
+ *     every time one is drawn. The TileCache instead converts each tile once, with toBgr(), when
+ *     it is decoded, so assembling a raster is one System.arraycopy per tile row. Any other kind
+ *     of tile is still drawn with drawImage, so the result is always the same as drawing every
+ *     tile.
+ * </p>
+ */
+public class RasterCompositor {
+    private RasterCompositor() {
+    }
+
+    /**
+     * A raster of the named tiles, laid out in row-major order <code>columns</code> to a row.
+     * A tile that cannot be read is left black.
+     * @param tileSize The width and height of every tile, in pixels.
+     */
+    public static BufferedImage render(TileCache cache, List<String> names, int columns,
+                                       int tileSize) {
+        int rows = (names.size() + columns - 1) / columns;
+        BufferedImage result = new BufferedImage(columns * tileSize, rows * tileSize,
+                BufferedImage.TYPE_3BYTE_BGR);
+        IntStream.range(0, names.size()).parallel().forEach(i -> {
+            try {
+                BufferedImage tile = cache.get(names.get(i));
+                draw(result, tile, i % columns * tileSize, i / columns * tileSize);
+            } catch (IOException e) {
+                System.out.println("Could not read image " + names.get(i));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * The image as TYPE_3BYTE_BGR, drawn onto black as getMapRaster would draw it; the image
+     * itself if it already is one that draw() can copy rows from.
+     */
+    public static BufferedImage toBgr(BufferedImage image) {
+        if (isPlainBgr(image)) {
+            return image;
+        }
+        BufferedImage bgr = new BufferedImage(image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_3BYTE_BGR);
+        Graphics graphics = bgr.getGraphics();
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return bgr;
+    }
+
+    /**
+     * Copy <code>tile</code> into <code>dest</code> with its upper left corner at (x, y),
+     * clipped to <code>dest</code>. Copies to disjoint areas may run concurrently.
+     * @param dest A TYPE_3BYTE_BGR image.
+     */
+    static void draw(BufferedImage dest, BufferedImage tile, int x, int y) {
+        if (!isPlainBgr(dest)) {
+            throw new IllegalArgumentException("Can only draw into TYPE_3BYTE_BGR images");
+        }
+        int width = Math.min(tile.getWidth(), dest.getWidth() - x);
+        int height = Math.min(tile.getHeight(), dest.getHeight() - y);
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        if (isPlainBgr(tile)) {
+            byte[] in = ((DataBufferByte) tile.getRaster().getDataBuffer()).getData();
+            byte[] out = ((DataBufferByte) dest.getRaster().getDataBuffer()).getData();
+            int inStride = tile.getWidth() * 3;
+            int outStride = dest.getWidth() * 3;
+            int outStart = y * outStride + x * 3;
+            for (int row = 0; row < height; row++) {
+                System.arraycopy(in, row * inStride, out, outStart + row * outStride, width * 3);
+            }
+        } else {
+            /* Rare enough that serialising these on the image is not worth avoiding. */
+            synchronized (dest) {
+                Graphics graphics = dest.getGraphics();
+                graphics.setClip(x, y, width, height);
+                graphics.drawImage(tile, x, y, null);
+                graphics.dispose();
+            }
+        }
+    }
+
+    /** Whether the pixels are packed BGR rows of exactly the image width, from byte 0. */
+    private static boolean isPlainBgr(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_3BYTE_BGR) {
+            return false;
+        }
+        Raster raster = image.getRaster();
+        SampleModel model = raster.getSampleModel();
+        DataBuffer buffer = raster.getDataBuffer();
+        return model instanceof ComponentSampleModel && buffer instanceof DataBufferByte
+                && buffer.getNumBanks() == 1 && buffer.getOffset() == 0
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0
+                && ((ComponentSampleModel) model).getPixelStride() == 3
+                && ((ComponentSampleModel) model).getScanlineStride() == image.getWidth() * 3
+                && Arrays.equals(((ComponentSampleModel) model).getBandOffsets(),
+                        new int[] {2, 1, 0});
+    }
+}
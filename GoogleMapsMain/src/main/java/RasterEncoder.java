@@ -0,0 +1,371 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes rastered images for the raster endpoints.
+ * <ul>
+ *     <li>JPEG goes through ImageIO, with one ImageWriter per thread that is reused from request
+ *     to request instead of looked up and leaked each time.</li>
+ *     <li>PNG is written by this class, as 8-bit RGB with the Up filter. Images of at least
+ *     <code>parallelPixels</code> pixels are cut into horizontal stripes that are filtered and
+ *     deflated on the common fork-join pool; each stripe is primed with the 32 KiB before it
+ *     and ends on a sync flush, so the stripes concatenate into one valid zlib stream.</li>
+ * </ul>
+ * JPEG has no equivalent of the sync flush in ImageIO, so it is always encoded on one thread.
+ * Instances are immutable and safe to share between request threads.
+ */
+public class RasterEncoder {
+    /** Output formats, with the names used in query parameters and file extensions. */
+    public enum Format {
+        JPEG("jpg", "image/jpeg"), PNG("png", "image/png");
+
+        private final String extension;
+        private final String mediaType;
+
+        Format(String extension, String mediaType) {
+            this.extension = extension;
+            this.mediaType = mediaType;
+        }
+
+        public String extension() {
+            return extension;
+        }
+
+        public String mediaType() {
+            return mediaType;
+        }
+
+        /** The format named <code>name</code> ("jpg", "jpeg" or "png"), or null. */
+        public static Format parse(String name) {
+            if (name == null) {
+                return null;
+            }
+            switch (name.toLowerCase()) {
+                case "jpg":
+                case "jpeg":
+                    return JPEG;
+                case "png":
+                    return PNG;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /** Size and duration of one encode. */
+    public static class Stats {
+        private final long bytes;
+        private final long nanos;
+
+        Stats(long bytes, long nanos) {
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        public double millis() {
+            return nanos / 1e6;
+        }
+
+        public long nanos() {
+            return nanos;
+        }
+    }
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a,
+        '\n'};
+    /** The window a deflate stream can refer back into. */
+    private static final int WINDOW = 32768;
+    /** Rows per parallel stripe; one tile high. */
+    private static final int STRIPE_ROWS = 256;
+    private static final ThreadLocal<ImageWriter> JPEG_WRITERS = ThreadLocal.withInitial(() ->
+            ImageIO.getImageWritersByFormatName("jpg").next());
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() ->
+            new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    private final Format format;
+    private final float quality;
+    private final long parallelPixels;
+
+    /**
+     * @param format The default format.
+     * @param quality The default JPEG quality, from 0 to 1.
+     * @param parallelPixels PNGs with at least this many pixels are encoded in parallel
+     *                       stripes; 0 disables that.
+     */
+    public RasterEncoder(Format format, float quality, long parallelPixels) {
+        if (format == null) {
+            throw new IllegalArgumentException("Unknown raster format.");
+        }
+        this.format = format;
+        this.quality = quality;
+        this.parallelPixels = parallelPixels;
+    }
+
+    public Format format() {
+        return format;
+    }
+
+    public float quality() {
+        return quality;
+    }
+
+    /**
+     * Identifies the bytes encode() produces for a format and quality, for use in ETags.
+     * PNG output does not depend on the quality.
+     */
+    public static String tag(Format format, float quality) {
+        return format == Format.JPEG ? "jpg-q" + quality : "png-up";
+    }
+
+    /** Encode with the default format and quality. */
+    public Stats encode(BufferedImage image, OutputStream out) throws IOException {
+        return encode(image, out, format, quality);
+    }
+
+    /**
+     * Write <code>image</code> to <code>out</code>, which is flushed but left open.
+     * @param quality The JPEG quality, from 0 to 1; ignored for PNG.
+     */
+    public Stats encode(BufferedImage image, OutputStream out, Format format, float quality)
+            throws IOException {
+        long start = System.nanoTime();
+        CountingStream counted = new CountingStream(out);
+        if (format == Format.JPEG) {
+            writeJpeg(image, counted, quality);
+        } else {
+            writePng(image, counted);
+        }
+        counted.flush();
+        return new Stats(counted.count, System.nanoTime() - start);
+    }
+
+    private static void writeJpeg(BufferedImage image, OutputStream out, float quality)
+            throws IOException {
+        ImageWriter writer = JPEG_WRITERS.get();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        ImageOutputStream ios = new MemoryCacheImageOutputStream(out);
+        try {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.reset();
+            ios.close();
+        }
+    }
+
+    private void writePng(BufferedImage image, OutputStream out) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int stride = 1 + 3 * width;
+        byte[] filtered = new byte[stride * height];
+        int stripes = (long) width * height >= parallelPixels && parallelPixels > 0
+                ? (height + STRIPE_ROWS - 1) / STRIPE_ROWS : 1;
+        int rowsPerStripe = (height + stripes - 1) / Math.max(1, stripes);
+        byte[][] compressed = new byte[stripes][];
+        long[] adlers = new long[stripes];
+        IntStream range = IntStream.range(0, stripes);
+        (stripes > 1 ? range.parallel() : range).forEach(s ->
+                filter(image, filtered, s * rowsPerStripe,
+                        Math.min(height, (s + 1) * rowsPerStripe)));
+        range = IntStream.range(0, stripes);
+        (stripes > 1 ? range.parallel() : range).forEach(s -> {
+            int from = s * rowsPerStripe * stride;
+            int to = Math.min(height, (s + 1) * rowsPerStripe) * stride;
+            compressed[s] = deflate(filtered, from, to, s == stripes - 1);
+            Adler32 adler = new Adler32();
+            adler.update(filtered, from, to - from);
+            adlers[s] = adler.getValue();
+        });
+        long adler = adlers[0];
+        for (int s = 1; s < stripes; s++) {
+            int from = s * rowsPerStripe * stride;
+            int to = Math.min(height, (s + 1) * rowsPerStripe) * stride;
+            adler = combineAdler(adler, adlers[s], to - from);
+        }
+
+        out.write(PNG_SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;      // bits per sample
+        header[9] = 2;      // truecolour
+        writeChunk(out, "IHDR", header, 0, header.length);
+        for (int s = 0; s < stripes; s++) {
+            byte[] data = compressed[s];
+            if (s == 0) {
+                byte[] zlib = new byte[data.length + 2];
+                zlib[0] = 0x78;
+                zlib[1] = (byte) 0x9c;
+                System.arraycopy(data, 0, zlib, 2, data.length);
+                data = zlib;
+            }
+            if (s == stripes - 1) {
+                data = Arrays.copyOf(data, data.length + 4);
+                putInt(data, data.length - 4, (int) adler);
+            }
+            writeChunk(out, "IDAT", data, 0, data.length);
+        }
+        writeChunk(out, "IEND", new byte[0], 0, 0);
+    }
+
+    /** Write rows [from, to) of the image as Up-filtered RGB scanlines. */
+    private static void filter(BufferedImage image, byte[] filtered, int from, int to) {
+        int width = image.getWidth();
+        int stride = 1 + 3 * width;
+        byte[] prev = new byte[3 * width];
+        byte[] row = new byte[3 * width];
+        if (from > 0) {
+            rgb(image, from - 1, prev);
+        }
+        for (int y = from; y < to; y++) {
+            rgb(image, y, row);
+            int at = y * stride;
+            filtered[at] = 2;
+            for (int i = 0; i < row.length; i++) {
+                filtered[at + 1 + i] = (byte) (row[i] - prev[i]);
+            }
+            byte[] swap = prev;
+            prev = row;
+            row = swap;
+        }
+    }
+
+    /** Row <code>y</code> of the image as RGB bytes. */
+    private static void rgb(BufferedImage image, int y, byte[] row) {
+        int width = image.getWidth();
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+            byte[] bgr = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            int at = y * 3 * width;
+            for (int i = 0; i < 3 * width; i += 3) {
+                row[i] = bgr[at + i + 2];
+                row[i + 1] = bgr[at + i + 1];
+                row[i + 2] = bgr[at + i];
+            }
+        } else {
+            for (int x = 0; x < width; x++) {
+                int argb = image.getRGB(x, y);
+                row[3 * x] = (byte) (argb >> 16);
+                row[3 * x + 1] = (byte) (argb >> 8);
+                row[3 * x + 2] = (byte) argb;
+            }
+        }
+    }
+
+    /**
+     * Raw-deflate data[from, to), primed with the window before <code>from</code>. A stripe
+     * that is not the last ends on a sync flush so the next one can follow it directly.
+     */
+    private static byte[] deflate(byte[] data, int from, int to, boolean last) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        if (from > 0) {
+            int dictionary = Math.min(WINDOW, from);
+            deflater.setDictionary(data, from - dictionary, dictionary);
+        }
+        deflater.setInput(data, from, to - from);
+        if (last) {
+            deflater.finish();
+        }
+        byte[] out = new byte[Math.max(64, (to - from) / 4)];
+        int length = 0;
+        while (true) {
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            int n = deflater.deflate(out, length, out.length - length,
+                    last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            length += n;
+            if (last ? deflater.finished() : deflater.needsInput() && length < out.length) {
+                return Arrays.copyOf(out, length);
+            }
+        }
+    }
+
+    /** The Adler-32 of two blocks joined, from theirs and the length of the second. */
+    static long combineAdler(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = rem * sum1 % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= base << 1) {
+            sum2 -= base << 1;
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | sum2 << 16;
+    }
+
+    private static void writeChunk(OutputStream out, String type, byte[] data, int offset,
+                                   int length) throws IOException {
+        byte[] prefix = new byte[8];
+        putInt(prefix, 0, length);
+        for (int i = 0; i < 4; i++) {
+            prefix[4 + i] = (byte) type.charAt(i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(prefix, 4, 4);
+        crc.update(data, offset, length);
+        byte[] suffix = new byte[4];
+        putInt(suffix, 0, (int) crc.getValue());
+        out.write(prefix);
+        out.write(data, offset, length);
+        out.write(suffix);
+    }
+
+    private static void putInt(byte[] bytes, int at, int value) {
+        bytes[at] = (byte) (value >>> 24);
+        bytes[at + 1] = (byte) (value >>> 16);
+        bytes[at + 2] = (byte) (value >>> 8);
+        bytes[at + 3] = (byte) value;
+    }
+
+    /** Passes writes through, counting the bytes. */
+    private static class CountingStream extends FilterOutputStream {
+        private long count;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,458 @@
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * The routable road graph in compressed sparse row (CSR) form. Every OSM node that lies on an
+ * allowed highway becomes a dense int vertex in <code>[0, size())</code>, ordered by OSM id.
+ * The outgoing edges of vertex <code>v</code> are the indices <code>[firstEdge(v),
+ * endEdge(v))</code> into the target and length arrays. Roads are treated as two-way, so every
+ * edge is stored once in each direction. Instances are immutable once built.
+ * <p>
+ *     The arrays are held as NIO buffers so that a graph can be served either from heap arrays,
+ *     as built by the Builder, or straight from a memory-mapped GraphSnapshot file.
+ * </p>
+ */
+public class RoadGraph {
+    /** Size of an object header on a 64-bit JVM with compressed oops. */
+    private static final int HEADER_BYTES = 12;
+    /** Size of an array header on a 64-bit JVM with compressed oops. */
+    private static final int ARRAY_HEADER_BYTES = 16;
+    /** Mean radius of the earth in metres. */
+    private static final double EARTH_RADIUS = 6_371_008.8;
+
+    private final LongBuffer ids;
+    private final DoubleBuffer lat;
+    private final DoubleBuffer lon;
+    private final IntBuffer offsets;
+    private final IntBuffer targets;
+    private final FloatBuffer lengths;
+
+    RoadGraph(LongBuffer ids, DoubleBuffer lat, DoubleBuffer lon, IntBuffer offsets,
+              IntBuffer targets, FloatBuffer lengths) {
+        this.ids = ids;
+        this.lat = lat;
+        this.lon = lon;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.lengths = lengths;
+    }
+
+    /** Number of vertices. */
+    public int size() {
+        return ids.limit();
+    }
+
+    /** Number of directed edges; each road segment counts twice. */
+    public int edgeCount() {
+        return targets.limit();
+    }
+
+    public long id(int v) {
+        return ids.get(v);
+    }
+
+    public double lat(int v) {
+        return lat.get(v);
+    }
+
+    public double lon(int v) {
+        return lon.get(v);
+    }
+
+    /** Index of the first outgoing edge of <code>v</code>. */
+    public int firstEdge(int v) {
+        return offsets.get(v);
+    }
+
+    /** One past the index of the last outgoing edge of <code>v</code>. */
+    public int endEdge(int v) {
+        return offsets.get(v + 1);
+    }
+
+    public int degree(int v) {
+        return offsets.get(v + 1) - offsets.get(v);
+    }
+
+    public int target(int e) {
+        return targets.get(e);
+    }
+
+    public float length(int e) {
+        return lengths.get(e);
+    }
+
+    /**
+     * Returns the vertex of the OSM node <code>id</code>, or -1 if that node is not routable.
+     */
+    public int indexOf(long id) {
+        int lo = 0;
+        int hi = ids.limit() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midId = ids.get(mid);
+            if (midId < id) {
+                lo = mid + 1;
+            } else if (midId > id) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The distance metric used for routing: the euclidean distance between two points in
+     * (lon, lat) degrees.
+     */
+    public static double distance(double lon1, double lat1, double lon2, double lat2) {
+        double dlon = lon1 - lon2;
+        double dlat = lat1 - lat2;
+        return Math.sqrt(dlon * dlon + dlat * dlat);
+    }
+
+    /** Distance between the vertices <code>u</code> and <code>v</code>. */
+    public double distance(int u, int v) {
+        return distance(lon.get(u), lat.get(u), lon.get(v), lat.get(v));
+    }
+
+    /**
+     * Ground distance in metres between two points, by the equirectangular approximation. Over
+     * the few kilometres of a city it is within a part in ten thousand of the great circle
+     * distance. Routing measures in degrees instead; see distance().
+     */
+    public static double metres(double lon1, double lat1, double lon2, double lat2) {
+        double x = Math.toRadians(lon1 - lon2) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        double y = Math.toRadians(lat1 - lat2);
+        return EARTH_RADIUS * Math.sqrt(x * x + y * y);
+    }
+
+    /** Ground distance in metres between the vertices <code>u</code> and <code>v</code>. */
+    public double metres(int u, int v) {
+        return metres(lon.get(u), lat.get(u), lon.get(v), lat.get(v));
+    }
+
+    /** The ground length in metres of every edge, indexed like length(). */
+    public float[] edgeMetres() {
+        float[] metres = new float[edgeCount()];
+        for (int v = 0; v < size(); v++) {
+            for (int e = firstEdge(v); e < endEdge(v); e++) {
+                metres[e] = (float) metres(v, target(e));
+            }
+        }
+        return metres;
+    }
+
+    /**
+     * A hash of the vertex ids and adjacency, used to check that data derived from this graph,
+     * such as a ContractionHierarchy file, was computed for the same graph.
+     */
+    public long fingerprint() {
+        long h = 1125899906842597L;
+        for (int v = 0; v < size(); v++) {
+            h = 31 * h + ids.get(v);
+            h = 31 * h + offsets.get(v + 1);
+        }
+        for (int e = 0; e < edgeCount(); e++) {
+            h = 31 * h + targets.get(e);
+            h = 31 * h + Float.floatToIntBits(lengths.get(e));
+        }
+        return h;
+    }
+
+    /**
+     * Labels every vertex with its connected component, numbering the components from the
+     * largest down, so label 0 is the main road network and any other label marks an island
+     * that no route can leave. Roads are two-way, so these are also the strongly connected
+     * components.
+     */
+    public int[] components() {
+        int n = size();
+        int[] label = new int[n];
+        Arrays.fill(label, -1);
+        int[] queue = new int[n];
+        int[] sizes = new int[Math.max(1, n)];
+        int count = 0;
+        for (int root = 0; root < n; root++) {
+            if (label[root] >= 0) {
+                continue;
+            }
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = root;
+            label[root] = count;
+            while (head < tail) {
+                int u = queue[head++];
+                for (int e = firstEdge(u); e < endEdge(u); e++) {
+                    int w = targets.get(e);
+                    if (label[w] < 0) {
+                        label[w] = count;
+                        queue[tail++] = w;
+                    }
+                }
+            }
+            sizes[count++] = tail;
+        }
+        /* Relabel by decreasing size, ties by first vertex. */
+        Integer[] order = new Integer[count];
+        for (int c = 0; c < count; c++) {
+            order[c] = c;
+        }
+        Arrays.sort(order, (a, b) -> sizes[a] != sizes[b] ? Integer.compare(sizes[b], sizes[a])
+                : Integer.compare(a, b));
+        int[] rename = new int[count];
+        for (int c = 0; c < count; c++) {
+            rename[order[c]] = c;
+        }
+        for (int v = 0; v < n; v++) {
+            label[v] = rename[label[v]];
+        }
+        return label;
+    }
+
+    /**
+     * The graph restricted to its largest connected component, or this graph if it is
+     * connected. Vertices keep their order, so they are still sorted by OSM id.
+     */
+    public RoadGraph largestComponent() {
+        int[] label = components();
+        int n = 0;
+        int[] vertexOf = new int[size()];
+        for (int v = 0; v < size(); v++) {
+            vertexOf[v] = label[v] == 0 ? n++ : -1;
+        }
+        if (n == size()) {
+            return this;
+        }
+        long[] keptIds = new long[n];
+        double[] keptLat = new double[n];
+        double[] keptLon = new double[n];
+        int[] keptOffsets = new int[n + 1];
+        int m = 0;
+        for (int v = 0; v < size(); v++) {
+            if (vertexOf[v] >= 0) {
+                m += degree(v);
+            }
+        }
+        int[] keptTargets = new int[m];
+        float[] keptLengths = new float[m];
+        m = 0;
+        for (int v = 0; v < size(); v++) {
+            int k = vertexOf[v];
+            if (k < 0) {
+                continue;
+            }
+            keptIds[k] = ids.get(v);
+            keptLat[k] = lat.get(v);
+            keptLon[k] = lon.get(v);
+            for (int e = firstEdge(v); e < endEdge(v); e++) {
+                keptTargets[m] = vertexOf[targets.get(e)];
+                keptLengths[m++] = lengths.get(e);
+            }
+            keptOffsets[k + 1] = m;
+        }
+        return new RoadGraph(LongBuffer.wrap(keptIds), DoubleBuffer.wrap(keptLat),
+                DoubleBuffer.wrap(keptLon), IntBuffer.wrap(keptOffsets),
+                IntBuffer.wrap(keptTargets), FloatBuffer.wrap(keptLengths));
+    }
+
+    /** A road length as a float, never rounded below <code>d</code>, so it stays a bound. */
+    static float roundUp(double d) {
+        return (float) d < d ? Math.nextUp((float) d) : (float) d;
+    }
+
+    /** Bytes held by the CSR arrays, whether on the heap or mapped. */
+    public long memoryBytes() {
+        return 6L * ARRAY_HEADER_BYTES + 8L * ids.limit() + 8L * lat.limit() + 8L * lon.limit()
+                + 4L * offsets.limit() + 4L * targets.limit() + 4L * lengths.limit();
+    }
+
+    /** The raw arrays, in the order GraphSnapshot stores them. */
+    LongBuffer ids() {
+        return ids.duplicate();
+    }
+
+    DoubleBuffer lats() {
+        return lat.duplicate();
+    }
+
+    DoubleBuffer lons() {
+        return lon.duplicate();
+    }
+
+    IntBuffer offsets() {
+        return offsets.duplicate();
+    }
+
+    IntBuffer targets() {
+        return targets.duplicate();
+    }
+
+    FloatBuffer lengths() {
+        return lengths.duplicate();
+    }
+
+    /**
+     * Estimated bytes the same graph took as a <code>HashMap&lt;Double, GraphNode&gt;</code>
+     * in which every <code>GraphNode</code> owns a <code>HashMap</code> of its neighbors.
+     * Per vertex that is a map entry, a boxed key, a table slot, the node itself and an
+     * initialized neighbor map; per directed edge it is another entry and boxed key.
+     */
+    public static long legacyMemoryBytes(int vertices, int edges) {
+        long entry = HEADER_BYTES + 4 + 4 + 4 + 4 + 4;          // hash, key, value, next
+        long boxedDouble = HEADER_BYTES + 8 + 4;                // padded to 24
+        long node = HEADER_BYTES + 8 + 8 + 8 + 4 + 4;           // id, lat, lon, neighbors
+        long map = HEADER_BYTES + 4 * 6 + 4 + 8;                // HashMap fields, padded
+        long table = ARRAY_HEADER_BYTES + 4 * 16;               // default capacity
+        long slot = 4L * Integer.highestOneBit(Math.max(1, (int) (vertices / 0.75)) * 2 - 1);
+        return vertices * (entry + boxedDouble + node + map + table)
+                + ARRAY_HEADER_BYTES + slot + (long) edges * (entry + boxedDouble);
+    }
+
+    /** One line comparing the CSR footprint with the old object graph. */
+    public String memoryReport() {
+        int n = Math.max(1, size());
+        long csr = memoryBytes();
+        long legacy = legacyMemoryBytes(size(), edgeCount());
+        return String.format("%d vertices, %d edges: CSR %d bytes (%.1f bytes/vertex), "
+                + "HashMap<Double, GraphNode> ~%d bytes (%.1f bytes/vertex)",
+                size(), edgeCount(), csr, (double) csr / n, legacy, (double) legacy / n);
+    }
+
+    /**
+     * Accumulates OSM nodes and highway ways while a file is parsed, then packs the nodes
+     * referenced by those ways into a <code>RoadGraph</code>.
+     */
+    static class Builder {
+        private long[] nodeIds = new long[1024];
+        private double[] nodeLat = new double[1024];
+        private double[] nodeLon = new double[1024];
+        private int nodeCount;
+        private final LongIntMap nodeIndex = new LongIntMap(1024);
+        private int[] edgeFrom = new int[1024];
+        private int[] edgeTo = new int[1024];
+        private int edgeCount;
+
+        /** Record an OSM node; nodes on no allowed way are dropped in build(). */
+        void addNode(long id, double latitude, double longitude) {
+            if (nodeCount == nodeIds.length) {
+                int capacity = nodeCount * 2;
+                nodeIds = Arrays.copyOf(nodeIds, capacity);
+                nodeLat = Arrays.copyOf(nodeLat, capacity);
+                nodeLon = Arrays.copyOf(nodeLon, capacity);
+            }
+            nodeIds[nodeCount] = id;
+            nodeLat[nodeCount] = latitude;
+            nodeLon[nodeCount] = longitude;
+            nodeIndex.put(id, nodeCount);
+            nodeCount++;
+        }
+
+        /**
+         * Record a way as an edge between each pair of consecutive node refs. Refs to nodes
+         * that were never seen are skipped, as are segments from a node to itself.
+         */
+        void addWay(long[] refs, int count) {
+            int prev = -1;
+            for (int i = 0; i < count; i++) {
+                int curr = nodeIndex.get(refs[i]);
+                if (curr < 0) {
+                    prev = -1;
+                    continue;
+                }
+                if (prev >= 0 && prev != curr) {
+                    addEdge(prev, curr);
+                }
+                prev = curr;
+            }
+        }
+
+        private void addEdge(int from, int to) {
+            if (edgeCount == edgeFrom.length) {
+                edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+                edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+            }
+            edgeFrom[edgeCount] = from;
+            edgeTo[edgeCount] = to;
+            edgeCount++;
+        }
+
+        RoadGraph build() {
+            /* Keep only nodes that some way references, renumbered in OSM id order. */
+            boolean[] used = new boolean[nodeCount];
+            for (int i = 0; i < edgeCount; i++) {
+                used[edgeFrom[i]] = true;
+                used[edgeTo[i]] = true;
+            }
+            int n = 0;
+            long[] sortable = new long[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                if (used[i]) {
+                    sortable[n++] = nodeIds[i];
+                }
+            }
+            long[] ids = Arrays.copyOf(sortable, n);
+            Arrays.sort(ids);
+            int[] vertexOf = new int[nodeCount];
+            double[] lat = new double[n];
+            double[] lon = new double[n];
+            for (int i = 0; i < nodeCount; i++) {
+                if (used[i]) {
+                    int v = Arrays.binarySearch(ids, nodeIds[i]);
+                    vertexOf[i] = v;
+                    lat[v] = nodeLat[i];
+                    lon[v] = nodeLon[i];
+                }
+            }
+
+            /* Counting sort both directions of every edge into per-vertex rows. */
+            int[] offsets = new int[n + 1];
+            for (int i = 0; i < edgeCount; i++) {
+                offsets[vertexOf[edgeFrom[i]] + 1]++;
+                offsets[vertexOf[edgeTo[i]] + 1]++;
+            }
+            for (int v = 0; v < n; v++) {
+                offsets[v + 1] += offsets[v];
+            }
+            int[] fill = Arrays.copyOf(offsets, n);
+            int[] targets = new int[2 * edgeCount];
+            for (int i = 0; i < edgeCount; i++) {
+                int u = vertexOf[edgeFrom[i]];
+                int v = vertexOf[edgeTo[i]];
+                targets[fill[u]++] = v;
+                targets[fill[v]++] = u;
+            }
+
+            /* Ways that share a segment produce duplicates; drop them row by row. */
+            int m = 0;
+            int start = 0;
+            for (int v = 0; v < n; v++) {
+                int end = offsets[v + 1];
+                Arrays.sort(targets, start, end);
+                offsets[v] = m;
+                for (int e = start; e < end; e++) {
+                    if (e == start || targets[e] != targets[e - 1]) {
+                        targets[m++] = targets[e];
+                    }
+                }
+                start = end;
+            }
+            offsets[n] = m;
+            targets = Arrays.copyOf(targets, m);
+            float[] lengths = new float[m];
+            for (int v = 0; v < n; v++) {
+                for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                    int w = targets[e];
+                    /* Never round below the straight line, so it stays a lower bound. */
+                    lengths[e] = roundUp(distance(lon[v], lat[v], lon[w], lat[w]));
+                }
+            }
+            return new RoadGraph(LongBuffer.wrap(ids), DoubleBuffer.wrap(lat),
+                    DoubleBuffer.wrap(lon), IntBuffer.wrap(offsets), IntBuffer.wrap(targets),
+                    FloatBuffer.wrap(lengths));
+        }
+    }
+}
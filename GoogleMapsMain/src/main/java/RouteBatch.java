@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Solves batches of route queries for back-office jobs. Queries that snapped to the same pair of
+ * vertices are solved once, and the distinct pairs run on a fixed pool of worker threads of its
+ * own, so a large batch neither starves Spark's request threads nor grows without bound.
+ * Results come back in the order of the queries, each as soon as it and all before it are
+ * solved, so a response can stream them while later ones are still running.
+ * <p>
+ *     A batch keeps at most window() pairs submitted ahead of the one its sink is waiting for,
+ *     so a batch of thousands queues no more work than the workers can start on, and a slow
+ *     reader of the results holds the solving back instead of letting finished routes pile up.
+ * </p>
+ */
+public class RouteBatch {
+    /** Solves one query; MapServer passes its cached router. */
+    public interface Solver {
+        int[] route(int source, int target);
+    }
+
+    /** Receives the results of a batch in query order. */
+    public interface Sink {
+        void accept(int index, int[] path) throws IOException;
+
+        /** Called before waiting on a result that is not ready, to send what came before. */
+        void flush() throws IOException;
+    }
+
+    private final ExecutorService pool;
+    private final int window;
+
+    /** A batch solver with <code>threads</code> workers, shared by all batches. */
+    public RouteBatch(int threads) {
+        pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread worker = new Thread(r, "route-batch");
+            worker.setDaemon(true);
+            return worker;
+        });
+        window = 2 * threads;
+    }
+
+    /** The most pairs a batch has submitted but not yet handed to its sink. */
+    int window() {
+        return window;
+    }
+
+    /**
+     * Route from <code>sources[i]</code> to <code>targets[i]</code> for every i, handing each
+     * path to the sink in order. If the sink throws, as it does when the client goes away, the
+     * queries not yet started are dropped.
+     * @return The number of distinct (source, target) pairs routed.
+     */
+    public int solve(int[] sources, int[] targets, Solver solver, Sink sink)
+            throws IOException {
+        /* Number the distinct pairs in order of first appearance, and note each one's last. */
+        Map<Long, Integer> numbers = new HashMap<>();
+        int[] pairOf = new int[sources.length];
+        int[] firstQuery = new int[sources.length];
+        int[] lastQuery = new int[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            long key = (long) sources[i] << 32 | (targets[i] & 0xffffffffL);
+            Integer pair = numbers.get(key);
+            if (pair == null) {
+                pair = numbers.size();
+                numbers.put(key, pair);
+                firstQuery[pair] = i;
+            }
+            pairOf[i] = pair;
+            lastQuery[pair] = i;
+        }
+        int pairs = numbers.size();
+        List<Future<int[]>> results = new ArrayList<>(Collections.nCopies(pairs, null));
+        int submitted = 0;
+        boolean finished = false;
+        try {
+            for (int i = 0; i < sources.length; i++) {
+                int pair = pairOf[i];
+                while (submitted < pairs && submitted < pair + window) {
+                    int source = sources[firstQuery[submitted]];
+                    int target = targets[firstQuery[submitted]];
+                    results.set(submitted++, pool.submit(() -> solver.route(source, target)));
+                }
+                Future<int[]> result = results.get(pair);
+                if (!result.isDone()) {
+                    sink.flush();
+                }
+                sink.accept(i, result.get());
+                if (lastQuery[pair] == i) {
+                    results.set(pair, null);
+                }
+            }
+            finished = true;
+            return pairs;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while routing a batch.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Routing failed.", e.getCause());
+        } finally {
+            if (!finished) {
+                for (Future<int[]> result : results) {
+                    if (result != null) {
+                        result.cancel(false);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of routes keyed by their snapped (source, target) vertex pair, so that clicks
+ * which snap to the same nodes share an entry. Each route is weighed by its vertex count and the
+ * cache evicts least recently used routes once the total weight passes its capacity.
+ * <p>
+ *     The keys are spread over independently locked segments, each an access-ordered
+ *     LinkedHashMap with an equal share of the capacity, so concurrent requests rarely wait on
+ *     each other. Routes are stored as the vertex arrays returned by a Router and must not be
+ *     modified by callers.
+ * </p>
+ * <p>
+ *     Any pair of ints can key a vertex array, so the same class also caches isochrones by
+ *     their snapped origin and budget in metres.
+ * </p>
+ */
+public class RouteCache {
+    private static final int SEGMENTS = 16;
+
+    private final String name;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity The total number of route vertices to keep. Every route weighs at least
+     *                 one, so this also bounds the number of entries.
+     */
+    public RouteCache(long capacity) {
+        this(capacity, "route");
+    }
+
+    /** A cache whose stats() line starts with <code>name</code>, for caches of other paths. */
+    public RouteCache(long capacity, String name) {
+        this.name = name;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, capacity / SEGMENTS));
+        }
+    }
+
+    /** The cached route from <code>source</code> to <code>target</code>, or null. */
+    public int[] get(int source, int target) {
+        long key = key(source, target);
+        Segment segment = segmentFor(key);
+        int[] path;
+        synchronized (segment) {
+            path = segment.get(key);
+        }
+        if (path == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return path;
+    }
+
+    /** Cache a route, evicting older ones if this segment is now over its share. */
+    public void put(int source, int target, int[] path) {
+        long key = key(source, target);
+        Segment segment = segmentFor(key);
+        int evicted;
+        synchronized (segment) {
+            evicted = segment.add(key, path);
+        }
+        if (evicted > 0) {
+            evictions.add(evicted);
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /** Number of cached routes. */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /** Total vertices over all cached routes. */
+    public long weight() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                weight += segment.weight;
+            }
+        }
+        return weight;
+    }
+
+    /** One line summary of the counters, for logging. */
+    public String stats() {
+        long h = hits();
+        long m = misses();
+        return String.format("%s cache: %d entries, %d vertices, %d hits, %d misses "
+                + "(%.1f%% hit rate), %d evictions", name, size(), weight(), h, m,
+                h + m == 0 ? 0.0 : 100.0 * h / (h + m), evictions());
+    }
+
+    private static long key(int source, int target) {
+        return (long) source << 32 | (target & 0xffffffffL);
+    }
+
+    private Segment segmentFor(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return segments[(int) (h >>> 60) & (SEGMENTS - 1)];
+    }
+
+    /** One lock's share of the cache: an LRU map with a running weight. */
+    private static class Segment extends LinkedHashMap<Long, int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final long capacity;
+        private long weight;
+
+        Segment(long capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        /**
+         * Insert or replace an entry, then evict from the old end; returns how many went. A
+         * route heavier than the whole segment is not cached at all.
+         */
+        int add(long key, int[] path) {
+            if (weigh(path) > capacity) {
+                return 0;
+            }
+            int[] old = put(key, path);
+            weight += weigh(path) - (old == null ? 0 : weigh(old));
+            int evicted = 0;
+            Iterator<Map.Entry<Long, int[]>> it = entrySet().iterator();
+            while (weight > capacity && it.hasNext()) {
+                Map.Entry<Long, int[]> eldest = it.next();
+                weight -= weigh(eldest.getValue());
+                it.remove();
+                evicted++;
+            }
+            return evicted;
+        }
+
+        private static int weigh(int[] path) {
+            return Math.max(1, path.length);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/**
+ * Answers shortest path queries between vertices of a RoadGraph. Implementations must be safe to
+ * call from several request threads at once.
+ */
+public interface Router {
+    /** The graph whose vertices route() takes and returns. */
+    RoadGraph graph();
+
+    /**
+     * Returns the vertices of a shortest path from <code>source</code> to <code>target</code>,
+     * or an empty array if the target cannot be reached.
+     */
+    int[] route(int source, int target);
+
+    /**
+     * Returns the vertices of a shortest path from one of <code>sources</code> to one of
+     * <code>targets</code>, where starting at <code>sources[i]</code> costs
+     * <code>sourceCosts[i]</code> more and ending at <code>targets[j]</code> costs
+     * <code>targetCosts[j]</code> more, or an empty array if no target can be reached. This
+     * routes between points part way along a road, which lie a known distance from its ends.
+     */
+    int[] route(int[] sources, double[] sourceCosts, int[] targets, double[] targetCosts);
+
+    /** Vertices settled by the last route() call on this thread, over all search directions. */
+    int lastSettledCount();
+}
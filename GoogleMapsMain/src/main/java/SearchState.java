@@ -0,0 +1,83 @@
+import java.util.Arrays;
+
+/**
+ * Per-vertex scratch arrays for one shortest path search, reused from query to query. Instead of
+ * clearing the arrays, each search bumps a generation counter; a vertex whose stamp is older than
+ * the current generation reads as unreached.
+ */
+public class SearchState {
+    final IndexedMinHeap heap;
+    private final double[] dist;
+    private final int[] prev;
+    private final int[] reached;
+    private final int[] settled;
+    private int generation;
+    private int settledCount;
+
+    public SearchState(int vertices) {
+        heap = new IndexedMinHeap(vertices);
+        dist = new double[vertices];
+        prev = new int[vertices];
+        reached = new int[vertices];
+        settled = new int[vertices];
+    }
+
+    /** Forget the previous search in O(1), apart from draining its heap. */
+    public void reset() {
+        heap.clear();
+        settledCount = 0;
+        generation++;
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(reached, 0);
+            Arrays.fill(settled, 0);
+            generation = 1;
+        }
+    }
+
+    public boolean isReached(int v) {
+        return reached[v] == generation;
+    }
+
+    public boolean isSettled(int v) {
+        return settled[v] == generation;
+    }
+
+    /** Distance from the source, or infinity if <code>v</code> has not been reached. */
+    public double dist(int v) {
+        return reached[v] == generation ? dist[v] : Double.POSITIVE_INFINITY;
+    }
+
+    /** Predecessor of <code>v</code> on its shortest path, or -1 for the source. */
+    public int prev(int v) {
+        return prev[v];
+    }
+
+    public void reach(int v, double d, int from) {
+        reached[v] = generation;
+        dist[v] = d;
+        prev[v] = from;
+    }
+
+    public void settle(int v) {
+        settled[v] = generation;
+        settledCount++;
+    }
+
+    /** Walk the predecessors of <code>v</code> back to the source of the search. */
+    public int[] path(int v) {
+        int count = 0;
+        for (int i = v; i >= 0; i = prev[i]) {
+            count++;
+        }
+        int[] path = new int[count];
+        for (int i = v; i >= 0; i = prev[i]) {
+            path[--count] = i;
+        }
+        return path;
+    }
+
+    /** Number of vertices settled since the last reset. */
+    public int settledCount() {
+        return settledCount;
+    }
+}
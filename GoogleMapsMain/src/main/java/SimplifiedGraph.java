@@ -0,0 +1,551 @@
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * A RoadGraph with its chains of degree-2 vertices collapsed. Most OSM nodes are shape points
+ * along a curve: vertices with exactly two neighbours, which a route can only pass straight
+ * through. The core graph keeps the other vertices, the junctions and dead ends, and joins two
+ * of them with one edge per chain of shape points between them, as long as the whole chain. Each
+ * chain keeps its shape points in order, so a route through the core expands back into the
+ * vertices of the full graph and is drawn exactly as before.
+ * <p>
+ *     Where several chains join the same two junctions only the shortest becomes a core edge,
+ *     and a chain that leaves a junction and comes back to it becomes none; neither can be on a
+ *     shortest route between junctions. Their shape points are still kept, since a route may
+ *     start or end on one. A ring with no junction at all keeps its first vertex as one.
+ * </p>
+ */
+public class SimplifiedGraph {
+    private final RoadGraph graph;
+    private final RoadGraph core;
+    /** The core vertex of each graph vertex, or -1 for a shape point. */
+    private final int[] coreOf;
+    /** The graph vertex of each core vertex. */
+    private final int[] graphOf;
+    /**
+     * Chain c runs from core vertex chainFrom[c] through the graph vertices
+     * shapes[chainStart[c], chainStart[c + 1]) to core vertex chainTo[c].
+     */
+    private final int[] chainFrom;
+    private final int[] chainTo;
+    private final int[] chainStart;
+    private final int[] shapes;
+    /** Road distance from the start of its chain to each entry of shapes. */
+    private final double[] along;
+    private final double[] chainLength;
+    /** The chain of each entry of shapes. */
+    private final int[] chainOf;
+    /** Position in shapes of each graph vertex that is a shape point, or -1. */
+    private final int[] slotOf;
+    /** The chain each directed core edge stands for, or -1 for a single road segment. */
+    private final int[] edgeChain;
+
+    public SimplifiedGraph(RoadGraph graph) {
+        this.graph = graph;
+        int n = graph.size();
+        boolean[] junction = new boolean[n];
+        for (int v = 0; v < n; v++) {
+            junction[v] = graph.degree(v) != 2;
+        }
+        Chains chains = new Chains(graph, junction);
+        for (int v = 0; v < n; v++) {
+            if (junction[v]) {
+                chains.walkFrom(v);
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            if (!junction[v] && chains.slotOf[v] < 0) {
+                junction[v] = true;
+                chains.walkFrom(v);
+            }
+        }
+
+        coreOf = new int[n];
+        int coreSize = 0;
+        for (int v = 0; v < n; v++) {
+            coreOf[v] = junction[v] ? coreSize++ : -1;
+        }
+        graphOf = new int[coreSize];
+        long[] ids = new long[coreSize];
+        double[] lat = new double[coreSize];
+        double[] lon = new double[coreSize];
+        for (int v = 0; v < n; v++) {
+            if (junction[v]) {
+                graphOf[coreOf[v]] = v;
+                ids[coreOf[v]] = graph.id(v);
+                lat[coreOf[v]] = graph.lat(v);
+                lon[coreOf[v]] = graph.lon(v);
+            }
+        }
+        int c = chains.count;
+        chainFrom = new int[c];
+        chainTo = new int[c];
+        for (int i = 0; i < c; i++) {
+            chainFrom[i] = coreOf[chains.from[i]];
+            chainTo[i] = coreOf[chains.to[i]];
+        }
+        chainStart = Arrays.copyOf(chains.start, c + 1);
+        chainStart[c] = chains.shapeCount;
+        chainLength = Arrays.copyOf(chains.length, c);
+        shapes = Arrays.copyOf(chains.shapes, chains.shapeCount);
+        along = Arrays.copyOf(chains.along, chains.shapeCount);
+        chainOf = new int[shapes.length];
+        for (int i = 0; i < c; i++) {
+            Arrays.fill(chainOf, chainStart[i], chainStart[i + 1], i);
+        }
+        slotOf = chains.slotOf;
+
+        /*
+         * The shortest edge between each pair of core vertices, in (from, to) order: counting
+         * sort the edges by to and then, stably, by from, and keep the first of the shortest
+         * in each run of equal pairs.
+         */
+        int m = chains.edgeCount;
+        int[] from = chains.edgeFrom;
+        int[] to = chains.edgeTo;
+        double[] weight = chains.edgeLength;
+        int[] byTo = sortedBy(to, identity(m), coreSize);
+        int[] order = sortedBy(from, byTo, coreSize);
+        int kept = 0;
+        for (int i = 0; i < m; i++) {
+            int e = order[i];
+            if (kept > 0 && from[e] == from[order[kept - 1]] && to[e] == to[order[kept - 1]]) {
+                if (weight[e] < weight[order[kept - 1]]) {
+                    order[kept - 1] = e;
+                }
+            } else {
+                order[kept++] = e;
+            }
+        }
+        int[] offsets = new int[coreSize + 1];
+        for (int i = 0; i < kept; i++) {
+            offsets[coreOf[from[order[i]]] + 1]++;
+            offsets[coreOf[to[order[i]]] + 1]++;
+        }
+        for (int v = 0; v < coreSize; v++) {
+            offsets[v + 1] += offsets[v];
+        }
+        int[] fill = Arrays.copyOf(offsets, coreSize);
+        int[] targets = new int[2 * kept];
+        float[] lengths = new float[2 * kept];
+        edgeChain = new int[2 * kept];
+        for (int i = 0; i < kept; i++) {
+            int e = order[i];
+            int u = coreOf[from[e]];
+            int w = coreOf[to[e]];
+            float length = RoadGraph.roundUp(weight[e]);
+            for (int side = 0; side < 2; side++) {
+                int at = fill[side == 0 ? u : w]++;
+                targets[at] = side == 0 ? w : u;
+                lengths[at] = length;
+                edgeChain[at] = chains.edgeChain[e];
+            }
+        }
+        core = new RoadGraph(LongBuffer.wrap(ids), DoubleBuffer.wrap(lat),
+                DoubleBuffer.wrap(lon), IntBuffer.wrap(offsets), IntBuffer.wrap(targets),
+                FloatBuffer.wrap(lengths));
+    }
+
+    /**
+     * A simplification computed earlier, as GraphSnapshot stores it. Only the inverse maps are
+     * rebuilt, in one pass each; the fields say what the arrays hold.
+     */
+    SimplifiedGraph(RoadGraph graph, RoadGraph core, int[] graphOf, int[] chainFrom,
+                    int[] chainTo, int[] chainStart, int[] shapes, double[] along,
+                    double[] chainLength, int[] edgeChain) {
+        this.graph = graph;
+        this.core = core;
+        this.graphOf = graphOf;
+        this.chainFrom = chainFrom;
+        this.chainTo = chainTo;
+        this.chainStart = chainStart;
+        this.shapes = shapes;
+        this.along = along;
+        this.chainLength = chainLength;
+        this.edgeChain = edgeChain;
+        coreOf = new int[graph.size()];
+        Arrays.fill(coreOf, -1);
+        for (int c = 0; c < graphOf.length; c++) {
+            coreOf[graphOf[c]] = c;
+        }
+        chainOf = new int[shapes.length];
+        for (int i = 0; i < chainFrom.length; i++) {
+            Arrays.fill(chainOf, chainStart[i], chainStart[i + 1], i);
+        }
+        slotOf = new int[graph.size()];
+        Arrays.fill(slotOf, -1);
+        for (int i = 0; i < shapes.length; i++) {
+            slotOf[shapes[i]] = i;
+        }
+    }
+
+    /**
+     * The edges of <code>edges</code> stably counting sorted by the core vertex of
+     * <code>key[e]</code>, a graph vertex that is a junction.
+     */
+    private int[] sortedBy(int[] key, int[] edges, int coreSize) {
+        int[] start = new int[coreSize + 1];
+        for (int e : edges) {
+            start[coreOf[key[e]] + 1]++;
+        }
+        for (int c = 0; c < coreSize; c++) {
+            start[c + 1] += start[c];
+        }
+        int[] sorted = new int[edges.length];
+        for (int e : edges) {
+            sorted[start[coreOf[key[e]]]++] = e;
+        }
+        return sorted;
+    }
+
+    private static int[] identity(int m) {
+        int[] edges = new int[m];
+        for (int e = 0; e < m; e++) {
+            edges[e] = e;
+        }
+        return edges;
+    }
+
+    /** The graph that was simplified. */
+    public RoadGraph graph() {
+        return graph;
+    }
+
+    /** The junctions of graph() and the chains between them. */
+    public RoadGraph core() {
+        return core;
+    }
+
+    /** The core vertex of graph vertex <code>v</code>, or -1 if it is a shape point. */
+    public int coreVertex(int v) {
+        return coreOf[v];
+    }
+
+    /** The graph vertex of core vertex <code>c</code>. */
+    public int graphVertex(int c) {
+        return graphOf[c];
+    }
+
+    /** How much smaller the core is than the graph. */
+    public String report() {
+        return String.format("%d vertices and %d edges simplify to %d and %d: %.1f%% fewer "
+                + "vertices, %.1f%% fewer edges", graph.size(), graph.edgeCount(), core.size(),
+                core.edgeCount(), percentFewer(graph.size(), core.size()),
+                percentFewer(graph.edgeCount(), core.edgeCount()));
+    }
+
+    private static double percentFewer(int before, int after) {
+        return before == 0 ? 0 : 100.0 * (before - after) / before;
+    }
+
+    /** The raw arrays, in the order GraphSnapshot stores them after core(). */
+    int[] graphOf() {
+        return graphOf;
+    }
+
+    int[] chainFrom() {
+        return chainFrom;
+    }
+
+    int[] chainTo() {
+        return chainTo;
+    }
+
+    int[] chainStart() {
+        return chainStart;
+    }
+
+    int[] shapes() {
+        return shapes;
+    }
+
+    double[] along() {
+        return along;
+    }
+
+    double[] chainLength() {
+        return chainLength;
+    }
+
+    int[] edgeChain() {
+        return edgeChain;
+    }
+
+    /**
+     * The core vertices a route from or to each graph vertex of <code>ends</code> can pass
+     * through first or last: the vertex itself if it is a junction, or else both ends of its
+     * chain, each at the cost of the end plus the road distance to it.
+     */
+    Anchors anchors(int[] ends, double[] costs) {
+        int count = 0;
+        for (int v : ends) {
+            count += coreOf[v] >= 0 ? 1 : 2;
+        }
+        Anchors anchors = new Anchors(count);
+        int k = 0;
+        for (int i = 0; i < ends.length; i++) {
+            int v = ends[i];
+            if (coreOf[v] >= 0) {
+                anchors.set(k++, coreOf[v], costs[i], v, false);
+            } else {
+                int slot = slotOf[v];
+                int chain = chainOf[slot];
+                anchors.set(k++, chainFrom[chain], costs[i] + along[slot], v, true);
+                anchors.set(k++, chainTo[chain], costs[i] + chainLength[chain] - along[slot], v,
+                        false);
+            }
+        }
+        return anchors;
+    }
+
+    /** Core vertices standing in for graph vertices, as built by anchors(). */
+    static final class Anchors {
+        final int[] vertices;
+        final double[] costs;
+        /** The graph vertex each anchor stands in for. */
+        final int[] ends;
+        /** Whether the anchor is the start of the end's chain rather than its finish. */
+        final boolean[] backward;
+
+        private Anchors(int count) {
+            vertices = new int[count];
+            costs = new double[count];
+            ends = new int[count];
+            backward = new boolean[count];
+        }
+
+        private void set(int k, int vertex, double cost, int end, boolean towardStart) {
+            vertices[k] = vertex;
+            costs[k] = cost;
+            ends[k] = end;
+            backward[k] = towardStart;
+        }
+
+        /** The cheapest anchor at core vertex <code>c</code>, or -1 if there is none. */
+        int cheapest(int c) {
+            int best = -1;
+            for (int k = 0; k < vertices.length; k++) {
+                if (vertices[k] == c && (best < 0 || costs[k] < costs[best])) {
+                    best = k;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * The road distance between graph vertices <code>s</code> and <code>t</code> without
+     * leaving the chain they are both shape points of, or infinity if they are not.
+     */
+    double alongChain(int s, int t) {
+        int a = slotOf[s];
+        int b = slotOf[t];
+        if (a < 0 || b < 0 || chainOf[a] != chainOf[b]) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Math.abs(along[a] - along[b]);
+    }
+
+    /** The graph vertices from <code>s</code> to <code>t</code> along their common chain. */
+    int[] alongChainPath(int s, int t) {
+        int a = slotOf[s];
+        int b = slotOf[t];
+        int step = a <= b ? 1 : -1;
+        int[] path = new int[Math.abs(b - a) + 1];
+        for (int i = 0; i < path.length; i++) {
+            path[i] = shapes[a + i * step];
+        }
+        return path;
+    }
+
+    /** Total length of the core edges along a path of core vertices. */
+    double coreLength(int[] corePath) {
+        double total = 0;
+        for (int i = 0; i + 1 < corePath.length; i++) {
+            total += core.length(coreEdge(corePath[i], corePath[i + 1]));
+        }
+        return total;
+    }
+
+    /**
+     * The graph vertices of a route that leaves the end of source anchor <code>a</code>, runs
+     * along its chain to the anchor, follows <code>corePath</code> through the core and
+     * finishes along the chain of target anchor <code>b</code>.
+     */
+    int[] expand(Anchors sources, int a, int[] corePath, Anchors targets, int b) {
+        int size = 1;
+        for (int i = 0; i + 1 < corePath.length; i++) {
+            int chain = edgeChain[coreEdge(corePath[i], corePath[i + 1])];
+            size += 1 + (chain < 0 ? 0 : chainStart[chain + 1] - chainStart[chain]);
+        }
+        int[] head = chainPart(sources.ends[a], sources.backward[a]);
+        int[] tail = chainPart(targets.ends[b], targets.backward[b]);
+        int[] path = new int[head.length + size + tail.length];
+        int at = 0;
+        for (int v : head) {
+            path[at++] = v;
+        }
+        path[at++] = graphOf[corePath[0]];
+        for (int i = 0; i + 1 < corePath.length; i++) {
+            int e = coreEdge(corePath[i], corePath[i + 1]);
+            int chain = edgeChain[e];
+            if (chain >= 0) {
+                boolean forward = chainFrom[chain] == corePath[i];
+                int first = chainStart[chain];
+                int last = chainStart[chain + 1] - 1;
+                for (int s = 0; s <= last - first; s++) {
+                    path[at++] = shapes[forward ? first + s : last - s];
+                }
+            }
+            path[at++] = graphOf[corePath[i + 1]];
+        }
+        for (int i = tail.length - 1; i >= 0; i--) {
+            path[at++] = tail[i];
+        }
+        return path;
+    }
+
+    /**
+     * The shape points from graph vertex <code>v</code> to, but not including, the start or
+     * finish of its chain; empty for a junction.
+     */
+    private int[] chainPart(int v, boolean towardStart) {
+        int slot = slotOf[v];
+        if (slot < 0) {
+            return new int[0];
+        }
+        int chain = chainOf[slot];
+        int end = towardStart ? chainStart[chain] : chainStart[chain + 1] - 1;
+        int step = towardStart ? -1 : 1;
+        int[] part = new int[Math.abs(end - slot) + 1];
+        for (int i = 0; i < part.length; i++) {
+            part[i] = shapes[slot + i * step];
+        }
+        return part;
+    }
+
+    /** The core edge from <code>u</code> to <code>w</code>; there is at most one. */
+    private int coreEdge(int u, int w) {
+        for (int e = core.firstEdge(u); e < core.endEdge(u); e++) {
+            if (core.target(e) == w) {
+                return e;
+            }
+        }
+        throw new IllegalArgumentException("No core edge between " + u + " and " + w + ".");
+    }
+
+    /** Walks the graph from junction to junction, collecting chains and core edges. */
+    private static final class Chains {
+        private final RoadGraph graph;
+        private final boolean[] junction;
+        final int[] slotOf;
+        /* Chains, by graph vertex, and their shape points. */
+        int[] from;
+        int[] to;
+        int[] start;
+        double[] length;
+        int count;
+        final int[] shapes;
+        final double[] along;
+        int shapeCount;
+        /* Core edges, once per chain between two different junctions. */
+        int[] edgeFrom;
+        int[] edgeTo;
+        double[] edgeLength;
+        int[] edgeChain;
+        int edgeCount;
+
+        Chains(RoadGraph graph, boolean[] junction) {
+            this.graph = graph;
+            this.junction = junction;
+            int n = graph.size();
+            slotOf = new int[n];
+            Arrays.fill(slotOf, -1);
+            shapes = new int[n];
+            along = new double[n];
+            from = new int[16];
+            to = new int[16];
+            start = new int[16];
+            length = new double[16];
+            edgeFrom = new int[16];
+            edgeTo = new int[16];
+            edgeLength = new double[16];
+            edgeChain = new int[16];
+        }
+
+        /**
+         * Follow each edge of junction <code>u</code> to the next junction, unless it leads into
+         * a chain already kept. A chain is kept when walked from its lower numbered end, or for
+         * a loop in the direction whose first shape point is the lower numbered, so a walk
+         * never holds more shape points than there are vertices left.
+         */
+        void walkFrom(int u) {
+            for (int e = graph.firstEdge(u); e < graph.endEdge(u); e++) {
+                int first = shapeCount;
+                int prev = u;
+                int cur = graph.target(e);
+                if (slotOf[cur] >= 0) {
+                    continue;
+                }
+                double d = graph.length(e);
+                while (!junction[cur]) {
+                    shapes[shapeCount] = cur;
+                    along[shapeCount++] = d;
+                    int next = graph.firstEdge(cur);
+                    if (graph.target(next) == prev) {
+                        next++;
+                    }
+                    d += graph.length(next);
+                    prev = cur;
+                    cur = graph.target(next);
+                }
+                boolean keep = u < cur
+                        || u == cur && shapes[first] < shapes[shapeCount - 1];
+                if (!keep) {
+                    shapeCount = first;
+                    continue;
+                }
+                int chain = -1;
+                if (shapeCount > first) {
+                    chain = addChain(u, cur, first, d);
+                }
+                if (u != cur) {
+                    addEdge(u, cur, d, chain);
+                }
+            }
+        }
+
+        private int addChain(int u, int w, int first, double d) {
+            if (count == from.length) {
+                from = Arrays.copyOf(from, count * 2);
+                to = Arrays.copyOf(to, count * 2);
+                start = Arrays.copyOf(start, count * 2);
+                length = Arrays.copyOf(length, count * 2);
+            }
+            from[count] = u;
+            to[count] = w;
+            start[count] = first;
+            length[count] = d;
+            for (int s = first; s < shapeCount; s++) {
+                slotOf[shapes[s]] = s;
+            }
+            return count++;
+        }
+
+        private void addEdge(int u, int w, double d, int chain) {
+            if (edgeCount == edgeFrom.length) {
+                edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+                edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+                edgeLength = Arrays.copyOf(edgeLength, edgeCount * 2);
+                edgeChain = Arrays.copyOf(edgeChain, edgeCount * 2);
+            }
+            edgeFrom[edgeCount] = u;
+            edgeTo[edgeCount] = w;
+            edgeLength[edgeCount] = d;
+            edgeChain[edgeCount++] = chain;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Routes over the full graph of a SimplifiedGraph by searching only its core. A route from or to
+ * a shape point starts or ends at either end of its chain, so each query becomes one
+ * multi-endpoint query on the core, and its answer is expanded back into graph vertices. Two
+ * shape points of the same chain may also be joined directly along it.
+ */
+public class SimplifiedRouter implements Router {
+    private final SimplifiedGraph simplified;
+    private final Router core;
+
+    /** Answers queries on <code>simplified.graph()</code> with a router over its core. */
+    public SimplifiedRouter(SimplifiedGraph simplified, Router core) {
+        if (core.graph() != simplified.core()) {
+            throw new IllegalArgumentException("The router must search the simplified core.");
+        }
+        this.simplified = simplified;
+        this.core = core;
+    }
+
+    @Override
+    public RoadGraph graph() {
+        return simplified.graph();
+    }
+
+    @Override
+    public int[] route(int source, int target) {
+        return route(new int[] {source}, AStarRouter.NO_COST, new int[] {target},
+                AStarRouter.NO_COST);
+    }
+
+    @Override
+    public int[] route(int[] sources, double[] sourceCosts, int[] targets,
+                       double[] targetCosts) {
+        double best = Double.POSITIVE_INFINITY;
+        int direct = -1;
+        for (int i = 0; i < sources.length; i++) {
+            for (int j = 0; j < targets.length; j++) {
+                double cost = sourceCosts[i] + simplified.alongChain(sources[i], targets[j])
+                        + targetCosts[j];
+                if (cost < best) {
+                    best = cost;
+                    direct = i * targets.length + j;
+                }
+            }
+        }
+
+        SimplifiedGraph.Anchors from = simplified.anchors(sources, sourceCosts);
+        SimplifiedGraph.Anchors to = simplified.anchors(targets, targetCosts);
+        int[] corePath = core.route(from.vertices, from.costs, to.vertices, to.costs);
+        if (corePath.length > 0) {
+            int a = from.cheapest(corePath[0]);
+            int b = to.cheapest(corePath[corePath.length - 1]);
+            if (from.costs[a] + simplified.coreLength(corePath) + to.costs[b] < best) {
+                return simplified.expand(from, a, corePath, to, b);
+            }
+        }
+        if (direct >= 0) {
+            return simplified.alongChainPath(sources[direct / targets.length],
+                    targets[direct % targets.length]);
+        }
+        return new int[0];
+    }
+
+    @Override
+    public int lastSettledCount() {
+        return core.lastSettledCount();
+    }
+}
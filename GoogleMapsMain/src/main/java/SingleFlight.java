@@ -0,0 +1,71 @@
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs concurrent computations of the same key once. The first caller for a key computes it on
+ * its own thread, and any caller asking for that key before it finishes waits and shares the
+ * result, or the failure. Nothing is kept once a computation finishes, so this is no cache: it
+ * stops a burst of identical requests, such as every client opening the map on the same view,
+ * from doing the same work side by side while the first is still at it.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, FutureTask<V>> flights = new ConcurrentHashMap<>();
+    private final LongAdder computed = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * The value of <code>computation</code>, or of the one already running for
+     * <code>key</code>.
+     * @throws IOException If the computation threw one, or this thread was interrupted waiting.
+     */
+    public V get(K key, Callable<V> computation) throws IOException {
+        FutureTask<V> task = new FutureTask<>(computation);
+        FutureTask<V> running = flights.putIfAbsent(key, task);
+        if (running == null) {
+            computed.increment();
+            try {
+                task.run();
+            } finally {
+                flights.remove(key, task);
+            }
+            running = task;
+        } else {
+            coalesced.increment();
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /** Computations run, one for each key and burst. */
+    public long computed() {
+        return computed.sum();
+    }
+
+    /** Calls that waited on a computation already running instead of starting their own. */
+    public long coalesced() {
+        return coalesced.sum();
+    }
+
+    /** Computations running now. */
+    public int inFlight() {
+        return flights.size();
+    }
+}
@@ -0,0 +1,230 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * A cache of decoded map tiles, bounded by the bytes their rasters hold. Tiles are kept as
+ * TYPE_3BYTE_BGR, which RasterCompositor copies rows of directly, so each 256x256 tile takes
+ * 192 KiB and caching all of img/ would take gigabytes; instead the least recently used tiles
+ * are evicted once the total passes the capacity.
+ * <p>
+ *     Like RouteCache, tiles are spread over independently locked segments, each an
+ *     access-ordered LinkedHashMap with an equal share of the capacity. A miss inserts a
+ *     pending FutureTask under the lock and decodes outside it, so concurrent requests for the
+ *     same tile wait on one decode instead of each reading the file.
+ * </p>
+ */
+public class TileCache {
+    private static final int SEGMENTS = 16;
+
+    private final String root;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    /** How long reading and converting each missed tile took. */
+    private final LatencyHistogram loads = new LatencyHistogram();
+
+    /**
+     * @param root The directory holding the tile PNGs, ending in a separator.
+     * @param capacity The decoded bytes to keep.
+     */
+    public TileCache(String root, long capacity) {
+        this.root = root;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, capacity / SEGMENTS));
+        }
+    }
+
+    /**
+     * The decoded tile <code>name</code>, such as "root" or "1423", read from
+     * <code>root + name + ".png"</code> on a miss and converted to TYPE_3BYTE_BGR.
+     * @throws IOException If the tile cannot be read; the failure is not cached.
+     */
+    public BufferedImage get(String name) throws IOException {
+        Segment segment = segmentFor(name);
+        FutureTask<BufferedImage> task;
+        boolean owner = false;
+        synchronized (segment) {
+            task = segment.get(name);
+            if (task == null) {
+                task = new FutureTask<>(() -> read(name));
+                segment.put(name, task);
+                owner = true;
+            }
+        }
+        if (owner) {
+            misses.increment();
+            task.run();
+        } else {
+            hits.increment();
+        }
+        try {
+            BufferedImage tile = task.get();
+            if (owner) {
+                settle(segment, name, task, bytes(tile));
+            }
+            return tile;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading tile " + name, e);
+        } catch (ExecutionException e) {
+            if (owner) {
+                synchronized (segment) {
+                    segment.remove(name, task);
+                }
+            }
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause
+                    : new IOException("Could not load tile " + name, cause);
+        }
+    }
+
+    /**
+     * Load every tile of the top <code>levels</code> quadtree levels, the root counting as the
+     * first, decoding several at once. Tiles that do not exist are skipped.
+     */
+    public void preload(int levels) {
+        List<String> names = new ArrayList<>();
+        if (levels > 0) {
+            names.add("root");
+        }
+        List<String> level = new ArrayList<>();
+        level.add("");
+        for (int depth = 1; depth < levels; depth++) {
+            List<String> next = new ArrayList<>(level.size() * 4);
+            for (String parent : level) {
+                for (char child = '1'; child <= '4'; child++) {
+                    next.add(parent + child);
+                }
+            }
+            names.addAll(next);
+            level = next;
+        }
+        IntStream.range(0, names.size()).parallel().forEach(i -> {
+            try {
+                get(names.get(i));
+            } catch (IOException e) {
+                System.out.println("Could not preload tile " + names.get(i));
+            }
+        });
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /** The time taken to load each tile on a miss, failed loads included. */
+    public LatencyHistogram loadLatency() {
+        return loads;
+    }
+
+    /** Number of cached tiles, including those still loading. */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /** Decoded bytes held by the cached tiles. */
+    public long bytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /** Bytes held by the raster of a decoded image. */
+    static long bytes(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks()
+                * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    private BufferedImage read(String name) throws IOException {
+        long start = System.nanoTime();
+        try {
+            BufferedImage image = ImageIO.read(new File(root + name + ".png"));
+            if (image == null) {
+                throw new IOException("Not an image: " + root + name + ".png");
+            }
+            return RasterCompositor.toBgr(image);
+        } finally {
+            loads.record(System.nanoTime() - start);
+        }
+    }
+
+    /** Charge a freshly loaded tile to its segment, evicting older tiles to make room. */
+    private void settle(Segment segment, String name, FutureTask<BufferedImage> task,
+                        long bytes) {
+        int evicted = 0;
+        synchronized (segment) {
+            if (segment.get(name) != task) {
+                return;
+            }
+            segment.sizes.put(name, bytes);
+            segment.bytes += bytes;
+            Iterator<Map.Entry<String, FutureTask<BufferedImage>>> it =
+                    segment.entrySet().iterator();
+            while (segment.bytes > segment.capacity && it.hasNext()) {
+                Map.Entry<String, FutureTask<BufferedImage>> eldest = it.next();
+                Long size = segment.sizes.remove(eldest.getKey());
+                if (size == null) {
+                    continue;       // still loading; its loader charges it when done
+                }
+                segment.bytes -= size;
+                it.remove();
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            evictions.add(evicted);
+        }
+    }
+
+    private Segment segmentFor(String name) {
+        int h = name.hashCode() * 0x9e3779b9;
+        return segments[h >>> 28];
+    }
+
+    /** One lock's share of the cache: an LRU map of tiles with the bytes of those loaded. */
+    private static class Segment extends LinkedHashMap<String, FutureTask<BufferedImage>> {
+        private static final long serialVersionUID = 1L;
+
+        private final long capacity;
+        private final Map<String, Long> sizes = new HashMap<>();
+        private long bytes;
+
+        Segment(long capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+    }
+}
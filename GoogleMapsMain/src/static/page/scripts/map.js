@@ -23,6 +23,7 @@ var img_w, img_h;
 var wdpp = 0.00004291534423828125; // Starting wdpp for level 3
 var hdpp = 0.00003388335630702399; // Starting hdpp for level 3
 var max_level = 7; var min_level = 2; // Level limits based on pulled data
+var tile_size = 256; var draw_generation = 0;
 
 // Compute lat and lon by window size
 function real_lrlat() { return params["ullat"] - hdpp * params["h"]; }
@@ -35,7 +36,8 @@ $( document ).ready(function() {
     } else {
         host = "http://localhost:4567"
     }
-    var raster_server = host + "/raster"
+    var raster_server = host + "/raster/tiles"
+    var tile_server = host + "/tiles/"
     var search = host + "/search"
     map = document.getElementById("map");
     dest = document.getElementById("dest");
@@ -253,9 +255,56 @@ $( document ).ready(function() {
         }
     }
 
+    // Composite the tiles on the canvas as they arrive, then draw the route over them.
+    // The browser caches the tiles, so panning mostly redraws tiles it already holds.
+    function drawTiles(data) {
+        var generation = ++draw_generation;
+        var ctx = map.getContext("2d");
+        map.width = data.raster_width;
+        map.height = data.raster_height;
+        var columns = data.raster_width / tile_size;
+        var pending = data.tiles.length;
+        data.tiles.forEach(function(name, i) {
+            var tile = new Image();
+            tile.onload = tile.onerror = function() {
+                if (generation !== draw_generation) {
+                    return; // a newer raster replaced this one
+                }
+                if (tile.naturalWidth) {
+                    ctx.drawImage(tile, (i % columns) * tile_size,
+                        Math.floor(i / columns) * tile_size);
+                }
+                if (--pending === 0 && data.route) {
+                    drawRoute(ctx, data);
+                }
+            };
+            tile.src = tile_server + name + ".png";
+        });
+    }
+
+    function drawRoute(ctx, data) {
+        var xpp = (data.raster_lr_lon - data.raster_ul_lon) / data.raster_width;
+        var ypp = (data.raster_ul_lat - data.raster_lr_lat) / data.raster_height;
+        ctx.strokeStyle = "rgba(108, 181, 230, 0.784)";
+        ctx.lineWidth = 5;
+        ctx.lineCap = "round";
+        ctx.lineJoin = "round";
+        ctx.beginPath();
+        for (var i = 0; i < data.route.length; i++) {
+            var x = (data.route[i][0] - data.raster_ul_lon) / xpp;
+            var y = (data.raster_ul_lat - data.route[i][1]) / ypp;
+            if (i === 0) {
+                ctx.moveTo(x, y);
+            } else {
+                ctx.lineTo(x, y);
+            }
+        }
+        ctx.stroke();
+    }
+
     function updateImg() {
-        // Synchronous ajax call for image update. Could be async for better experience
-        // but then user spam locks up the server.
+        // Synchronous ajax call for the tile list. Could be async for better experience
+        // but then user spam locks up the server. The tiles themselves load asynchronously.
         $.get({
             async: false,
             url: raster_server,
@@ -263,7 +312,7 @@ $( document ).ready(function() {
             success: function(data) {
                 if (data.query_success) {
                     console.log("Updating map");
-                    map.src = "data:image/jpg;base64," + data.b64_encoded_image_data;
+                    drawTiles(data);
                     ullon_bound = data.raster_ul_lon;
                     ullat_bound = data.raster_ul_lat;
                     lrlon_bound = data.raster_lr_lon;
@@ -0,0 +1,168 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AStarRouterTest {
+    /** Plain Dijkstra over the graph, as the reference for path lengths. */
+    static double dijkstra(RoadGraph graph, int source, int target) {
+        double[] dist = new double[graph.size()];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        dist[source] = 0;
+        PriorityQueue<double[]> fringe = new PriorityQueue<>(
+                (double[] a, double[] b) -> Double.compare(a[0], b[0]));
+        fringe.add(new double[] {0, source});
+        while (!fringe.isEmpty()) {
+            double[] top = fringe.poll();
+            int u = (int) top[1];
+            if (top[0] > dist[u]) {
+                continue;
+            }
+            for (int e = graph.firstEdge(u); e < graph.endEdge(u); e++) {
+                int w = graph.target(e);
+                if (dist[u] + graph.length(e) < dist[w]) {
+                    dist[w] = dist[u] + graph.length(e);
+                    fringe.add(new double[] {dist[w], w});
+                }
+            }
+        }
+        return dist[target];
+    }
+
+    /** Length of a path, checking that consecutive vertices are adjacent. */
+    static double length(RoadGraph graph, int[] path) {
+        double total = 0;
+        for (int i = 0; i + 1 < path.length; i++) {
+            double edge = Double.NaN;
+            for (int e = graph.firstEdge(path[i]); e < graph.endEdge(path[i]); e++) {
+                if (graph.target(e) == path[i + 1]) {
+                    edge = graph.length(e);
+                }
+            }
+            assertTrue("Path uses a missing edge.", !Double.isNaN(edge));
+            total += edge;
+        }
+        return total;
+    }
+
+    private static void checkShortest(Router router, long seed) {
+        RoadGraph graph = router.graph();
+        Random random = new Random(seed);
+        for (int i = 0; i < 200; i++) {
+            int s = random.nextInt(graph.size());
+            int t = random.nextInt(graph.size());
+            int[] path = router.route(s, t);
+            assertEquals(s, path[0]);
+            assertEquals(t, path[path.length - 1]);
+            assertEquals(dijkstra(graph, s, t), length(graph, path), 1e-9);
+        }
+    }
+
+    /**
+     * Check multi-endpoint queries against the best of Dijkstra between every source and
+     * target, each with a random extra cost of up to a tenth of the map's width. Lengths are
+     * in degrees, as RoadGraph.distance() measures them.
+     */
+    static void checkMultiEndpoint(Router router, long seed) {
+        RoadGraph graph = router.graph();
+        Random random = new Random(seed);
+        for (int i = 0; i < 40; i++) {
+            int[] sources = new int[1 + random.nextInt(3)];
+            int[] targets = new int[1 + random.nextInt(3)];
+            double[] sourceCosts = new double[sources.length];
+            double[] targetCosts = new double[targets.length];
+            for (int k = 0; k < sources.length; k++) {
+                sources[k] = random.nextInt(graph.size());
+                sourceCosts[k] = 0.01 * random.nextDouble();
+            }
+            for (int k = 0; k < targets.length; k++) {
+                targets[k] = random.nextInt(graph.size());
+                targetCosts[k] = 0.01 * random.nextDouble();
+            }
+            double expected = Double.POSITIVE_INFINITY;
+            for (int a = 0; a < sources.length; a++) {
+                for (int b = 0; b < targets.length; b++) {
+                    expected = Math.min(expected, sourceCosts[a]
+                            + dijkstra(graph, sources[a], targets[b]) + targetCosts[b]);
+                }
+            }
+            int[] path = router.route(sources, sourceCosts, targets, targetCosts);
+            double start = Double.POSITIVE_INFINITY;
+            for (int a = 0; a < sources.length; a++) {
+                if (sources[a] == path[0]) {
+                    start = Math.min(start, sourceCosts[a]);
+                }
+            }
+            double end = Double.POSITIVE_INFINITY;
+            for (int b = 0; b < targets.length; b++) {
+                if (targets[b] == path[path.length - 1]) {
+                    end = Math.min(end, targetCosts[b]);
+                }
+            }
+            assertEquals(expected, start + length(graph, path) + end, 1e-9);
+        }
+    }
+
+    @Test
+    public void testAStarFindsShortestPaths() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(15, 18, 21).getPath()).graph();
+        checkShortest(new AStarRouter(graph), 1);
+    }
+
+    @Test
+    public void testBidirectionalFindsShortestPaths() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(15, 18, 22).getPath()).graph();
+        checkShortest(new AStarRouter(graph, true), 2);
+    }
+
+    @Test
+    public void testMultiEndpointQueries() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(15, 15, 24).getPath()).graph();
+        checkMultiEndpoint(new AStarRouter(graph), 5);
+        checkMultiEndpoint(new AStarRouter(graph, true), 6);
+    }
+
+    @Test
+    public void testAStarSettlesFewerNodesThanDijkstra() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(30, 30, 23).getPath()).graph();
+        Router router = new AStarRouter(graph);
+        int s = graph.indexOf(SyntheticOsm.id(30, 15, 0));
+        int t = graph.indexOf(SyntheticOsm.id(30, 15, 29));
+        router.route(s, t);
+        assertTrue(router.lastSettledCount() < graph.size() / 2);
+    }
+
+    @Test
+    public void testUnreachableTarget() {
+        RoadGraph.Builder builder = new RoadGraph.Builder();
+        builder.addNode(1, 37.85, -122.25);
+        builder.addNode(2, 37.86, -122.25);
+        builder.addNode(3, 37.87, -122.25);
+        builder.addNode(4, 37.88, -122.25);
+        builder.addWay(new long[] {1, 2}, 2);
+        builder.addWay(new long[] {3, 4}, 2);
+        RoadGraph graph = builder.build();
+        assertEquals(0, new AStarRouter(graph).route(0, 3).length);
+        assertEquals(0, new AStarRouter(graph, true).route(0, 3).length);
+        assertEquals(1, new AStarRouter(graph, true).route(2, 2).length);
+    }
+
+    @Test
+    public void testIndexedMinHeapDecreaseKey() {
+        IndexedMinHeap heap = new IndexedMinHeap(5);
+        heap.push(0, 5);
+        heap.push(1, 3);
+        heap.push(2, 4);
+        heap.push(0, 1);
+        heap.push(2, 9);
+        assertEquals(3, heap.size());
+        assertEquals(0, heap.poll());
+        assertEquals(1, heap.poll());
+        assertEquals(2, heap.poll());
+        assertTrue(heap.isEmpty());
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Replays users typing place names into the search bar one keystroke at a time, asking for the
+ * top 10 suggestions after every key, through the PrefixIndex and through a linear scan that
+ * cleans and tests every name on each keystroke. Prints latency percentiles per keystroke. Not a
+ * JUnit test; run it directly, optionally with the OSM file whose names to use. Without
+ * berkeley.osm it makes up 20,000 names from common words, with a few chains that share a name
+ * and so crowd the short prefixes.
+ */
+public class AutocompleteBenchmark {
+    private static final int TYPED_NAMES = 300;
+    private static final int SUGGESTIONS = 10;
+
+    public static void main(String[] args) throws Exception {
+        String osm = args.length > 0 ? args[0] : "berkeley.osm";
+        Locations places = new File(osm).isFile() ? new GraphDB(osm).locations() : synthetic();
+        long start = System.nanoTime();
+        PrefixIndex index = new PrefixIndex(places);
+        System.out.printf("%d places, %d distinct names; index built in %.1f ms%n",
+                places.size(), index.size(), (System.nanoTime() - start) / 1e6);
+
+        Random random = new Random(23);
+        List<String> keystrokes = new ArrayList<>();
+        for (int i = 0; i < TYPED_NAMES; i++) {
+            String name = places.name(random.nextInt(places.size()));
+            for (int k = 1; k <= name.length(); k++) {
+                keystrokes.add(name.substring(0, k));
+            }
+        }
+        /* Warm up both before timing. */
+        for (int round = 0; round < 3; round++) {
+            for (String prefix : keystrokes) {
+                index.complete(prefix, SUGGESTIONS);
+            }
+        }
+        long[] indexed = time(keystrokes, prefix -> index.complete(prefix, SUGGESTIONS));
+        long[] scanned = time(keystrokes.subList(0, Math.min(2000, keystrokes.size())),
+                prefix -> scan(places, prefix));
+        System.out.printf("%-12s %10s %10s %10s %10s%n", "", "keystrokes", "mean us",
+                "p50 us", "p99 us");
+        report("PrefixIndex", indexed);
+        report("linear scan", scanned);
+    }
+
+    private interface Query {
+        void run(String prefix);
+    }
+
+    private static long[] time(List<String> keystrokes, Query query) {
+        long[] nanos = new long[keystrokes.size()];
+        for (int i = 0; i < nanos.length; i++) {
+            long start = System.nanoTime();
+            query.run(keystrokes.get(i));
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos;
+    }
+
+    private static void report(String name, long[] nanos) {
+        double sum = 0;
+        for (long n : nanos) {
+            sum += n;
+        }
+        System.out.printf("%-12s %10d %10.1f %10.1f %10.1f%n", name, nanos.length,
+                sum / nanos.length / 1e3, nanos[nanos.length / 2] / 1e3,
+                nanos[(int) (nanos.length * 0.99)] / 1e3);
+    }
+
+    /** Every distinct name whose cleaned form starts with the cleaned prefix. */
+    private static List<String> scan(Locations places, String prefix) {
+        String p = GraphDB.cleanString(prefix);
+        Set<String> matches = new LinkedHashSet<>();
+        for (int i = 0; i < places.size(); i++) {
+            if (GraphDB.cleanString(places.name(i)).startsWith(p)) {
+                matches.add(places.name(i));
+            }
+        }
+        return new ArrayList<>(matches);
+    }
+
+    private static Locations synthetic() {
+        String[] first = {"Golden", "Blue", "Berkeley", "Telegraph", "College", "North", "Sather",
+            "Oak", "Bay", "Shattuck", "Cedar", "Spruce", "Ashby", "Dwight", "Hearst", "Euclid"};
+        String[] second = {"Cafe", "Market", "Books", "Pizza", "Bakery", "Deli", "Cleaners",
+            "Hardware", "Bank", "Salon", "Pharmacy", "Grill", "Garden", "Tea House", "Library"};
+        String[] chains = {"Starbucks", "Peet's Coffee & Tea", "7-Eleven", "Walgreens"};
+        Random random = new Random(22);
+        Locations.Builder builder = new Locations.Builder();
+        for (int i = 0; i < 20000; i++) {
+            String name = random.nextInt(10) == 0 ? chains[random.nextInt(chains.length)]
+                    : first[random.nextInt(first.length)] + " "
+                    + second[random.nextInt(second.length)]
+                    + (random.nextBoolean() ? " " + (char) ('A' + random.nextInt(26))
+                    + random.nextInt(100) : "");
+            builder.add(i, 37.87, -122.26, name);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,71 @@
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ContractionHierarchyTest {
+    @Test
+    public void testQueriesMatchDijkstra() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(20, 20, 41).getPath()).graph();
+        ContractionHierarchy ch = ContractionHierarchy.build(graph);
+        Random random = new Random(3);
+        for (int i = 0; i < 300; i++) {
+            int s = random.nextInt(graph.size());
+            int t = random.nextInt(graph.size());
+            int[] path = ch.route(s, t);
+            assertEquals(s, path[0]);
+            assertEquals(t, path[path.length - 1]);
+            assertEquals(AStarRouterTest.dijkstra(graph, s, t),
+                    AStarRouterTest.length(graph, path), 1e-9);
+        }
+    }
+
+    @Test
+    public void testMultiEndpointQueries() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(15, 15, 46).getPath()).graph();
+        AStarRouterTest.checkMultiEndpoint(ContractionHierarchy.build(graph), 8);
+    }
+
+    @Test
+    public void testRanksArePermutation() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(10, 12, 42).getPath()).graph();
+        ContractionHierarchy ch = ContractionHierarchy.build(graph);
+        boolean[] seen = new boolean[graph.size()];
+        for (int v = 0; v < graph.size(); v++) {
+            assertTrue(!seen[ch.rank(v)]);
+            seen[ch.rank(v)] = true;
+        }
+    }
+
+    @Test
+    public void testSaveAndReload() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(12, 12, 43).getPath()).graph();
+        Path path = Files.createTempFile("hierarchy", ".ch");
+        path.toFile().deleteOnExit();
+        ContractionHierarchy built = ContractionHierarchy.build(graph);
+        built.write(path);
+        ContractionHierarchy loaded = ContractionHierarchy.open(path, graph);
+        assertEquals(built.upwardEdgeCount(), loaded.upwardEdgeCount());
+        Random random = new Random(4);
+        for (int i = 0; i < 100; i++) {
+            int s = random.nextInt(graph.size());
+            int t = random.nextInt(graph.size());
+            assertEquals(AStarRouterTest.length(graph, built.route(s, t)),
+                    AStarRouterTest.length(graph, loaded.route(s, t)), 1e-12);
+        }
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testRejectsHierarchyOfAnotherGraph() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(8, 8, 44).getPath()).graph();
+        RoadGraph other = new GraphDB(SyntheticOsm.grid(8, 8, 45).getPath()).graph();
+        Path path = Files.createTempFile("hierarchy", ".ch");
+        path.toFile().deleteOnExit();
+        ContractionHierarchy.build(graph).write(path);
+        ContractionHierarchy.read(path, other);
+    }
+}
@@ -0,0 +1,49 @@
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Times distance tables of random points with the one-to-many searches spread over 1, 2, 4...
+ * threads up to the number of cores, against routing every pair one at a time. Not a JUnit
+ * test; run it directly, optionally with the OSM file to use. Without berkeley.osm it falls back
+ * to a synthetic grid with curved streets.
+ */
+public class DistanceTableBenchmark {
+    private static final int POINTS = 40;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String osm = args.length > 0 ? args[0] : "berkeley.osm";
+        if (!new File(osm).isFile()) {
+            osm = SyntheticOsm.curvyGrid(60, 60, 3, 31).getPath();
+        }
+        RoadGraph graph = new GraphDB(osm).graph();
+        SimplifiedGraph simplified = new SimplifiedGraph(graph);
+        DistanceTable table = new DistanceTable(graph);
+        Router router = new SimplifiedRouter(simplified, new AStarRouter(simplified.core()));
+        int[] points = new Random(33).ints(POINTS, 0, graph.size()).toArray();
+
+        long start = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r++) {
+            for (int s : points) {
+                for (int t : points) {
+                    router.route(s, t);
+                }
+            }
+        }
+        System.out.printf("%d x %d routed pair by pair: %.1f ms%n", POINTS, POINTS,
+                (System.nanoTime() - start) / 1e6 / ROUNDS);
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            pool.submit(() -> table.distances(points, points)).get();
+            start = System.nanoTime();
+            for (int r = 0; r < ROUNDS; r++) {
+                pool.submit(() -> table.distances(points, points)).get();
+            }
+            System.out.printf("%d x %d table on %d threads: %.1f ms%n", POINTS, POINTS,
+                    threads, (System.nanoTime() - start) / 1e6 / ROUNDS);
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DistanceTableTest {
+    /** Plain Dijkstra with roads weighed in metres. */
+    static double metres(RoadGraph graph, int source, int target) {
+        double[] dist = new double[graph.size()];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        dist[source] = 0;
+        PriorityQueue<double[]> fringe = new PriorityQueue<>(
+                (double[] a, double[] b) -> Double.compare(a[0], b[0]));
+        fringe.add(new double[] {0, source});
+        while (!fringe.isEmpty()) {
+            double[] top = fringe.poll();
+            int u = (int) top[1];
+            if (top[0] > dist[u]) {
+                continue;
+            }
+            for (int e = graph.firstEdge(u); e < graph.endEdge(u); e++) {
+                int w = graph.target(e);
+                if (dist[u] + graph.metres(u, w) < dist[w]) {
+                    dist[w] = dist[u] + graph.metres(u, w);
+                    fringe.add(new double[] {dist[w], w});
+                }
+            }
+        }
+        return dist[target];
+    }
+
+    private static void checkAgainstDijkstra(DistanceTable table, long seed) {
+        RoadGraph graph = table.graph();
+        Random random = new Random(seed);
+        int[] sources = random.ints(7, 0, graph.size()).toArray();
+        int[] targets = random.ints(5, 0, graph.size()).toArray();
+        targets[0] = sources[0];
+        double[] distances = table.distances(sources, targets);
+        assertEquals(sources.length * targets.length, distances.length);
+        for (int i = 0; i < sources.length; i++) {
+            for (int j = 0; j < targets.length; j++) {
+                assertEquals(metres(graph, sources[i], targets[j]),
+                        distances[i * targets.length + j], 1e-3);
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesDijkstra() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(15, 15, 71).getPath()).graph();
+        checkAgainstDijkstra(new DistanceTable(graph), 1);
+    }
+
+    @Test
+    public void testMetres() {
+        /* A minute of latitude is a nautical mile, near enough. */
+        assertEquals(1853, RoadGraph.metres(-122.25, 37.85, -122.25, 37.85 + 1 / 60.0), 2);
+        double eastward = RoadGraph.metres(-122.25, 37.85, -122.25 + 1 / 60.0, 37.85);
+        assertEquals(1853 * Math.cos(Math.toRadians(37.85)), eastward, 2);
+    }
+
+    @Test
+    public void testUnreachableTargets() {
+        RoadGraph.Builder builder = new RoadGraph.Builder();
+        builder.addNode(1, 37.85, -122.25);
+        builder.addNode(2, 37.86, -122.25);
+        builder.addNode(3, 37.87, -122.25);
+        builder.addNode(4, 37.88, -122.25);
+        builder.addWay(new long[] {1, 2}, 2);
+        builder.addWay(new long[] {3, 4}, 2);
+        double[] distances = new DistanceTable(builder.build())
+                .distances(new int[] {0}, new int[] {1, 2});
+        assertTrue(distances[0] > 0 && distances[0] < Double.POSITIVE_INFINITY);
+        assertEquals(Double.POSITIVE_INFINITY, distances[1], 0);
+    }
+
+    @Test
+    public void testFormats() {
+        double[] table = {0, 12.345, Double.POSITIVE_INFINITY, 1500};
+        assertEquals("{\"distances\":[[0.0,12.3],[null,1500.0]]}",
+                MapServer.tableJson(table, 2));
+        ByteBuffer bytes = ByteBuffer.wrap(MapServer.tableBytes(table))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(12.345f, bytes.getFloat(4), 0);
+        assertTrue(Float.isNaN(bytes.getFloat(8)));
+        List<double[]> points = MapServer.parsePoints("-122.25,37.87;-122.26,37.86");
+        assertEquals(2, points.size());
+        assertTrue(Arrays.equals(new double[] {-122.26, 37.86}, points.get(1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsMalformedPoints() {
+        MapServer.parsePoints("-122.25,37.87;-122.26");
+    }
+
+    @Test
+    public void testServerSnapsPoints() throws Exception {
+        TestServer.initialize();
+        List<double[]> points = MapServer.parsePoints("-122.25,37.87;-122.24,37.86;-122.23,37.85");
+        double[] table = MapServer.getDistanceTable(points, points);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, table[i * 3 + i], 0);
+            for (int j = 0; j < 3; j++) {
+                assertEquals(table[i * 3 + j], table[j * 3 + i], 1e-6);
+            }
+        }
+        /* About 1.4 km apart as the crow flies, so rather more by road. */
+        assertTrue(table[1] > 1400 && table[1] < 3000);
+    }
+}
@@ -0,0 +1,103 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class GraphSnapshotTest {
+    private static Path snapshotOf(GraphDB db) throws IOException {
+        Path path = Files.createTempFile("snapshot", ".graph");
+        path.toFile().deleteOnExit();
+        GraphSnapshot.write(db, path);
+        return path;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        GraphDB parsed = new GraphDB(SyntheticOsm.grid(12, 9, 8, "Caf\u00e9 Rouge", "Top Dog",
+                "Top Dog").getPath());
+        GraphDB mapped = GraphSnapshot.read(snapshotOf(parsed));
+        RoadGraph a = parsed.graph();
+        RoadGraph b = mapped.graph();
+        assertEquals(a.size(), b.size());
+        assertEquals(a.edgeCount(), b.edgeCount());
+        for (int v = 0; v < a.size(); v++) {
+            assertEquals(a.id(v), b.id(v));
+            assertEquals(a.lat(v), b.lat(v), 0);
+            assertEquals(a.lon(v), b.lon(v), 0);
+            assertEquals(a.firstEdge(v), b.firstEdge(v));
+            assertEquals(v, b.indexOf(a.id(v)));
+        }
+        for (int e = 0; e < a.edgeCount(); e++) {
+            assertEquals(a.target(e), b.target(e));
+            assertEquals(a.length(e), b.length(e), 0);
+        }
+        for (double lon = -122.29; lon < -122.22; lon += 0.003) {
+            assertEquals(parsed.closest(lon, 37.85), mapped.closest(lon, 37.85));
+        }
+        Locations p = parsed.locations();
+        Locations q = mapped.locations();
+        assertEquals(3, q.size());
+        for (int i = 0; i < p.size(); i++) {
+            assertEquals(p.id(i), q.id(i));
+            assertEquals(p.lat(i), q.lat(i), 0);
+            assertEquals(p.lon(i), q.lon(i), 0);
+            assertEquals(p.name(i), q.name(i));
+        }
+        assertEquals("Caf\u00e9 Rouge", q.name(0));
+    }
+
+    @Test
+    public void testSimplifiedGraphIsStored() throws Exception {
+        GraphDB parsed = new GraphDB(SyntheticOsm.curvyGrid(6, 7, 3, 64).getPath());
+        GraphDB mapped = GraphSnapshot.read(snapshotOf(parsed));
+        SimplifiedGraph built = parsed.simplified();
+        SimplifiedGraph stored = mapped.simplified();
+        assertSame(stored, mapped.simplified());
+        RoadGraph a = built.core();
+        RoadGraph b = stored.core();
+        assertEquals(a.size(), b.size());
+        assertEquals(a.fingerprint(), b.fingerprint());
+        for (int v = 0; v < parsed.graph().size(); v++) {
+            assertEquals(built.coreVertex(v), stored.coreVertex(v));
+        }
+        assertArrayEquals(built.shapes(), stored.shapes());
+        assertArrayEquals(built.along(), stored.along(), 0);
+        assertArrayEquals(built.edgeChain(), stored.edgeChain());
+        Router router = new SimplifiedRouter(stored, new AStarRouter(b));
+        RoadGraph graph = mapped.graph();
+        for (int s = 0; s < graph.size(); s += 7) {
+            for (int t = 3; t < graph.size(); t += 11) {
+                assertEquals(AStarRouterTest.dijkstra(graph, s, t),
+                        AStarRouterTest.length(graph, router.route(s, t)), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptSnapshotIsRejected() throws Exception {
+        File xml = SyntheticOsm.grid(5, 5, 9);
+        Path path = snapshotOf(new GraphDB(xml.getPath()));
+        try (RandomAccessFile f = new RandomAccessFile(path.toFile(), "rw")) {
+            f.seek(f.length() - 5);
+            f.write(f.read() ^ 0xff);
+        }
+        try {
+            GraphSnapshot.read(path);
+            fail("Expected a checksum failure.");
+        } catch (IOException expected) {
+            /* Fall through. */
+        }
+        /* open() falls back to the XML. */
+        path.toFile().setLastModified(xml.lastModified() + 1000);
+        GraphDB db = GraphDB.open(path.toString(), xml.getPath());
+        assertEquals(4 * 5, db.graph().size());
+    }
+}
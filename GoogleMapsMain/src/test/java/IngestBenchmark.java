@@ -0,0 +1,69 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Times parsing an OSM XML or PBF file into a RoadGraph and its Locations, and reports
+ * throughput in MB/s of input and the peak heap in use while parsing. Not a JUnit test; run it
+ * directly with the files as optional arguments, and with a fixed -Xmx to compare peaks.
+ * Without any it writes a 700 x 700 synthetic grid, about 50 MB of XML, and the same grid as
+ * PBF.
+ */
+public class IngestBenchmark {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        File[] files = new File[args.length];
+        for (int i = 0; i < args.length; i++) {
+            files[i] = new File(args[i]);
+        }
+        if (files.length == 0) {
+            File xml = SyntheticOsm.grid(700, 700, 17);
+            files = new File[] {xml, PbfFixture.fromXml(xml, 8000, true)};
+        }
+        SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+        for (File osm : files) {
+            double megabytes = osm.length() / 1e6;
+            for (int round = 0; round < ROUNDS; round++) {
+                System.out.printf("%s round %d: %.1f MB, %s%n",
+                        osm.getName().endsWith(".pbf") ? "pbf" : "xml", round, megabytes,
+                        parse(parser, osm, megabytes));
+            }
+        }
+    }
+
+    /** Parse once from a collected heap; a method of its own so nothing outlives it. */
+    private static String parse(SAXParser parser, File osm, double megabytes) throws Exception {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long before = heapPeak();
+        long start = System.nanoTime();
+        MapDBHandler handler = new MapDBHandler();
+        if (osm.getName().endsWith(".pbf")) {
+            PbfReader.read(osm, handler);
+        } else {
+            parser.parse(osm, handler);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        parser.reset();     // the parser holds on to its last handler until reset
+        return String.format("%.2f s, %.1f MB/s, peak heap %.0f MB (%.0f MB before); "
+                + "%d vertices, %d places", seconds, megabytes / seconds, heapPeak() / 1e6,
+                before / 1e6, handler.graph().size(), handler.locations().size());
+    }
+
+    /** Sum of the peak usage of every heap pool since their peaks were last reset. */
+    private static long heapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
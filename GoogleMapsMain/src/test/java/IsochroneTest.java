@@ -0,0 +1,87 @@
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IsochroneTest {
+    @Test
+    public void testReachesExactlyTheVerticesWithinBudget() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(12, 12, 81).getPath()).graph();
+        Isochrone isochrone = new Isochrone(graph);
+        int origin = graph.size() / 2;
+        for (double budget : new double[] {0, 150, 600, 2500}) {
+            int[] reached = isochrone.reachable(origin, budget);
+            assertEquals(origin, reached[0]);
+            Set<Integer> within = new HashSet<>();
+            double last = 0;
+            for (int v : reached) {
+                double d = DistanceTableTest.metres(graph, origin, v);
+                assertTrue(d <= budget + 1e-3 && d >= last - 1e-3);
+                last = d;
+                within.add(v);
+            }
+            for (int v = 0; v < graph.size(); v++) {
+                if (!within.contains(v)) {
+                    assertTrue(DistanceTableTest.metres(graph, origin, v) > budget - 1e-3);
+                }
+            }
+        }
+        assertEquals(0, isochrone.reachable(origin, -1).length);
+    }
+
+    @Test
+    public void testHullContainsEveryReachedVertex() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(12, 12, 82).getPath()).graph();
+        Isochrone isochrone = new Isochrone(graph);
+        int[] reached = isochrone.reachable(graph.size() / 3, 1200);
+        int[] hull = isochrone.hull(reached);
+        assertTrue(hull.length >= 3);
+        for (int v : reached) {
+            for (int i = 0; i < hull.length; i++) {
+                int a = hull[i];
+                int b = hull[(i + 1) % hull.length];
+                double cross = (graph.lon(b) - graph.lon(a)) * (graph.lat(v) - graph.lat(a))
+                        - (graph.lat(b) - graph.lat(a)) * (graph.lon(v) - graph.lon(a));
+                assertTrue(cross >= -1e-12);
+            }
+        }
+        assertEquals(1, isochrone.hull(new int[] {4}).length);
+    }
+
+    @Test
+    public void testServerCachesAndDraws() throws Exception {
+        TestServer.initialize();
+        Map<String, Double> iso = new HashMap<>();
+        iso.put("iso_lon", -122.25);
+        iso.put("iso_lat", 37.87);
+        iso.put("iso_distance", 700.0);
+        long hits = MapServer.isochroneCache().hits();
+        Map<String, Object> first = MapServer.getIsochrone(iso);
+        Map<String, Object> second = MapServer.getIsochrone(iso);
+        assertEquals(first.get("nodes"), second.get("nodes"));
+        assertTrue(MapServer.isochroneCache().hits() > hits);
+        List<?> hull = (List<?>) first.get("hull");
+        assertTrue(hull.size() >= 3);
+
+        Map<String, Object> raster = new HashMap<>();
+        raster.put("raster_ul_lon", -122.29);
+        raster.put("raster_ul_lat", 37.89);
+        raster.put("raster_lr_lon", -122.21);
+        raster.put("raster_lr_lat", 37.85);
+        raster.put("raster_width", 256);
+        raster.put("raster_height", 256);
+        BufferedImage im = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        iso.put("iso_lon", -122.25);
+        iso.put("iso_lat", 37.87);
+        MapServer.drawIsochrone(iso, raster, im);
+        assertTrue((im.getRGB(128, 128) & 0xffffff) != 0);
+        assertEquals(0, im.getRGB(0, 0) & 0xffffff);
+    }
+}
@@ -0,0 +1,80 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class KdTreeTest {
+    private static RoadGraph graph() throws Exception {
+        return new GraphDB(SyntheticOsm.grid(20, 25, 4).getPath()).graph();
+    }
+
+    /** Index of the closest vertex by linear scan, as findAndDrawRoute used to do it. */
+    private static int scan(RoadGraph graph, double lon, double lat) {
+        int best = -1;
+        double bestDist = Double.MAX_VALUE;
+        for (int v = 0; v < graph.size(); v++) {
+            double d = RoadGraph.distance(graph.lon(v), graph.lat(v), lon, lat);
+            if (d < bestDist) {
+                bestDist = d;
+                best = v;
+            }
+        }
+        return best;
+    }
+
+    @Test
+    public void testNearestMatchesScan() throws Exception {
+        RoadGraph graph = graph();
+        KdTree tree = new KdTree(graph);
+        Random random = new Random(11);
+        for (int i = 0; i < 2000; i++) {
+            double lon = -122.30 + random.nextDouble() * 0.1;
+            double lat = 37.82 + random.nextDouble() * 0.08;
+            int expected = scan(graph, lon, lat);
+            int actual = tree.nearest(lon, lat);
+            assertEquals(RoadGraph.distance(graph.lon(expected), graph.lat(expected), lon, lat),
+                    RoadGraph.distance(graph.lon(actual), graph.lat(actual), lon, lat), 0);
+        }
+    }
+
+    @Test
+    public void testKNearestIsSortedAndExact() throws Exception {
+        RoadGraph graph = graph();
+        KdTree tree = new KdTree(graph);
+        int k = 7;
+        int[] out = new int[k];
+        double[] dist = new double[k];
+        Random random = new Random(12);
+        for (int i = 0; i < 500; i++) {
+            double lon = -122.30 + random.nextDouble() * 0.1;
+            double lat = 37.82 + random.nextDouble() * 0.08;
+            assertEquals(k, tree.nearest(lon, lat, k, out, dist));
+            double[] all = new double[graph.size()];
+            for (int v = 0; v < graph.size(); v++) {
+                all[v] = RoadGraph.distance(graph.lon(v), graph.lat(v), lon, lat);
+            }
+            Arrays.sort(all);
+            for (int j = 0; j < k; j++) {
+                assertEquals(all[j], dist[j], 1e-12);
+                assertEquals(dist[j], RoadGraph.distance(graph.lon(out[j]), graph.lat(out[j]),
+                        lon, lat), 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyAndTinyGraphs() {
+        KdTree empty = new KdTree(new RoadGraph.Builder().build());
+        assertEquals(-1, empty.nearest(-122.25, 37.85));
+        assertEquals(0, empty.nearest(-122.25, 37.85, 3, new int[3], new double[3]));
+    }
+
+    @Test
+    public void testZeroNearestFindsNothing() throws Exception {
+        KdTree tree = new KdTree(graph());
+        assertEquals(0, tree.nearest(-122.25, 37.85, 0, new int[0], new double[0]));
+        assertEquals(0, tree.nearest(-122.25, 37.85, -1, new int[0], new double[0]));
+    }
+}
@@ -0,0 +1,89 @@
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LandmarkRouterTest {
+    @Test
+    public void testFindsShortestPaths() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(18, 16, 51).getPath()).graph();
+        LandmarkRouter router = new LandmarkRouter(graph, 6);
+        Random random = new Random(5);
+        for (int i = 0; i < 200; i++) {
+            int s = random.nextInt(graph.size());
+            int t = random.nextInt(graph.size());
+            int[] path = router.route(s, t);
+            double expected = AStarRouterTest.dijkstra(graph, s, t);
+            assertEquals(s, path[0]);
+            assertEquals(t, path[path.length - 1]);
+            assertEquals(expected, AStarRouterTest.length(graph, path), 1e-9);
+            assertTrue(router.lowerBound(s, t) <= expected);
+        }
+    }
+
+    @Test
+    public void testTablesNeverOverflowAnInt() {
+        assertEquals(16, LandmarkRouter.landmarkCount(1_000_000, 16));
+        assertEquals(5, LandmarkRouter.landmarkCount(5, 16));
+        assertEquals(0, LandmarkRouter.landmarkCount(0, 16));
+        int n = 200_000_000;
+        int k = LandmarkRouter.landmarkCount(n, 16);
+        assertEquals(10, k);
+        assertTrue((long) n * k <= LandmarkRouter.MAX_TABLE_ENTRIES);
+        assertTrue((long) n * (k + 1) > LandmarkRouter.MAX_TABLE_ENTRIES);
+    }
+
+    @Test
+    public void testMultiEndpointQueries() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(15, 15, 54).getPath()).graph();
+        AStarRouterTest.checkMultiEndpoint(new LandmarkRouter(graph, 6), 7);
+    }
+
+    @Test
+    public void testSettlesFewerNodesThanAStar() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(40, 40, 52).getPath()).graph();
+        Router alt = new LandmarkRouter(graph, 8);
+        Router astar = new AStarRouter(graph);
+        Random random = new Random(6);
+        long altSettled = 0;
+        long astarSettled = 0;
+        for (int i = 0; i < 100; i++) {
+            int s = random.nextInt(graph.size());
+            int t = random.nextInt(graph.size());
+            alt.route(s, t);
+            altSettled += alt.lastSettledCount();
+            astar.route(s, t);
+            astarSettled += astar.lastSettledCount();
+        }
+        assertTrue(altSettled < astarSettled);
+    }
+
+    @Test
+    public void testLandmarksAreSpreadOut() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(10, 10, 53).getPath()).graph();
+        int[] landmarks = new LandmarkRouter(graph, 4).landmarks();
+        assertEquals(4, landmarks.length);
+        for (int i = 0; i < landmarks.length; i++) {
+            for (int j = i + 1; j < landmarks.length; j++) {
+                assertTrue(graph.distance(landmarks[i], landmarks[j]) > 0.02);
+            }
+        }
+        assertEquals(graph.size(), new LandmarkRouter(graph, 1000).landmarks().length);
+    }
+
+    @Test
+    public void testDisconnectedGraph() {
+        RoadGraph.Builder builder = new RoadGraph.Builder();
+        builder.addNode(1, 37.85, -122.25);
+        builder.addNode(2, 37.86, -122.25);
+        builder.addNode(3, 37.87, -122.25);
+        builder.addNode(4, 37.88, -122.25);
+        builder.addWay(new long[] {1, 2}, 2);
+        builder.addWay(new long[] {3, 4}, 2);
+        LandmarkRouter router = new LandmarkRouter(builder.build(), 2);
+        assertEquals(0, router.route(0, 3).length);
+        assertEquals(2, router.route(3, 2).length);
+    }
+}
@@ -0,0 +1,138 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class LocationIndexTest {
+    private static final String[] NAMES = {"Starbucks", "Peet's Coffee & Tea", "Starbucks",
+        "Top Dog", "Cheese Board Pizza", "Shattuck Avenue", "Shattuck Cinemas", "Berkeley Bowl",
+        "Berkeley Bowl West", "STARBUCKS"};
+
+    private static LocationIndex index() {
+        Locations.Builder builder = new Locations.Builder();
+        for (int i = 0; i < NAMES.length; i++) {
+            builder.add(100 + i, 37.87, -122.26, NAMES[i]);
+        }
+        return new LocationIndex(builder.build());
+    }
+
+    private static int[] sorted(int[] found) {
+        Arrays.sort(found);
+        return found;
+    }
+
+    @Test
+    public void testExactMatches() {
+        LocationIndex index = index();
+        assertEquals(8, index.size());
+        assertArrayEquals(new int[] {0, 2, 9}, sorted(index.find("starbucks")));
+        assertArrayEquals(new int[] {1}, sorted(index.find("PEETS COFFEE  TEA")));
+        assertArrayEquals(new int[] {3}, sorted(index.find("top dog")));
+    }
+
+    @Test
+    public void testTypos() {
+        LocationIndex index = index();
+        assertArrayEquals(new int[] {0, 2, 9}, sorted(index.find("Starbuck")));
+        assertArrayEquals(new int[] {0, 2, 9}, sorted(index.find("strabucks")));
+        assertArrayEquals(new int[] {4}, sorted(index.find("chese bord pizza")));
+        assertArrayEquals(new int[] {7}, sorted(index.find("berkley bowl")));
+        /* Only the closest names come back. */
+        assertArrayEquals(new int[] {5}, sorted(index.find("shatuck avenue")));
+        assertEquals(0, index.find("shattuck").length);
+        assertEquals(0, index.find("tpo dgo").length);
+        assertEquals(0, index.find("tpo").length);
+        assertEquals(0, index.find("").length);
+    }
+
+    @Test
+    public void testBoundedDistance() {
+        Random random = new Random(16);
+        for (int i = 0; i < 2000; i++) {
+            String a = randomWord(random);
+            String b = random.nextBoolean() ? randomWord(random) : mutate(a, random);
+            int full = levenshtein(a, b);
+            for (int bound = 0; bound <= 3; bound++) {
+                assertEquals(a + " " + b, Math.min(full, bound + 1),
+                        LocationIndex.distance(a, b, bound));
+            }
+        }
+    }
+
+    @Test
+    public void testCleanStringMatchesRegex() {
+        Random random = new Random(17);
+        String alphabet = "aZz Ab'&-9.\u00e9\u0130\u00df ";
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder s = new StringBuilder();
+            for (int j = random.nextInt(12); j > 0; j--) {
+                s.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            String expected = s.toString().replaceAll("[^a-zA-Z ]", "").toLowerCase();
+            assertEquals(expected, GraphDB.cleanString(s.toString()));
+        }
+        String clean = "already clean";
+        assertSame(clean, GraphDB.cleanString(clean));
+    }
+
+    @Test
+    public void testServerResultShape() throws Exception {
+        TestServer.initialize();
+        List<Map<String, Object>> found = MapServer.getLocations("top dgo");
+        assertEquals(2, found.size());
+        for (Map<String, Object> location : found) {
+            assertEquals("Top Dog", location.get("name"));
+            assertEquals(Double.class, location.get("lat").getClass());
+            assertEquals(Double.class, location.get("lon").getClass());
+            assertEquals(Long.class, location.get("id").getClass());
+        }
+        assertEquals(Arrays.asList("Top Dog", "Moe's Books"),
+                MapServer.getLocationsByPrefix("", 2));
+    }
+
+    private static String randomWord(Random random) {
+        StringBuilder s = new StringBuilder();
+        for (int j = random.nextInt(10); j > 0; j--) {
+            s.append((char) ('a' + random.nextInt(4)));
+        }
+        return s.toString();
+    }
+
+    private static String mutate(String a, Random random) {
+        StringBuilder s = new StringBuilder(a);
+        for (int edits = random.nextInt(4); edits > 0; edits--) {
+            int at = random.nextInt(s.length() + 1);
+            int kind = random.nextInt(3);
+            if (kind == 0 || s.length() == 0) {
+                s.insert(at, (char) ('a' + random.nextInt(4)));
+            } else if (at < s.length() && kind == 1) {
+                s.deleteCharAt(at);
+            } else if (at < s.length()) {
+                s.setCharAt(at, (char) ('a' + random.nextInt(4)));
+            }
+        }
+        return s.toString();
+    }
+
+    private static int levenshtein(String a, String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++) {
+            for (int j = 0; j <= b.length(); j++) {
+                if (i == 0 || j == 0) {
+                    d[i][j] = i + j;
+                } else {
+                    int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                    d[i][j] = Math.min(d[i - 1][j - 1] + cost,
+                            Math.min(d[i - 1][j], d[i][j - 1]) + 1);
+                }
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+}
@@ -0,0 +1,51 @@
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class LongIntMapTest {
+    @Test
+    public void testMatchesHashMap() {
+        Random random = new Random(17);
+        LongIntMap map = new LongIntMap(4);
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            /* Dense runs like OSM ids, some far above 2^53, and the odd overwrite. */
+            long key = random.nextInt(4) == 0 ? random.nextLong()
+                    : (1L << 60) * random.nextInt(3) + random.nextInt(150000);
+            int value = random.nextInt(Integer.MAX_VALUE);
+            map.put(key, value);
+            expected.put(key, value);
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), map.get(entry.getKey()));
+        }
+        for (int i = 0; i < 10000; i++) {
+            long key = random.nextLong();
+            assertEquals(expected.containsKey(key) ? expected.get(key) : -1, map.get(key));
+        }
+    }
+
+    @Test
+    public void testKeysDifferingBeyondDoublePrecision() {
+        LongIntMap map = new LongIntMap(16);
+        long big = (1L << 53) + 1;
+        map.put(big, 1);
+        map.put(big - 1, 2);
+        map.put(0, 3);
+        assertEquals(1, map.get(big));
+        assertEquals(2, map.get(big - 1));
+        assertEquals(3, map.get(0));
+        assertEquals(-1, map.get(big + 1));
+        assertEquals(3, map.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativeValues() {
+        new LongIntMap(16).put(1, -1);
+    }
+}
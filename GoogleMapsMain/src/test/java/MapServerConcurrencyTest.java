@@ -0,0 +1,125 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.FileInputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fires raster and route requests at MapServer from several threads at once and checks every
+ * answer against the one computed single-threaded. Routes run on a synthetic graph, and the tile
+ * cache is kept small so that tiles are evicted and reloaded while requests are in flight.
+ */
+public class MapServerConcurrencyTest {
+    private static final int THREADS = 8;
+    private static final int REQUESTS_PER_THREAD = 30;
+
+    private static final List<Map<String, Double>> rasters = new ArrayList<>();
+    private static final List<Map<String, Double>> routes = new ArrayList<>();
+    private static final List<int[]> expectedPixels = new ArrayList<>();
+    private static final List<Map<String, Object>> expectedParams = new ArrayList<>();
+    private static final List<List<Long>> expectedRoutes = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        TestServer.initialize();
+        List<TestParams> params;
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream("test_data"))) {
+            @SuppressWarnings("unchecked")
+            List<TestParams> recorded = (List<TestParams>) in.readObject();
+            params = recorded;
+        }
+        Random random = new Random(62);
+        for (TestParams p : params) {
+            rasters.add(p.rasterParams);
+            routes.add(p.routeParams);
+            Map<String, Double> route = new HashMap<>();
+            route.put("start_lon", lon(random));
+            route.put("start_lat", lat(random));
+            route.put("end_lon", lon(random));
+            route.put("end_lat", lat(random));
+            routes.add(route);
+        }
+        for (int i = 0; i < rasters.size(); i++) {
+            Map<String, Object> out = new HashMap<>();
+            BufferedImage im = MapServer.getMapRaster(rasters.get(i), out);
+            MapServer.findAndDrawRoute(routes.get(2 * i), out, im);
+            expectedPixels.add(pixels(im));
+            expectedParams.add(out);
+        }
+        for (Map<String, Double> route : routes) {
+            expectedRoutes.add(MapServer.findAndDrawRoute(route, null, null));
+        }
+    }
+
+    private static double lon(Random random) {
+        double width = SyntheticOsm.LRLON - SyntheticOsm.ULLON;
+        return SyntheticOsm.ULLON + random.nextDouble() * width;
+    }
+
+    private static double lat(Random random) {
+        double height = SyntheticOsm.ULLAT - SyntheticOsm.LRLAT;
+        return SyntheticOsm.LRLAT + random.nextDouble() * height;
+    }
+
+    private static int[] pixels(BufferedImage im) {
+        return im.getRGB(0, 0, im.getWidth(), im.getHeight(), null, 0, im.getWidth());
+    }
+
+    @Test
+    public void testConcurrentRequestsMatchSingleThreaded() throws Exception {
+        Queue<String> failures = new ConcurrentLinkedQueue<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Random random = new Random(t);
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+                        if (random.nextBoolean()) {
+                            int q = random.nextInt(rasters.size());
+                            Map<String, Object> out = new HashMap<>();
+                            BufferedImage im = MapServer.getMapRaster(rasters.get(q), out);
+                            MapServer.findAndDrawRoute(routes.get(2 * q), out, im);
+                            if (!out.equals(expectedParams.get(q))) {
+                                failures.add("raster " + q + " params " + out);
+                            } else if (!Arrays.equals(pixels(im), expectedPixels.get(q))) {
+                                failures.add("raster " + q + " pixels differ");
+                            }
+                        } else {
+                            int q = random.nextInt(routes.size());
+                            List<Long> route = MapServer.findAndDrawRoute(routes.get(q), null,
+                                    null);
+                            if (!route.equals(expectedRoutes.get(q))) {
+                                failures.add("route " + q + " was " + route);
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failures.add(e.toString());
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertTrue(MapServer.tileCache().evictions() > 0);
+        assertTrue(MapServer.tileCache().bytes() <= TestServer.TILE_CACHE_BYTES);
+    }
+}
@@ -0,0 +1,103 @@
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+    @Test
+    public void testBucketsCoverValuesWithinASixteenth() {
+        for (int i = 0; i + 1 < LatencyHistogram.BUCKETS; i++) {
+            assertEquals(LatencyHistogram.highest(i) + 1, LatencyHistogram.lowest(i + 1));
+        }
+        Random random = new Random(24);
+        for (int k = 0; k < 100000; k++) {
+            long value = random.nextLong() >>> (24 + random.nextInt(40));
+            int i = LatencyHistogram.index(value);
+            assertTrue(LatencyHistogram.lowest(i) <= value);
+            assertTrue(value <= LatencyHistogram.highest(i));
+            long width = LatencyHistogram.highest(i) - LatencyHistogram.lowest(i) + 1;
+            assertTrue(width == 1 || width <= value / 16);
+        }
+    }
+
+    @Test
+    public void testValueAt() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 10000; micros++) {
+            histogram.record(micros * 1000);
+        }
+        assertEquals(10000, histogram.count());
+        assertEquals(1000L * 10000 * 10001 / 2, histogram.sum());
+        assertEquals(5000e3, histogram.valueAt(0.5), 5000e3 / 16);
+        assertEquals(9900e3, histogram.valueAt(0.99), 9900e3 / 16);
+        assertEquals(0, new LatencyHistogram().valueAt(0.5));
+    }
+
+    @Test
+    public void testScrapeFormat() {
+        Metrics metrics = new Metrics();
+        metrics.counter("hits_total", Metrics.labels("cache", "tile"), "Hits.", () -> 7);
+        metrics.gauge("bytes", "", "Bytes.", () -> 2.5);
+        LatencyHistogram latency = metrics.histogram("request_seconds",
+                Metrics.labels("endpoint", "raster"), "Latency.");
+        assertTrue(latency == metrics.histogram("request_seconds",
+                Metrics.labels("endpoint", "raster"), "Latency."));
+        latency.record(50_000);
+        latency.record(2_000_000);
+        latency.record(20_000_000_000L);
+        String text = metrics.scrape();
+        assertTrue(text.contains("# HELP hits_total Hits.\n# TYPE hits_total counter\n"
+                + "hits_total{cache=\"tile\"} 7\n"));
+        assertTrue(text.contains("# TYPE bytes gauge\nbytes 2.5\n"));
+        assertTrue(text.contains("# TYPE request_seconds histogram\n"));
+        assertTrue(text.contains("request_seconds_bucket{endpoint=\"raster\",le=\"0.0001\"} 1\n"));
+        assertTrue(text.contains("request_seconds_bucket{endpoint=\"raster\",le=\"0.001\"} 1\n"));
+        assertTrue(text.contains("request_seconds_bucket{endpoint=\"raster\",le=\"0.0025\"} 2\n"));
+        assertTrue(text.contains("request_seconds_bucket{endpoint=\"raster\",le=\"10\"} 2\n"));
+        assertTrue(text.contains("request_seconds_bucket{endpoint=\"raster\",le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("request_seconds_sum{endpoint=\"raster\"} 20.00205\n"));
+        assertTrue(text.contains("request_seconds_count{endpoint=\"raster\"} 3\n"));
+
+        metrics.counter("hits_total", Metrics.labels("cache", "tile"), "Hits.", () -> 8);
+        assertTrue(metrics.scrape().contains("hits_total{cache=\"tile\"} 8\n"));
+        assertEquals("a=\"x\\\"y\"", Metrics.labels("a", "x\"y"));
+    }
+
+    @Test
+    public void testServerPhasesAndCaches() throws Exception {
+        TestServer.initialize();
+        Map<String, Double> params = new HashMap<>();
+        params.put("ullon", -122.27);
+        params.put("ullat", 37.88);
+        params.put("lrlon", -122.25);
+        params.put("lrlat", 37.86);
+        params.put("w", 512.0);
+        params.put("h", 512.0);
+        long selected = value("bearmaps_phase_seconds_count{phase=\"tile_select\"}");
+        long composited = value("bearmaps_phase_seconds_count{phase=\"composite\"}");
+        long lookups = value("bearmaps_cache_hits_total{cache=\"tile\"}")
+                + value("bearmaps_cache_misses_total{cache=\"tile\"}");
+        MapServer.getMapRaster(params, new HashMap<>());
+        assertTrue(value("bearmaps_phase_seconds_count{phase=\"tile_select\"}") > selected);
+        assertTrue(value("bearmaps_phase_seconds_count{phase=\"composite\"}") > composited);
+        assertTrue(value("bearmaps_cache_hits_total{cache=\"tile\"}")
+                + value("bearmaps_cache_misses_total{cache=\"tile\"}") > lookups);
+        assertTrue(value("bearmaps_graph_vertices{graph=\"road\"}") > 0);
+        assertTrue(value("bearmaps_graph_vertices{graph=\"searched\"}") > 0);
+        assertTrue(MapServer.metrics().scrape().contains("bearmaps_cache_bytes{cache=\"route\"}"));
+    }
+
+    /** The whole-number value of a sample on the server's /metrics. */
+    private static long value(String sample) {
+        Matcher m = Pattern.compile("^" + Pattern.quote(sample) + " (\\d+)$", Pattern.MULTILINE)
+                .matcher(MapServer.metrics().scrape());
+        assertTrue(sample, m.find());
+        return Long.parseLong(m.group(1));
+    }
+}
@@ -0,0 +1,55 @@
+import java.util.Random;
+
+/**
+ * Compares snapping query points with the KdTree against the linear scan findAndDrawRoute used
+ * before. Not a JUnit test; run it directly with the grid size as an optional argument.
+ */
+public class NearestNodeBenchmark {
+    private static final int QUERIES = 20000;
+
+    public static void main(String[] args) throws Exception {
+        int side = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(side, side, 5).getPath()).graph();
+        double[] lons = new double[QUERIES];
+        double[] lats = new double[QUERIES];
+        Random random = new Random(6);
+        for (int i = 0; i < QUERIES; i++) {
+            lons[i] = -122.29 + random.nextDouble() * 0.07;
+            lats[i] = 37.83 + random.nextDouble() * 0.06;
+        }
+        long start = System.nanoTime();
+        KdTree tree = new KdTree(graph);
+        long build = System.nanoTime() - start;
+        System.out.printf("%d vertices, tree built in %.1f ms%n", graph.size(), build / 1e6);
+        for (int round = 0; round < 3; round++) {
+            long sink = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < QUERIES; i++) {
+                sink += tree.nearest(lons[i], lats[i]);
+            }
+            double treeNanos = (System.nanoTime() - start) / (double) QUERIES;
+            int scanned = Math.max(1, QUERIES / 100);
+            start = System.nanoTime();
+            for (int i = 0; i < scanned; i++) {
+                sink += scan(graph, lons[i], lats[i]);
+            }
+            double scanNanos = (System.nanoTime() - start) / (double) scanned;
+            System.out.printf("round %d: kd-tree %.0f ns/query, scan %.0f ns/query (%d)%n",
+                    round, treeNanos, scanNanos, sink & 1);
+        }
+    }
+
+    private static int scan(RoadGraph graph, double lon, double lat) {
+        int best = -1;
+        double bestDist = Double.MAX_VALUE;
+        for (int v = 0; v < graph.size(); v++) {
+            double d = Math.sqrt(Math.pow(Math.abs(graph.lon(v) - lon), 2)
+                    + Math.pow(Math.abs(graph.lat(v) - lat), 2));
+            if (d < bestDist) {
+                bestDist = d;
+                best = v;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,260 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Converts small OSM XML files, such as those SyntheticOsm writes, into PBF so the PBF reader
+ * can be checked against the XML parser on the same map. Nodes are written as dense nodes or
+ * as plain nodes, <code>blockSize</code> elements to a block, and blocks alternate between zlib
+ * and raw blobs. Each block stores coordinates relative to an offset of its own, as the format
+ * allows. Coordinates must have at most 7 decimals, as OSM's do.
+ */
+public class PbfFixture {
+    private static final class Element {
+        long id;
+        BigDecimal lat;
+        BigDecimal lon;
+        final List<Long> refs = new ArrayList<>();
+        final Map<String, String> tags = new LinkedHashMap<>();
+    }
+
+    static File fromXml(File xml, int blockSize, boolean dense) throws Exception {
+        List<Element> nodes = new ArrayList<>();
+        List<Element> ways = new ArrayList<>();
+        SAXParserFactory.newInstance().newSAXParser().parse(xml, new DefaultHandler() {
+            private Element current;
+
+            @Override
+            public void startElement(String uri, String local, String qName, Attributes a) {
+                if (qName.equals("node") || qName.equals("way")) {
+                    current = new Element();
+                    current.id = Long.parseLong(a.getValue("id"));
+                    if (qName.equals("node")) {
+                        current.lat = new BigDecimal(a.getValue("lat"));
+                        current.lon = new BigDecimal(a.getValue("lon"));
+                        nodes.add(current);
+                    } else {
+                        ways.add(current);
+                    }
+                } else if (qName.equals("nd")) {
+                    current.refs.add(Long.parseLong(a.getValue("ref")));
+                } else if (qName.equals("tag")) {
+                    current.tags.put(a.getValue("k"), a.getValue("v"));
+                }
+            }
+        });
+
+        File f = File.createTempFile("synthetic", ".osm.pbf");
+        f.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(f))) {
+            Message header = new Message();
+            header.string(4, "OsmSchema-V0.6");
+            header.string(4, "DenseNodes");
+            header.string(16, "PbfFixture");
+            blob(out, "OSMHeader", header.bytes(), true);
+            int block = 0;
+            for (int i = 0; i < nodes.size(); i += blockSize) {
+                List<Element> chunk = nodes.subList(i, Math.min(nodes.size(), i + blockSize));
+                blob(out, "OSMData", nodeBlock(chunk, dense, block), block++ % 2 == 0);
+            }
+            for (int i = 0; i < ways.size(); i += blockSize) {
+                List<Element> chunk = ways.subList(i, Math.min(ways.size(), i + blockSize));
+                blob(out, "OSMData", wayBlock(chunk), block++ % 2 == 0);
+            }
+        }
+        return f;
+    }
+
+    /** A string table for a block; index 0 is left empty as the format requires. */
+    private static final class Strings {
+        final Map<String, Integer> index = new LinkedHashMap<>();
+
+        Strings() {
+            index.put("", 0);
+        }
+
+        int of(String s) {
+            return index.computeIfAbsent(s, k -> index.size());
+        }
+
+        Message table() {
+            Message table = new Message();
+            for (String s : index.keySet()) {
+                table.string(1, s);
+            }
+            return table;
+        }
+    }
+
+    private static byte[] nodeBlock(List<Element> nodes, boolean dense, int number) {
+        Strings strings = new Strings();
+        /* Offsets in nanodegrees, a multiple of the granularity of 100. */
+        long latOffset = 37_000_000_000L + number * 100L;
+        long lonOffset = -122_000_000_000L - number * 100L;
+        Message group = new Message();
+        if (dense) {
+            Message ids = new Message();
+            Message lats = new Message();
+            Message lons = new Message();
+            Message tags = new Message();
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            for (Element n : nodes) {
+                ids.varint(zigzag(n.id - id));
+                lats.varint(zigzag(stored(n.lat, latOffset) - lat));
+                lons.varint(zigzag(stored(n.lon, lonOffset) - lon));
+                id = n.id;
+                lat = stored(n.lat, latOffset);
+                lon = stored(n.lon, lonOffset);
+                for (Map.Entry<String, String> tag : n.tags.entrySet()) {
+                    tags.varint(strings.of(tag.getKey()));
+                    tags.varint(strings.of(tag.getValue()));
+                }
+                tags.varint(0);
+            }
+            Message denseNodes = new Message();
+            denseNodes.bytes(1, ids.bytes());
+            denseNodes.bytes(8, lats.bytes());
+            denseNodes.bytes(9, lons.bytes());
+            denseNodes.bytes(10, tags.bytes());
+            group.bytes(2, denseNodes.bytes());
+        } else {
+            for (Element n : nodes) {
+                Message node = new Message();
+                node.field(1, zigzag(n.id));
+                Message keys = new Message();
+                Message vals = new Message();
+                for (Map.Entry<String, String> tag : n.tags.entrySet()) {
+                    keys.varint(strings.of(tag.getKey()));
+                    vals.varint(strings.of(tag.getValue()));
+                }
+                node.bytes(2, keys.bytes());
+                node.bytes(3, vals.bytes());
+                node.field(8, zigzag(stored(n.lat, latOffset)));
+                node.field(9, zigzag(stored(n.lon, lonOffset)));
+                group.bytes(1, node.bytes());
+            }
+        }
+        /* Groups before the string table, which decoders must accept. */
+        Message block = new Message();
+        block.bytes(2, group.bytes());
+        block.bytes(1, strings.table().bytes());
+        block.field(17, 100);
+        block.field(19, latOffset);
+        block.field(20, lonOffset);
+        return block.bytes();
+    }
+
+    private static byte[] wayBlock(List<Element> ways) {
+        Strings strings = new Strings();
+        Message group = new Message();
+        for (Element w : ways) {
+            Message way = new Message();
+            way.field(1, w.id);
+            Message keys = new Message();
+            Message vals = new Message();
+            for (Map.Entry<String, String> tag : w.tags.entrySet()) {
+                keys.varint(strings.of(tag.getKey()));
+                vals.varint(strings.of(tag.getValue()));
+            }
+            way.bytes(2, keys.bytes());
+            way.bytes(3, vals.bytes());
+            Message refs = new Message();
+            long previous = 0;
+            for (long ref : w.refs) {
+                refs.varint(zigzag(ref - previous));
+                previous = ref;
+            }
+            way.bytes(8, refs.bytes());
+            group.bytes(3, way.bytes());
+        }
+        Message block = new Message();
+        block.bytes(1, strings.table().bytes());
+        block.bytes(2, group.bytes());
+        return block.bytes();
+    }
+
+    /** Degrees as a count of 100 nanodegrees past the offset. */
+    private static long stored(BigDecimal degrees, long offset) {
+        return (degrees.movePointRight(9).longValueExact() - offset) / 100;
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static void blob(DataOutputStream out, String type, byte[] data, boolean zlib)
+            throws IOException {
+        Message blob = new Message();
+        if (zlib) {
+            Deflater deflater = new Deflater();
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+            deflater.end();
+            blob.field(2, data.length);
+            blob.bytes(3, compressed.toByteArray());
+        } else {
+            blob.bytes(1, data);
+        }
+        byte[] blobBytes = blob.bytes();
+        Message header = new Message();
+        header.string(1, type);
+        header.field(3, blobBytes.length);
+        byte[] headerBytes = header.bytes();
+        out.writeInt(headerBytes.length);
+        out.write(headerBytes);
+        out.write(blobBytes);
+    }
+
+    /** Writes protobuf fields. */
+    private static final class Message {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        void varint(long v) {
+            while ((v & ~0x7FL) != 0) {
+                out.write((int) (v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.write((int) v);
+        }
+
+        /** A varint field. */
+        void field(int number, long v) {
+            varint(number << 3);
+            varint(v);
+        }
+
+        void bytes(int number, byte[] bytes) {
+            varint(number << 3 | 2);
+            varint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        void string(int number, String s) {
+            bytes(number, s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        byte[] bytes() {
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PbfReaderTest {
+    private static final String[] PLACES = {"Caf\u00e9 Rouge", "Top Dog", "Moe's Books"};
+
+    private static void assertSameMap(GraphDB expected, GraphDB actual) {
+        RoadGraph a = expected.graph();
+        RoadGraph b = actual.graph();
+        assertEquals(a.size(), b.size());
+        assertEquals(a.edgeCount(), b.edgeCount());
+        for (int v = 0; v < a.size(); v++) {
+            assertEquals(a.id(v), b.id(v));
+            /* Bit for bit: PBF coordinates must round as the XML decimals do. */
+            assertEquals(Double.doubleToLongBits(a.lat(v)), Double.doubleToLongBits(b.lat(v)));
+            assertEquals(Double.doubleToLongBits(a.lon(v)), Double.doubleToLongBits(b.lon(v)));
+            assertEquals(a.firstEdge(v), b.firstEdge(v));
+        }
+        for (int e = 0; e < a.edgeCount(); e++) {
+            assertEquals(a.target(e), b.target(e));
+            assertEquals(a.length(e), b.length(e), 0);
+        }
+        Locations p = expected.locations();
+        Locations q = actual.locations();
+        assertEquals(p.size(), q.size());
+        for (int i = 0; i < p.size(); i++) {
+            assertEquals(p.id(i), q.id(i));
+            assertEquals(p.lat(i), q.lat(i), 0);
+            assertEquals(p.lon(i), q.lon(i), 0);
+            assertEquals(p.name(i), q.name(i));
+        }
+    }
+
+    @Test
+    public void testDenseNodesMatchXml() throws Exception {
+        File xml = SyntheticOsm.grid(12, 9, 18, PLACES);
+        GraphDB fromXml = new GraphDB(xml.getPath());
+        assertEquals(11 * 9, fromXml.graph().size());
+        assertSameMap(fromXml, new GraphDB(PbfFixture.fromXml(xml, 7, true).getPath()));
+        assertSameMap(fromXml, new GraphDB(PbfFixture.fromXml(xml, 1000, true).getPath()));
+    }
+
+    @Test
+    public void testPlainNodesMatchXml() throws Exception {
+        File xml = SyntheticOsm.grid(5, 6, 19, PLACES);
+        assertSameMap(new GraphDB(xml.getPath()),
+                new GraphDB(PbfFixture.fromXml(xml, 4, false).getPath()));
+    }
+
+    @Test
+    public void testIdsBeyondDoublePrecision() throws Exception {
+        long big = (1L << 53) + 1;
+        File xml = File.createTempFile("bigids", ".osm");
+        xml.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(xml, "UTF-8")) {
+            out.println("<osm version=\"0.6\">");
+            for (int i = -1; i <= 1; i++) {
+                out.printf("<node id=\"%d\" lat=\"37.87\" lon=\"%.3f\"/>%n", big + i,
+                        -122.26 + 0.001 * i);
+            }
+            out.printf("<way id=\"%d\"><nd ref=\"%d\"/><nd ref=\"%d\"/><nd ref=\"%d\"/>"
+                    + "<tag k=\"highway\" v=\"primary\"/></way>%n", big, big + 1, big, big - 1);
+            out.println("</osm>");
+        }
+        GraphDB db = new GraphDB(PbfFixture.fromXml(xml, 2, true).getPath());
+        assertEquals(3, db.graph().size());
+        assertEquals(big, db.graph().id(1));
+        assertEquals(2, db.graph().degree(1));
+        assertSameMap(new GraphDB(xml.getPath()), db);
+    }
+
+    @Test
+    public void testRejectsDamagedFiles() throws Exception {
+        File pbf = PbfFixture.fromXml(SyntheticOsm.grid(6, 6, 20), 10, true);
+        try (RandomAccessFile f = new RandomAccessFile(pbf, "rw")) {
+            f.setLength(f.length() - 3);
+        }
+        try {
+            PbfReader.read(pbf, new MapDBHandler());
+            fail("read a truncated file");
+        } catch (IOException expected) {
+            /* Truncated PBF file */
+        }
+        /* GraphDB falls back to an empty map, as for unreadable XML. */
+        assertEquals(0, new GraphDB(pbf.getPath()).graph().size());
+    }
+}
@@ -0,0 +1,98 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PrefixIndexTest {
+    private static Locations places(String... names) {
+        Locations.Builder builder = new Locations.Builder();
+        for (int i = 0; i < names.length; i++) {
+            builder.add(i, 37.87, -122.26, names[i]);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void testRanksCommonThenShortNames() {
+        PrefixIndex index = new PrefixIndex(places("Starbucks", "Star Market", "Starbucks",
+                "Stardust Cafe", "Starry Plough", "Starbucks", "Star Market", "Stars", "Bongo"));
+        assertEquals(6, index.size());
+        assertEquals(Arrays.asList("Starbucks", "Star Market", "Stars"),
+                index.complete("star", 3));
+        assertEquals(Arrays.asList("Starbucks", "Star Market", "Stars", "Stardust Cafe",
+                "Starry Plough"), index.complete("STAR", 10));
+        assertEquals(Collections.singletonList("Star Market"), index.complete("star m", 10));
+        assertEquals(Collections.singletonList("Bongo"), index.complete("b", 10));
+        assertEquals(0, index.complete("starz", 10).size());
+        assertEquals(0, index.complete("star", 0).size());
+        assertEquals(6, index.complete("", 100).size());
+    }
+
+    @Test
+    public void testIgnoresPunctuationAndCase() {
+        PrefixIndex index = new PrefixIndex(places("Peet's Coffee & Tea", "PEETS", "Top Dog"));
+        assertEquals(new HashSet<>(Arrays.asList("Peet's Coffee & Tea", "PEETS")),
+                new HashSet<>(index.complete("peets", 10)));
+        assertEquals(Collections.singletonList("Peet's Coffee & Tea"),
+                index.complete("Peet's C", 10));
+    }
+
+    @Test
+    public void testMatchesLinearScan() {
+        Random random = new Random(15);
+        String[] words = {"Alpha", "Alp", "Beta", "Bet", "Cafe", "Cal", "Camp", "Ca"};
+        String[] names = new String[3000];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = words[random.nextInt(words.length)] + " "
+                    + words[random.nextInt(words.length)] + (random.nextInt(4) == 0 ? "!" : "");
+        }
+        PrefixIndex index = new PrefixIndex(places(names));
+        Map<String, Integer> counts = new HashMap<>();
+        for (String name : names) {
+            counts.merge(name, 1, Integer::sum);
+        }
+        for (String prefix : new String[] {"", "a", "al", "alp", "alpha c", "ca", "cal", "b",
+                "beta beta", "z"}) {
+            List<String> expected = new ArrayList<>();
+            for (String name : counts.keySet()) {
+                if (GraphDB.cleanString(name).startsWith(prefix)) {
+                    expected.add(name);
+                }
+            }
+            expected.sort((a, b) -> {
+                int c = Integer.compare(counts.get(b), counts.get(a));
+                if (c == 0) {
+                    c = Integer.compare(a.length(), b.length());
+                }
+                return c != 0 ? c : a.compareTo(b);
+            });
+            assertEquals(prefix, expected, index.complete(prefix, Integer.MAX_VALUE));
+            assertEquals(prefix, expected.subList(0, Math.min(5, expected.size())),
+                    index.complete(prefix, 5));
+        }
+    }
+
+    @Test
+    public void testParsesNamedNodes() throws Exception {
+        GraphDB db = new GraphDB(SyntheticOsm.grid(4, 4, 16, "Cafe Strada", "Caffe Med",
+                "Moe's Books").getPath());
+        Locations places = db.locations();
+        assertEquals(3, places.size());
+        assertEquals("Moe's Books", places.name(2));
+        assertEquals(SyntheticOsm.FIRST_ID + 16 + 2, places.id(2));
+        assertTrue(places.lat(2) < SyntheticOsm.ULLAT && places.lat(2) > SyntheticOsm.LRLAT);
+        assertEquals(new HashSet<>(Arrays.asList("Cafe Strada", "Caffe Med")),
+                new HashSet<>(db.prefixIndex().complete("caf", 10)));
+        /* Places on no road are not routable vertices. */
+        assertEquals(3 * 4, db.graph().size());
+    }
+}
@@ -0,0 +1,139 @@
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class QuadTreeTest {
+    private static final QuadTree TREE = new QuadTree(MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT,
+            MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT, 7);
+
+    /** A tile of the tree the way it used to be built, one node object per tile. */
+    private static class Node {
+        final double ullon;
+        final double ullat;
+        final double lrlon;
+        final double lrlat;
+        final String name;
+
+        Node(double ullon, double ullat, double lrlon, double lrlat, String name) {
+            this.ullon = ullon;
+            this.ullat = ullat;
+            this.lrlon = lrlon;
+            this.lrlat = lrlat;
+            this.name = name;
+        }
+
+        Node child(int quadrant) {
+            double midlon = (ullon + lrlon) / 2;
+            double midlat = (ullat + lrlat) / 2;
+            String childName = name + (quadrant + 1);
+            switch (quadrant) {
+                case 0: return new Node(ullon, ullat, midlon, midlat, childName);
+                case 1: return new Node(midlon, ullat, lrlon, midlat, childName);
+                case 2: return new Node(ullon, midlat, midlon, lrlat, childName);
+                default: return new Node(midlon, midlat, lrlon, lrlat, childName);
+            }
+        }
+    }
+
+    /** The old recursive selection, whose results come out in row-major order here. */
+    private static void legacy(Node node, int depth, int maxDepth, double dpp, double[] q,
+                               List<Node> out) {
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            Node child = node.child(quadrant);
+            if (child.ullon <= q[2] && q[0] <= child.lrlon && child.ullat >= q[3]
+                    && q[1] >= child.lrlat) {
+                if ((child.lrlon - child.ullon) / 256 <= dpp || depth + 1 == maxDepth) {
+                    out.add(child);
+                } else {
+                    legacy(child, depth + 1, maxDepth, dpp, q, out);
+                }
+            }
+        }
+    }
+
+    private static List<Node> legacy(double[] q, double dpp) {
+        List<Node> out = new ArrayList<>();
+        legacy(new Node(MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT, MapServer.ROOT_LRLON,
+                MapServer.ROOT_LRLAT, ""), 0, 7, dpp, q, out);
+        out.sort((a, b) -> a.ullat != b.ullat ? Double.compare(b.ullat, a.ullat)
+                : Double.compare(a.ullon, b.ullon));
+        return out;
+    }
+
+    @Test
+    public void testMatchesNodeTree() {
+        Random random = new Random(14);
+        double width = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+        double height = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+        for (int i = 0; i < 2000; i++) {
+            double lonSpan = width * Math.pow(2, -random.nextInt(9)) * random.nextDouble();
+            double latSpan = height * Math.pow(2, -random.nextInt(9)) * random.nextDouble();
+            double ullon = MapServer.ROOT_ULLON + width * (1.4 * random.nextDouble() - 0.2);
+            double ullat = MapServer.ROOT_ULLAT - height * (1.4 * random.nextDouble() - 0.2);
+            double[] q = {ullon, ullat, ullon + lonSpan, ullat - latSpan};
+            double dpp = lonSpan / (200 + random.nextInt(2000));
+            List<Node> expected = legacy(q, dpp);
+            QuadTree.Selection selection = TREE.select(q[0], q[1], q[2], q[3], dpp, 256);
+            assertEquals(expected.size(), selection.size());
+            for (int t = 0; t < expected.size(); t++) {
+                assertEquals(expected.get(t).name, selection.name(t));
+            }
+            if (!expected.isEmpty()) {
+                assertEquals(expected.get(0).name.length(), selection.depth());
+                assertEquals(expected.get(0).ullon, selection.ullon(), 0);
+                assertEquals(expected.get(0).ullat, selection.ullat(), 0);
+                assertEquals(expected.get(expected.size() - 1).lrlon, selection.lrlon(), 0);
+                assertEquals(expected.get(expected.size() - 1).lrlat, selection.lrlat(), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesRecordedRasters() throws Exception {
+        List<TestParams> params;
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream("test_data"))) {
+            @SuppressWarnings("unchecked")
+            List<TestParams> recorded = (List<TestParams>) in.readObject();
+            params = recorded;
+        }
+        for (TestParams p : params) {
+            Map<String, Double> q = p.rasterParams;
+            QuadTree.Selection selection = TREE.select(q.get("ullon"), q.get("ullat"),
+                    q.get("lrlon"), q.get("lrlat"), (q.get("lrlon") - q.get("ullon")) / q.get("w"),
+                    256);
+            Map<String, Object> expected = p.rasterResult;
+            assertEquals(expected.get("depth"), selection.depth());
+            assertEquals(expected.get("raster_width"), selection.columns() * 256);
+            assertEquals(expected.get("raster_height"), selection.rows() * 256);
+            assertEquals((Double) expected.get("raster_ul_lon"), selection.ullon(), 1e-13);
+            assertEquals((Double) expected.get("raster_ul_lat"), selection.ullat(), 1e-13);
+            assertEquals((Double) expected.get("raster_lr_lon"), selection.lrlon(), 1e-13);
+            assertEquals((Double) expected.get("raster_lr_lat"), selection.lrlat(), 1e-13);
+        }
+    }
+
+    @Test
+    public void testDeeperTrees() {
+        QuadTree deep = new QuadTree(0, 1, 1, 0, 10);
+        QuadTree.Selection selection = deep.select(0.5, 0.5, 0.5 + 1e-6, 0.5 - 1e-6, 1e-9, 256);
+        assertEquals(10, selection.depth());
+        assertEquals(2, selection.rows());
+        assertEquals(2, selection.columns());
+        assertEquals("1444444444", selection.name(0));
+        assertEquals("2333333333", selection.name(1));
+        assertEquals("3222222222", selection.name(2));
+        assertEquals("4111111111", selection.name(3));
+    }
+
+    @Test
+    public void testQueryOutsideTheMap() {
+        assertEquals(0, TREE.select(-100, 10, -99, 9, 0.001, 256).size());
+    }
+}
@@ -0,0 +1,88 @@
+import javax.imageio.ImageIO;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times the rasters of full 1920x1080 viewports at several zoom levels, drawn tile by tile with
+ * Graphics.drawImage as getMapRaster used to and through RasterCompositor. Cold rounds start
+ * from an empty TileCache, so every tile is decoded; warm rounds find them all decoded, the
+ * legacy ones as the palette images ImageIO returns and the others as cached BGR. Not a
+ * JUnit test; run it directly.
+ */
+public class RasterBenchmark {
+    private static final int ROUNDS = 40;
+    private static final double[] LON_SPANS = {0.09, 0.03, 0.01, 0.003};
+
+    public static void main(String[] args) throws Exception {
+        TestServer.initialize();
+        System.out.printf("%d cores%n", Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-6s %-6s %12s %12s %12s %12s%n", "depth", "tiles",
+                "legacy cold", "cold", "legacy warm", "warm");
+        for (double span : LON_SPANS) {
+            Map<String, Double> params = new HashMap<>();
+            params.put("ullon", -122.27 - span / 2);
+            params.put("lrlon", -122.27 + span / 2);
+            params.put("ullat", 37.87 + span * 1080 / 1920 / 2);
+            params.put("lrlat", 37.87 - span * 1080 / 1920 / 2);
+            params.put("w", 1920.0);
+            params.put("h", 1080.0);
+            Map<String, Object> raster = new HashMap<>();
+            List<String> names = MapServer.getRasterTiles(params, raster);
+            int columns = (Integer) raster.get("raster_width") / MapServer.TILE_SIZE;
+
+            double legacyCold = 0;
+            double cold = 0;
+            for (int r = 0; r < ROUNDS; r++) {
+                long start = System.nanoTime();
+                legacy(names, columns, null);
+                legacyCold += System.nanoTime() - start;
+                start = System.nanoTime();
+                RasterCompositor.render(new TileCache("img/", 256L << 20), names, columns,
+                        MapServer.TILE_SIZE);
+                cold += System.nanoTime() - start;
+            }
+            TileCache warmCache = new TileCache("img/", 256L << 20);
+            RasterCompositor.render(warmCache, names, columns, MapServer.TILE_SIZE);
+            Map<String, BufferedImage> decoded = new HashMap<>();
+            for (String name : names) {
+                decoded.put(name, ImageIO.read(new File("img/" + name + ".png")));
+            }
+            double legacyWarm = 0;
+            double warm = 0;
+            for (int r = 0; r < ROUNDS; r++) {
+                long start = System.nanoTime();
+                legacy(names, columns, decoded);
+                legacyWarm += System.nanoTime() - start;
+                start = System.nanoTime();
+                RasterCompositor.render(warmCache, names, columns, MapServer.TILE_SIZE);
+                warm += System.nanoTime() - start;
+            }
+            System.out.printf("%-6s %-6d %9.1f ms %9.1f ms %9.1f ms %9.1f ms%n",
+                    raster.get("depth"), names.size(), legacyCold / 1e6 / ROUNDS,
+                    cold / 1e6 / ROUNDS, legacyWarm / 1e6 / ROUNDS, warm / 1e6 / ROUNDS);
+        }
+    }
+
+    /**
+     * The old getMapRaster loop: one tile at a time, drawn with drawImage, taking the tiles as
+     * ImageIO decodes them from <code>decoded</code> or, if that is null, from img/.
+     */
+    private static BufferedImage legacy(List<String> names, int columns,
+                                        Map<String, BufferedImage> decoded) throws Exception {
+        int rows = (names.size() + columns - 1) / columns;
+        BufferedImage result = new BufferedImage(columns * 256, rows * 256,
+                BufferedImage.TYPE_3BYTE_BGR);
+        Graphics graphics = result.getGraphics();
+        for (int i = 0; i < names.size(); i++) {
+            BufferedImage tile = decoded == null
+                    ? ImageIO.read(new File("img/" + names.get(i) + ".png"))
+                    : decoded.get(names.get(i));
+            graphics.drawImage(tile, i % columns * 256, i / columns * 256, null);
+        }
+        return result;
+    }
+}
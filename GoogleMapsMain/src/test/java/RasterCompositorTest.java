@@ -0,0 +1,106 @@
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class RasterCompositorTest {
+    /** Draw with Graphics.drawImage, as getMapRaster used to. */
+    private static BufferedImage drawn(BufferedImage tile, int width, int height, int x, int y) {
+        BufferedImage dest = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics graphics = dest.getGraphics();
+        graphics.drawImage(tile, x, y, null);
+        graphics.dispose();
+        return dest;
+    }
+
+    private static BufferedImage composited(BufferedImage tile, int width, int height, int x,
+                                            int y) {
+        BufferedImage dest = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        RasterCompositor.draw(dest, tile, x, y);
+        return dest;
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0,
+                image.getWidth());
+    }
+
+    private static BufferedImage palette(int bits, int colors, Random random) {
+        byte[] r = new byte[colors];
+        byte[] g = new byte[colors];
+        byte[] b = new byte[colors];
+        random.nextBytes(r);
+        random.nextBytes(g);
+        random.nextBytes(b);
+        IndexColorModel model = new IndexColorModel(bits, colors, r, g, b);
+        int type = bits == 8 ? BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_BYTE_BINARY;
+        BufferedImage image = new BufferedImage(37, 23, type, model);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.getRaster().setSample(x, y, 0, random.nextInt(1 << bits));
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage random(int type, Random random) {
+        BufferedImage image = new BufferedImage(37, 23, type);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    @Test
+    public void testMatchesDrawImage() {
+        Random random = new Random(13);
+        List<BufferedImage> tiles = new ArrayList<>();
+        for (int bits : new int[] {1, 2, 4, 8}) {
+            tiles.add(palette(bits, 1 << bits, random));
+        }
+        tiles.add(palette(4, 5, random));        // indices past the palette
+        tiles.add(random(BufferedImage.TYPE_3BYTE_BGR, random));
+        tiles.add(random(BufferedImage.TYPE_INT_RGB, random));
+        tiles.add(random(BufferedImage.TYPE_INT_ARGB, random));
+        for (BufferedImage tile : tiles) {
+            for (int[] at : new int[][] {{0, 0}, {5, 3}, {40, 30}, {60, 10}}) {
+                int[] expected = pixels(drawn(tile, 80, 50, at[0], at[1]));
+                assertArrayEquals("type " + tile.getType(), expected,
+                        pixels(composited(tile, 80, 50, at[0], at[1])));
+                assertArrayEquals("type " + tile.getType(), expected,
+                        pixels(composited(RasterCompositor.toBgr(tile), 80, 50, at[0], at[1])));
+            }
+        }
+    }
+
+    @Test
+    public void testRenderMatchesSerialDrawing() throws Exception {
+        /* Colour, 8, 4 and 1 bit palette tiles, and one that does not exist. */
+        List<String> names = Arrays.asList("root", "1", "2", "3", "4", "11", "2341", "4444444",
+                "2413241", "2224423", "missing");
+        TileCache cache = new TileCache("img/", 64L << 20);
+        int columns = 3;
+        BufferedImage expected = new BufferedImage(columns * 256,
+                (names.size() + columns - 1) / columns * 256, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics graphics = expected.getGraphics();
+        for (int i = 0; i < names.size(); i++) {
+            if (!names.get(i).equals("missing")) {
+                BufferedImage tile = ImageIO.read(new File("img/" + names.get(i) + ".png"));
+                graphics.drawImage(tile, i % columns * 256, i / columns * 256, null);
+            }
+        }
+        BufferedImage actual = RasterCompositor.render(cache, names, columns, 256);
+        assertArrayEquals(pixels(expected), pixels(actual));
+    }
+}
@@ -0,0 +1,95 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RasterETagTest {
+    private static final String JPEG = RasterEncoder.tag(RasterEncoder.Format.JPEG, 1.0F);
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        TestServer.initialize();
+    }
+
+    private static Map<String, Double> raster(double ullon, double ullat, double lrlon,
+                                              double lrlat) {
+        Map<String, Double> params = new HashMap<>();
+        params.put("ullon", ullon);
+        params.put("ullat", ullat);
+        params.put("lrlon", lrlon);
+        params.put("lrlat", lrlat);
+        params.put("w", 800.0);
+        params.put("h", 600.0);
+        return params;
+    }
+
+    private static Map<String, Double> route(double startLon, double startLat, double endLon,
+                                             double endLat) {
+        Map<String, Double> params = new HashMap<>();
+        params.put("start_lon", startLon);
+        params.put("start_lat", startLat);
+        params.put("end_lon", endLon);
+        params.put("end_lat", endLat);
+        return params;
+    }
+
+    @Test
+    public void testTagDependsOnTilesAndRoute() {
+        Map<String, Double> box = raster(-122.27, 37.88, -122.24, 37.86);
+        Map<String, Double> nudged = raster(-122.2700001, 37.88, -122.2400001, 37.86);
+        Map<String, Double> elsewhere = raster(-122.25, 37.86, -122.22, 37.84);
+        String plain = MapServer.rasterETag(box, null, JPEG);
+        assertTrue(plain.matches("\"[0-9a-f]{32}\""));
+        assertEquals(plain, MapServer.rasterETag(box, null, JPEG));
+        assertEquals(plain, MapServer.rasterETag(nudged, null, JPEG));
+        assertNotEquals(plain, MapServer.rasterETag(elsewhere, null, JPEG));
+        assertNotEquals(plain, MapServer.rasterETag(box, null,
+                RasterEncoder.tag(RasterEncoder.Format.PNG, 1.0F)));
+
+        Map<String, Double> a = route(-122.26, 37.87, -122.25, 37.865);
+        Map<String, Double> b = route(-122.26, 37.87, -122.23, 37.845);
+        String routed = MapServer.rasterETag(box, a, JPEG);
+        assertNotEquals(plain, routed);
+        assertEquals(routed, MapServer.rasterETag(box, route(-122.26000001, 37.87, -122.25,
+                37.865), JPEG));
+        assertNotEquals(routed, MapServer.rasterETag(box, b, JPEG));
+    }
+
+    @Test
+    public void testTagDependsOnIsochrone() {
+        Map<String, Double> box = raster(-122.27, 37.88, -122.24, 37.86);
+        Map<String, Double> iso = new HashMap<>();
+        iso.put("iso_lon", -122.26);
+        iso.put("iso_lat", 37.87);
+        iso.put("iso_distance", 500.0);
+        String plain = MapServer.rasterETag(box, null, JPEG);
+        String reached = MapServer.rasterETag(box, null, iso, JPEG);
+        assertNotEquals(plain, reached);
+        iso.put("iso_distance", 500.2);
+        assertEquals(reached, MapServer.rasterETag(box, null, iso, JPEG));
+        iso.put("iso_distance", 800.0);
+        assertNotEquals(reached, MapServer.rasterETag(box, null, iso, JPEG));
+    }
+
+    @Test
+    public void testIfNoneMatch() {
+        String tag = "\"0123abcd\"";
+        assertTrue(MapServer.etagMatches(tag, tag));
+        assertTrue(MapServer.etagMatches("\"x\", W/" + tag, tag));
+        assertTrue(MapServer.etagMatches("*", tag));
+        assertFalse(MapServer.etagMatches(null, tag));
+        assertFalse(MapServer.etagMatches("\"0123abce\"", tag));
+    }
+
+    @Test
+    public void testRasterHeaders() {
+        assertEquals("X-Raster-Ul-Lon", MapServer.rasterHeader("raster_ul_lon"));
+        assertEquals("X-Depth", MapServer.rasterHeader("depth"));
+    }
+}
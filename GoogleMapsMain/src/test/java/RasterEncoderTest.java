@@ -0,0 +1,107 @@
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RasterEncoderTest {
+    /** A raster-like image: tiles from img/ with a translucent line drawn over them. */
+    private static BufferedImage raster(int tilesWide, int tilesHigh) throws Exception {
+        BufferedImage image = new BufferedImage(256 * tilesWide, 256 * tilesHigh,
+                BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        String[] names = {"1", "2", "3", "4"};
+        for (int y = 0; y < tilesHigh; y++) {
+            for (int x = 0; x < tilesWide; x++) {
+                BufferedImage tile = ImageIO.read(new File("img/"
+                        + names[(x + 2 * y) % 4] + ".png"));
+                g.drawImage(tile, 256 * x, 256 * y, null);
+            }
+        }
+        g.setColor(new Color(108, 181, 230, 200));
+        g.drawLine(0, 0, image.getWidth(), image.getHeight());
+        return image;
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    private static BufferedImage decode(byte[] bytes) throws Exception {
+        return ImageIO.read(new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    public void testPngIsLossless() throws Exception {
+        BufferedImage image = raster(2, 2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RasterEncoder.Stats stats = new RasterEncoder(RasterEncoder.Format.PNG, 1, 0)
+                .encode(image, out);
+        assertEquals(out.size(), stats.bytes());
+        assertSamePixels(image, decode(out.toByteArray()));
+    }
+
+    @Test
+    public void testParallelStripesDecodeToSameImage() throws Exception {
+        BufferedImage image = raster(3, 5);
+        ByteArrayOutputStream serial = new ByteArrayOutputStream();
+        new RasterEncoder(RasterEncoder.Format.PNG, 1, 0).encode(image, serial);
+        ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        new RasterEncoder(RasterEncoder.Format.PNG, 1, 1).encode(image, parallel);
+        assertSamePixels(image, decode(parallel.toByteArray()));
+        /* Priming each stripe with the previous window keeps the cost of splitting small. */
+        assertTrue(parallel.size() < serial.size() * 1.05);
+    }
+
+    @Test
+    public void testJpegQualityAndWriterReuse() throws Exception {
+        BufferedImage image = raster(2, 2);
+        RasterEncoder encoder = new RasterEncoder(RasterEncoder.Format.JPEG, 1, 0);
+        long best = 0;
+        for (int i = 0; i < 3; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            best = encoder.encode(image, out).bytes();
+            assertEquals(512, decode(out.toByteArray()).getWidth());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long low = encoder.encode(image, out, RasterEncoder.Format.JPEG, 0.5F).bytes();
+        assertTrue(low < best / 2);
+        assertEquals(512, decode(out.toByteArray()).getHeight());
+    }
+
+    @Test
+    public void testCombineAdler() {
+        byte[] data = new byte[100000];
+        new Random(81).nextBytes(data);
+        Adler32 whole = new Adler32();
+        whole.update(data);
+        Adler32 head = new Adler32();
+        head.update(data, 0, 40000);
+        Adler32 tail = new Adler32();
+        tail.update(data, 40000, 60000);
+        assertEquals(whole.getValue(),
+                RasterEncoder.combineAdler(head.getValue(), tail.getValue(), 60000));
+    }
+
+    @Test
+    public void testParseFormat() {
+        assertEquals(RasterEncoder.Format.JPEG, RasterEncoder.Format.parse("JPEG"));
+        assertEquals(RasterEncoder.Format.PNG, RasterEncoder.Format.parse("png"));
+        assertEquals(null, RasterEncoder.Format.parse("gif"));
+    }
+}
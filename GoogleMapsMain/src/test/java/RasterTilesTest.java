@@ -0,0 +1,70 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RasterTilesTest {
+    @BeforeClass
+    public static void setUp() throws Exception {
+        TestServer.initialize();
+    }
+
+    @Test
+    public void testTileFileNames() {
+        assertTrue(MapServer.isTileFile("root.png"));
+        assertTrue(MapServer.isTileFile("1.png"));
+        assertTrue(MapServer.isTileFile("1234123.png"));
+        assertFalse(MapServer.isTileFile("12341234.png"));
+        assertFalse(MapServer.isTileFile("5.png"));
+        assertFalse(MapServer.isTileFile(".png"));
+        assertFalse(MapServer.isTileFile("12"));
+        assertFalse(MapServer.isTileFile("../pom.xml"));
+        assertFalse(MapServer.isTileFile("..%2F1.png"));
+        assertFalse(MapServer.isTileFile(null));
+    }
+
+    @Test
+    public void testTilesDescribeTheRaster() {
+        Map<String, Double> params = new HashMap<>();
+        params.put("ullon", -122.27);
+        params.put("ullat", 37.88);
+        params.put("lrlon", -122.24);
+        params.put("lrlat", 37.86);
+        params.put("w", 800.0);
+        params.put("h", 600.0);
+        Map<String, Object> described = new HashMap<>();
+        List<String> tiles = MapServer.getRasterTiles(params, described);
+        Map<String, Object> rendered = new HashMap<>();
+        MapServer.getMapRaster(params, rendered);
+        assertEquals(rendered, described);
+
+        int width = (Integer) described.get("raster_width");
+        int height = (Integer) described.get("raster_height");
+        assertEquals(width / MapServer.TILE_SIZE * (height / MapServer.TILE_SIZE), tiles.size());
+        for (String tile : tiles) {
+            assertTrue(MapServer.isTileFile(tile + ".png"));
+            assertEquals(described.get("depth"), tile.length());
+        }
+    }
+
+    @Test
+    public void testRouteCoordinates() {
+        Map<String, Double> route = new HashMap<>();
+        route.put("start_lon", -122.26);
+        route.put("start_lat", 37.87);
+        route.put("end_lon", -122.25);
+        route.put("end_lat", 37.865);
+        List<double[]> coordinates = MapServer.getRouteCoordinates(route);
+        List<Long> ids = MapServer.findAndDrawRoute(route, null, null);
+        assertEquals(ids.size(), coordinates.size());
+        assertTrue(coordinates.size() > 1);
+        assertEquals(-122.26, coordinates.get(0)[0], 0.01);
+        assertEquals(37.865, coordinates.get(coordinates.size() - 1)[1], 0.01);
+    }
+}
@@ -0,0 +1,97 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RoadGraphTest {
+    private static final int ROWS = 6, COLS = 5;
+
+    @Test
+    public void testOnlyHighwayNodesAreVertices() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(ROWS, COLS, 1).getPath()).graph();
+        /* Row 0 is a footway, so its nodes are not routable. */
+        assertEquals((ROWS - 1) * COLS, graph.size());
+        assertEquals(-1, graph.indexOf(SyntheticOsm.id(COLS, 0, 0)));
+        assertTrue(graph.indexOf(SyntheticOsm.id(COLS, 1, 0)) >= 0);
+        for (int v = 1; v < graph.size(); v++) {
+            assertTrue(graph.id(v - 1) < graph.id(v));
+        }
+    }
+
+    @Test
+    public void testEdgesAreSymmetricAndWeighted() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(ROWS, COLS, 2).getPath()).graph();
+        int segments = (ROWS - 1) * (COLS - 1) + (ROWS - 2) * COLS;
+        assertEquals(2 * segments, graph.edgeCount());
+        for (int v = 0; v < graph.size(); v++) {
+            for (int e = graph.firstEdge(v); e < graph.endEdge(v); e++) {
+                int w = graph.target(e);
+                assertEquals(graph.distance(v, w), graph.length(e), 1e-7);
+                boolean back = false;
+                for (int f = graph.firstEdge(w); f < graph.endEdge(w); f++) {
+                    back |= graph.target(f) == v;
+                }
+                assertTrue(back);
+            }
+        }
+        int corner = graph.indexOf(SyntheticOsm.id(COLS, ROWS - 1, 0));
+        assertEquals(2, graph.degree(corner));
+    }
+
+    @Test
+    public void testCsrIsSmallerThanObjectGraph() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.grid(ROWS, COLS, 3).getPath()).graph();
+        assertTrue(graph.memoryBytes()
+                < RoadGraph.legacyMemoryBytes(graph.size(), graph.edgeCount()));
+    }
+
+    @Test
+    public void testLargestComponent() {
+        RoadGraph.Builder builder = new RoadGraph.Builder();
+        for (int i = 1; i <= 6; i++) {
+            builder.addNode(i, 37.85 + i / 1000.0, -122.25);
+        }
+        builder.addWay(new long[] {1, 2}, 2);
+        builder.addWay(new long[] {3, 4, 5, 6}, 4);
+        RoadGraph graph = builder.build();
+        int[] components = graph.components();
+        assertEquals(1, components[0]);
+        assertEquals(1, components[1]);
+        for (int v = 2; v < 6; v++) {
+            assertEquals(0, components[v]);
+        }
+        RoadGraph largest = graph.largestComponent();
+        assertEquals(4, largest.size());
+        assertEquals(6, largest.edgeCount());
+        assertEquals(3, largest.id(0));
+        assertEquals(largest, largest.largestComponent());
+    }
+
+    @Test
+    public void testIdsBeyondDoublePrecision() throws Exception {
+        /* 2^53 + 1 is the same double as 2^53, so parsing ids as doubles merged these nodes. */
+        long big = (1L << 53) + 1;
+        File f = File.createTempFile("bigids", ".osm");
+        f.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(f, "UTF-8")) {
+            out.println("<osm version=\"0.6\">");
+            for (int i = -1; i <= 1; i++) {
+                out.printf("<node id=\"%d\" lat=\"37.87\" lon=\"%.3f\"/>%n", big + i,
+                        -122.26 + 0.001 * i);
+            }
+            out.printf("<way id=\"1\"><nd ref=\"%d\"/><nd ref=\"%d\"/><nd ref=\"%d\"/>"
+                    + "<tag k=\"highway\" v=\"primary\"/><tag k=\"highway\" v=\"primary\"/>"
+                    + "</way>%n", big - 1, big, big + 1);
+            out.println("</osm>");
+        }
+        RoadGraph graph = new GraphDB(f.getPath()).graph();
+        assertEquals(3, graph.size());
+        assertEquals(4, graph.edgeCount());
+        assertEquals(big, graph.id(graph.indexOf(big)));
+        assertEquals(1, graph.degree(graph.indexOf(big - 1)));
+        assertEquals(2, graph.degree(graph.indexOf(big)));
+    }
+}
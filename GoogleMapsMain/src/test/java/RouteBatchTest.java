@@ -0,0 +1,123 @@
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RouteBatchTest {
+    /** Collects results in the order they arrive and counts flushes. */
+    private static final class Collector implements RouteBatch.Sink {
+        final List<Integer> indices = new ArrayList<>();
+        final List<int[]> paths = new ArrayList<>();
+        int flushes;
+
+        @Override
+        public void accept(int index, int[] path) {
+            indices.add(index);
+            paths.add(path);
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+
+    @Test
+    public void testResultsInOrderAndPairsSolvedOnce() throws Exception {
+        RouteBatch batch = new RouteBatch(3);
+        int[] sources = {1, 2, 1, 3, 2, 1};
+        int[] targets = {5, 6, 5, 7, 6, 8};
+        AtomicInteger solved = new AtomicInteger();
+        Collector sink = new Collector();
+        int distinct = batch.solve(sources, targets, (s, t) -> {
+            solved.incrementAndGet();
+            try {
+                Thread.sleep(5 * s);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new int[] {s, t};
+        }, sink);
+        assertEquals(4, distinct);
+        assertEquals(4, solved.get());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), sink.indices);
+        for (int i = 0; i < sources.length; i++) {
+            assertArrayEquals(new int[] {sources[i], targets[i]}, sink.paths.get(i));
+        }
+        assertTrue(sink.flushes >= 1);
+    }
+
+    @Test
+    public void testSolvesAtMostAWindowAhead() throws Exception {
+        RouteBatch batch = new RouteBatch(2);
+        int[] sources = new int[500];
+        int[] targets = new int[500];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = i;
+        }
+        AtomicInteger started = new AtomicInteger();
+        List<Integer> ahead = new ArrayList<>();
+        batch.solve(sources, targets, (s, t) -> {
+            started.incrementAndGet();
+            return new int[] {s};
+        }, new RouteBatch.Sink() {
+            @Override
+            public void accept(int index, int[] path) {
+                ahead.add(started.get() - index);
+            }
+
+            @Override
+            public void flush() {
+            }
+        });
+        assertEquals(sources.length, started.get());
+        for (int a : ahead) {
+            assertTrue(a <= batch.window());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testSinkFailureStopsBatch() throws Exception {
+        RouteBatch batch = new RouteBatch(1);
+        int[] sources = new int[50];
+        int[] targets = new int[50];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = i;
+        }
+        batch.solve(sources, targets, (s, t) -> new int[] {s}, new RouteBatch.Sink() {
+            @Override
+            public void accept(int index, int[] path) throws IOException {
+                throw new IOException("Client went away.");
+            }
+
+            @Override
+            public void flush() {
+            }
+        });
+    }
+
+    @Test
+    public void testServerLines() throws Exception {
+        TestServer.initialize();
+        List<Map<String, Double>> queries = MapServer.parseRouteQueries(
+                "[{\"start_lon\":-122.25,\"start_lat\":37.87,\"end_lon\":-122.24,"
+                + "\"end_lat\":37.86}]");
+        assertEquals(1, queries.size());
+        assertEquals(-122.24, queries.get(0).get("end_lon"), 0);
+        String line = MapServer.routeLine(3, new int[] {0, 1});
+        assertTrue(line, line.matches("\\{\"index\":3,\"nodes\":\\[\\d+,\\d+\\],"
+                + "\"distance\":[0-9.]+\\}"));
+        assertEquals("{\"index\":0,\"nodes\":[],\"distance\":null}",
+                MapServer.routeLine(0, new int[0]));
+        assertEquals(Collections.emptyList(), MapServer.parseRouteQueries("[]"));
+    }
+}
@@ -0,0 +1,76 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RouteCacheTest {
+    @Test
+    public void testHitsAndMisses() {
+        RouteCache cache = new RouteCache(1000);
+        assertNull(cache.get(1, 2));
+        cache.put(1, 2, new int[] {1, 5, 2});
+        assertArrayEquals(new int[] {1, 5, 2}, cache.get(1, 2));
+        assertNull(cache.get(2, 1));
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+        assertEquals(1, cache.size());
+        assertEquals(3, cache.weight());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedByWeight() {
+        /* 16 segments of 10 vertices each; fill well past that. */
+        RouteCache cache = new RouteCache(160);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i, new int[5]);
+        }
+        assertTrue(cache.weight() <= 160);
+        assertEquals(1000 - cache.size(), cache.evictions());
+        assertTrue(cache.get(999, 999) != null);
+        assertNull(cache.get(0, 0));
+    }
+
+    @Test
+    public void testReplacingKeepsWeight() {
+        RouteCache cache = new RouteCache(1000);
+        cache.put(3, 4, new int[10]);
+        cache.put(3, 4, new int[4]);
+        assertEquals(1, cache.size());
+        assertEquals(4, cache.weight());
+        cache.put(5, 6, new int[1000]);
+        assertNull(cache.get(5, 6));
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        RouteCache cache = new RouteCache(4000);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int seed = t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    int s = (i * 31 + seed) % 500;
+                    int[] path = cache.get(s, s + 1);
+                    if (path == null) {
+                        cache.put(s, s + 1, new int[] {s, s + 1});
+                    } else {
+                        assertEquals(s, path[0]);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(8 * 20000, cache.hits() + cache.misses());
+        assertTrue(cache.weight() <= 4000);
+        assertEquals(2L * cache.size(), cache.weight());
+    }
+}
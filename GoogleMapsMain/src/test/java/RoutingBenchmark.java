@@ -0,0 +1,130 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+
+/**
+ * Runs the route queries recorded in test_data, and a batch of random long queries, through the
+ * old PriorityQueue search and through each Router, printing settled nodes and latency. Not a
+ * JUnit test; run it directly, optionally with the OSM file to route on. Without berkeley.osm it
+ * falls back to a synthetic grid over the same area with curved streets, kept small because a
+ * grid has none of the hierarchy that makes road networks cheap to contract. A* and CH also run
+ * on the simplified core, to show what collapsing chains of shape points saves.
+ */
+public class RoutingBenchmark {
+    private static final int ROUNDS = 50;
+    private static final int RANDOM_QUERIES = 500;
+
+    public static void main(String[] args) throws Exception {
+        String osm = args.length > 0 ? args[0] : "berkeley.osm";
+        if (!new File(osm).isFile()) {
+            osm = SyntheticOsm.curvyGrid(60, 60, 3, 31).getPath();
+        }
+        GraphDB db = new GraphDB(osm);
+        RoadGraph graph = db.graph();
+        List<TestParams> params;
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream("test_data"))) {
+            @SuppressWarnings("unchecked")
+            List<TestParams> recorded = (List<TestParams>) in.readObject();
+            params = recorded;
+        }
+        long start = System.nanoTime();
+        ContractionHierarchy ch = ContractionHierarchy.build(graph);
+        System.out.printf("%d vertices; contraction hierarchy built in %.0f ms%n",
+                graph.size(), (System.nanoTime() - start) / 1e6);
+        start = System.nanoTime();
+        LandmarkRouter alt = new LandmarkRouter(graph, 16);
+        System.out.printf("16 landmark tables built in %.0f ms%n",
+                (System.nanoTime() - start) / 1e6);
+        SimplifiedGraph simplified = new SimplifiedGraph(graph);
+        System.out.println(simplified.report());
+        start = System.nanoTime();
+        ContractionHierarchy coreCh = ContractionHierarchy.build(simplified.core());
+        System.out.printf("Core contraction hierarchy built in %.0f ms%n",
+                (System.nanoTime() - start) / 1e6);
+        Router[] routers = {new AStarRouter(graph), new AStarRouter(graph, true), ch, alt,
+            new SimplifiedRouter(simplified, new AStarRouter(simplified.core())),
+            new SimplifiedRouter(simplified, coreCh)};
+        String[] names = {"A*", "bidir", "CH", "ALT", "core A*", "core CH"};
+
+        System.out.printf("%-6s %20s", "query", "legacy settled/us");
+        for (String name : names) {
+            System.out.printf(" %20s", name + " settled/us");
+        }
+        System.out.println();
+        for (int q = 0; q < params.size(); q++) {
+            TestParams p = params.get(q);
+            int s = db.closest(p.routeParams.get("start_lon"), p.routeParams.get("start_lat"));
+            int t = db.closest(p.routeParams.get("end_lon"), p.routeParams.get("end_lat"));
+            int legacySettled = 0;
+            start = System.nanoTime();
+            for (int r = 0; r < ROUNDS; r++) {
+                legacySettled = legacy(graph, s, t);
+            }
+            System.out.printf("%-6d %10d/%9.1f", q, legacySettled,
+                    (System.nanoTime() - start) / 1e3 / ROUNDS);
+            for (Router router : routers) {
+                start = System.nanoTime();
+                for (int r = 0; r < ROUNDS; r++) {
+                    router.route(s, t);
+                }
+                System.out.printf(" %10d/%9.1f", router.lastSettledCount(),
+                        (System.nanoTime() - start) / 1e3 / ROUNDS);
+            }
+            System.out.println();
+        }
+
+        Random random = new Random(32);
+        int[] sources = new int[RANDOM_QUERIES];
+        int[] targets = new int[RANDOM_QUERIES];
+        for (int i = 0; i < RANDOM_QUERIES; i++) {
+            sources[i] = random.nextInt(graph.size());
+            targets[i] = random.nextInt(graph.size());
+        }
+        for (int round = 0; round < 2; round++) {
+            System.out.printf("%d random queries, round %d:", RANDOM_QUERIES, round);
+            for (int k = 0; k < routers.length; k++) {
+                long settled = 0;
+                start = System.nanoTime();
+                for (int i = 0; i < RANDOM_QUERIES; i++) {
+                    routers[k].route(sources[i], targets[i]);
+                    settled += routers[k].lastSettledCount();
+                }
+                System.out.printf(" %s %.0f settled/%.1f us;", names[k],
+                        (double) settled / RANDOM_QUERIES,
+                        (System.nanoTime() - start) / 1e3 / RANDOM_QUERIES);
+            }
+            System.out.println();
+        }
+    }
+
+    /** The search findAndDrawRoute ran before Router: Dijkstra that re-adds queued nodes. */
+    private static int legacy(RoadGraph graph, int starter, int ender) {
+        double[] distance = new double[graph.size()];
+        Arrays.fill(distance, Double.MAX_VALUE);
+        Queue<Integer> fringe = new PriorityQueue<>(
+                (Integer v1, Integer v2) -> Double.compare(distance[v1], distance[v2]));
+        distance[starter] = 0.0;
+        fringe.add(starter);
+        int settled = 0;
+        while (!fringe.isEmpty()) {
+            int current = fringe.poll();
+            settled++;
+            if (current == ender) {
+                break;
+            }
+            for (int e = graph.firstEdge(current); e < graph.endEdge(current); e++) {
+                int user = graph.target(e);
+                if (distance[user] > distance[current] + graph.length(e)) {
+                    distance[user] = distance[current] + graph.length(e);
+                    fringe.add(user);
+                }
+            }
+        }
+        return settled;
+    }
+}
@@ -0,0 +1,89 @@
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimplifiedRouterTest {
+    private static void checkShortest(SimplifiedRouter router, long seed) {
+        RoadGraph graph = router.graph();
+        Random random = new Random(seed);
+        for (int i = 0; i < 200; i++) {
+            int s = random.nextInt(graph.size());
+            int t = random.nextInt(graph.size());
+            int[] path = router.route(s, t);
+            assertEquals(s, path[0]);
+            assertEquals(t, path[path.length - 1]);
+            assertEquals(AStarRouterTest.dijkstra(graph, s, t),
+                    AStarRouterTest.length(graph, path), 1e-6);
+        }
+    }
+
+    @Test
+    public void testCoreIsSmaller() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.curvyGrid(8, 8, 3, 61).getPath()).graph();
+        SimplifiedGraph simplified = new SimplifiedGraph(graph);
+        RoadGraph core = simplified.core();
+        /* The footway row leaves 7 rows of junctions, but the four corners are only bends. */
+        assertEquals(7 * 8 - 4, core.size());
+        assertTrue(core.edgeCount() < graph.edgeCount() / 3);
+        for (int c = 0; c < core.size(); c++) {
+            assertEquals(c, simplified.coreVertex(simplified.graphVertex(c)));
+            assertTrue(graph.degree(simplified.graphVertex(c)) != 2);
+        }
+        assertTrue(simplified.report().contains("fewer vertices"));
+    }
+
+    @Test
+    public void testRoutesMatchFullGraph() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.curvyGrid(10, 12, 3, 62).getPath()).graph();
+        SimplifiedGraph simplified = new SimplifiedGraph(graph);
+        checkShortest(new SimplifiedRouter(simplified, new AStarRouter(simplified.core())), 1);
+        checkShortest(new SimplifiedRouter(simplified,
+                new AStarRouter(simplified.core(), true)), 2);
+        checkShortest(new SimplifiedRouter(simplified,
+                ContractionHierarchy.build(simplified.core())), 3);
+        AStarRouterTest.checkMultiEndpoint(new SimplifiedRouter(simplified,
+                new LandmarkRouter(simplified.core(), 4)), 4);
+    }
+
+    @Test
+    public void testSameChain() throws Exception {
+        RoadGraph graph = new GraphDB(SyntheticOsm.curvyGrid(4, 4, 5, 63).getPath()).graph();
+        SimplifiedGraph simplified = new SimplifiedGraph(graph);
+        Router router = new SimplifiedRouter(simplified, new AStarRouter(simplified.core()));
+        /* Past the 15 on the footway, the first block east of row 1 has 5 shape points. */
+        long firstShape = SyntheticOsm.id(4, 4, 0) + 15;
+        int s = graph.indexOf(firstShape + 1);
+        int t = graph.indexOf(firstShape + 4);
+        assertTrue(simplified.coreVertex(s) < 0 && simplified.coreVertex(t) < 0);
+        int[] path = router.route(s, t);
+        assertEquals(4, path.length);
+        assertEquals(AStarRouterTest.dijkstra(graph, s, t),
+                AStarRouterTest.length(graph, path), 1e-6);
+        assertArrayEquals(new int[] {s}, router.route(s, s));
+    }
+
+    @Test
+    public void testRingWithoutJunctions() {
+        RoadGraph.Builder builder = new RoadGraph.Builder();
+        for (int i = 1; i <= 5; i++) {
+            double angle = 2 * Math.PI * i / 5;
+            builder.addNode(i, 37.87 + Math.sin(angle) / 1000, -122.25 + Math.cos(angle) / 1000);
+        }
+        builder.addWay(new long[] {1, 2, 3, 4, 5, 1}, 6);
+        RoadGraph graph = builder.build();
+        SimplifiedGraph simplified = new SimplifiedGraph(graph);
+        assertEquals(1, simplified.core().size());
+        assertEquals(0, simplified.core().edgeCount());
+        Router router = new SimplifiedRouter(simplified, new AStarRouter(simplified.core()));
+        for (int s = 0; s < 5; s++) {
+            for (int t = 0; t < 5; t++) {
+                assertEquals(AStarRouterTest.dijkstra(graph, s, t),
+                        AStarRouterTest.length(graph, router.route(s, t)), 1e-6);
+            }
+        }
+    }
+}
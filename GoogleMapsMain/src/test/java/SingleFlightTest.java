@@ -0,0 +1,99 @@
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+    private static final int CALLERS = 6;
+
+    /**
+     * Start CALLERS calls for the same key, the first blocked in the computation until all the
+     * others are waiting on it, and return their futures.
+     */
+    private static List<Future<Object>> burst(ExecutorService pool,
+                                              SingleFlight<String, Object> flights,
+                                              AtomicInteger runs, Object value,
+                                              IOException failure) throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<Object>> results = new ArrayList<>();
+        long coalesced = flights.coalesced();
+        for (int i = 0; i < CALLERS; i++) {
+            results.add(pool.submit(() -> flights.get("view", () -> {
+                runs.incrementAndGet();
+                assertTrue(release.await(10, TimeUnit.SECONDS));
+                if (failure != null) {
+                    throw failure;
+                }
+                return value;
+            })));
+            if (i == 0) {
+                while (flights.inFlight() == 0) {
+                    Thread.yield();
+                }
+            }
+        }
+        while (flights.coalesced() < coalesced + CALLERS - 1) {
+            Thread.yield();
+        }
+        release.countDown();
+        return results;
+    }
+
+    @Test
+    public void testConcurrentCallsShareOneComputation() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(CALLERS);
+        SingleFlight<String, Object> flights = new SingleFlight<>();
+        AtomicInteger runs = new AtomicInteger();
+        Object value = new Object();
+        for (Future<Object> result : burst(pool, flights, runs, value, null)) {
+            assertSame(value, result.get());
+        }
+        assertEquals(1, runs.get());
+        assertEquals(1, flights.computed());
+        assertEquals(CALLERS - 1, flights.coalesced());
+        assertEquals(0, flights.inFlight());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testFailureIsShared() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(CALLERS);
+        SingleFlight<String, Object> flights = new SingleFlight<>();
+        AtomicInteger runs = new AtomicInteger();
+        IOException failure = new IOException("no tiles");
+        for (Future<Object> result : burst(pool, flights, runs, null, failure)) {
+            try {
+                result.get();
+                fail("Expected the computation's failure.");
+            } catch (ExecutionException e) {
+                assertSame(failure, e.getCause());
+            }
+        }
+        assertEquals(1, runs.get());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testNothingIsKeptAfterwards() throws Exception {
+        SingleFlight<String, Integer> flights = new SingleFlight<>();
+        AtomicInteger runs = new AtomicInteger();
+        assertEquals(1, (int) flights.get("view", runs::incrementAndGet));
+        assertEquals(2, (int) flights.get("view", runs::incrementAndGet));
+        assertEquals(3, (int) flights.get("other", runs::incrementAndGet));
+        assertEquals(3, flights.computed());
+        assertEquals(0, flights.coalesced());
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Writes small OSM XML files inside the Berkeley root tile so tests do not depend on
+ * berkeley.osm. The city is a grid of residential streets, with a footway across the top row
+ * that routing must ignore.
+ */
+public class SyntheticOsm {
+    /** Id of the node at row 0, column 0; ids increase row-major from here. */
+    static final long FIRST_ID = 1000;
+
+    static final double ULLAT = 37.89, ULLON = -122.29, LRLAT = 37.83, LRLON = -122.22;
+
+    /** The OSM id of the node at (row, col). */
+    static long id(int cols, int row, int col) {
+        return FIRST_ID + (long) row * cols + col;
+    }
+
+    static double lat(int rows, int row) {
+        return ULLAT - (ULLAT - LRLAT) * row / Math.max(1, rows - 1);
+    }
+
+    static double lon(int cols, int col) {
+        return ULLON + (LRLON - ULLON) * col / Math.max(1, cols - 1);
+    }
+
+    /**
+     * Write a rows x cols grid city. Nodes are jittered by up to a tenth of a block with the
+     * given seed so that distinct routes rarely tie.
+     * @param places Names of places to scatter over the city, as nodes on no road; the i'th
+     *               has id FIRST_ID + rows * cols + i.
+     */
+    static File grid(int rows, int cols, long seed, String... places) throws IOException {
+        return write(rows, cols, 0, seed, places);
+    }
+
+    /**
+     * Write a grid city whose blocks are bent by <code>shapePoints</code> OSM shape points each,
+     * as curved streets are. Shape points have the ids after the grid nodes and places.
+     */
+    static File curvyGrid(int rows, int cols, int shapePoints, long seed, String... places)
+            throws IOException {
+        return write(rows, cols, shapePoints, seed, places);
+    }
+
+    private static File write(int rows, int cols, int shapePoints, long seed, String... places)
+            throws IOException {
+        File f = File.createTempFile("synthetic", ".osm");
+        f.deleteOnExit();
+        Random random = new Random(seed);
+        double jitterLat = (ULLAT - LRLAT) / Math.max(1, rows - 1) / 10;
+        double jitterLon = (LRLON - ULLON) / Math.max(1, cols - 1) / 10;
+        double[][] nodeLat = new double[rows][cols];
+        double[][] nodeLon = new double[rows][cols];
+        long firstShape = FIRST_ID + (long) rows * cols + places.length;
+        /* Shape point ids of the block east of (r, c), then of the block south of it. */
+        long[][][] east = new long[rows][cols][shapePoints];
+        long[][][] south = new long[rows][cols][shapePoints];
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(f),
+                StandardCharsets.UTF_8))) {
+            out.println("<?xml version='1.0' encoding='UTF-8'?>");
+            out.println("<osm version=\"0.6\">");
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < cols; c++) {
+                    double la = lat(rows, r) + (random.nextDouble() - 0.5) * jitterLat;
+                    double lo = lon(cols, c) + (random.nextDouble() - 0.5) * jitterLon;
+                    nodeLat[r][c] = la;
+                    nodeLon[r][c] = lo;
+                    out.printf("  <node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"/>%n",
+                            id(cols, r, c), la, lo);
+                }
+            }
+            for (int i = 0; i < places.length; i++) {
+                out.printf("  <node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\">%n",
+                        FIRST_ID + (long) rows * cols + i,
+                        LRLAT + (ULLAT - LRLAT) * random.nextDouble(),
+                        ULLON + (LRLON - ULLON) * random.nextDouble());
+                out.printf("    <tag k=\"amenity\" v=\"cafe\"/>%n");
+                out.printf("    <tag k=\"name\" v=\"%s\"/>%n", places[i]
+                        .replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;"));
+                out.println("  </node>");
+            }
+            long next = firstShape;
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < cols; c++) {
+                    /* Row 0 only runs east, as a footway; columns start at row 1. */
+                    if (c + 1 < cols) {
+                        next = bend(out, random, east[r][c], next, nodeLat[r][c],
+                                nodeLon[r][c], nodeLat[r][c + 1], nodeLon[r][c + 1],
+                                2 * jitterLat, 0);
+                    }
+                    if (r >= 1 && r + 1 < rows) {
+                        next = bend(out, random, south[r][c], next, nodeLat[r][c],
+                                nodeLon[r][c], nodeLat[r + 1][c], nodeLon[r + 1][c],
+                                0, 2 * jitterLon);
+                    }
+                }
+            }
+            long way = 1;
+            for (int r = 0; r < rows; r++) {
+                out.printf("  <way id=\"%d\">%n", way++);
+                for (int c = 0; c < cols; c++) {
+                    out.printf("    <nd ref=\"%d\"/>%n", id(cols, r, c));
+                    if (c + 1 < cols) {
+                        refs(out, east[r][c]);
+                    }
+                }
+                out.printf("    <tag k=\"highway\" v=\"%s\"/>%n",
+                        r == 0 ? "footway" : "residential");
+                out.println("  </way>");
+            }
+            for (int c = 0; c < cols; c++) {
+                out.printf("  <way id=\"%d\">%n", way++);
+                for (int r = 1; r < rows; r++) {
+                    out.printf("    <nd ref=\"%d\"/>%n", id(cols, r, c));
+                    if (r + 1 < rows) {
+                        refs(out, south[r][c]);
+                    }
+                }
+                out.println("    <tag k=\"highway\" v=\"residential\"/>");
+                out.println("  </way>");
+            }
+            out.println("</osm>");
+        }
+        return f;
+    }
+
+    /**
+     * Write shape points spread along the block from (lat1, lon1) to (lat2, lon2), pushed
+     * sideways by up to the given offsets, and record their ids in <code>ids</code>.
+     * @return The next free id.
+     */
+    private static long bend(PrintWriter out, Random random, long[] ids, long next, double lat1,
+                             double lon1, double lat2, double lon2, double sideLat,
+                             double sideLon) {
+        double side = random.nextDouble() - 0.5;
+        for (int i = 0; i < ids.length; i++) {
+            double f = (i + 1.0) / (ids.length + 1);
+            double bulge = side * Math.sin(Math.PI * f);
+            ids[i] = next++;
+            out.printf("  <node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"/>%n", ids[i],
+                    lat1 + (lat2 - lat1) * f + bulge * sideLat,
+                    lon1 + (lon2 - lon1) * f + bulge * sideLon);
+        }
+        return next;
+    }
+
+    private static void refs(PrintWriter out, long[] ids) {
+        for (long id : ids) {
+            out.printf("    <nd ref=\"%d\"/>%n", id);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+/**
+ * Initializes MapServer once per test JVM on a synthetic graph. MapServer reads its
+ * configuration from system properties when the class loads, so every test that needs a running
+ * server goes through here to get the same settings whichever runs first.
+ */
+final class TestServer {
+    /** Small enough that the concurrency test sees tiles evicted. */
+    static final long TILE_CACHE_BYTES = 4L << 20;
+    /** Named places scattered over the grid for the search endpoints. */
+    static final String[] PLACES = {"Top Dog", "Cheese Board Pizza", "Top Dog", "Moe's Books"};
+    private static boolean initialized;
+
+    private TestServer() {
+    }
+
+    static synchronized void initialize() throws Exception {
+        if (initialized) {
+            return;
+        }
+        System.setProperty("bearmaps.osm", SyntheticOsm.grid(60, 60, 61, PLACES).getPath());
+        System.setProperty("bearmaps.tilecache", Long.toString(TILE_CACHE_BYTES));
+        MapServer.initialize();
+        initialized = true;
+    }
+}
@@ -0,0 +1,100 @@
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TileCacheTest {
+    /* Tiles are cached as 3 byte BGR. */
+    private static final long TILE_BYTES = 256 * 256 * 3;
+
+    @Test
+    public void testCachesDecodedTiles() throws Exception {
+        TileCache cache = new TileCache("img/", 1L << 30);
+        BufferedImage tile = cache.get("1");
+        assertEquals(256, tile.getWidth());
+        assertEquals(BufferedImage.TYPE_3BYTE_BGR, tile.getType());
+        assertEquals(TILE_BYTES, TileCache.bytes(tile));
+        assertSame(tile, cache.get("1"));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(TILE_BYTES, cache.bytes());
+    }
+
+    @Test
+    public void testStaysWithinCapacity() throws Exception {
+        /* Room for two tiles per segment. */
+        TileCache cache = new TileCache("img/", 32 * TILE_BYTES);
+        for (char a = '1'; a <= '4'; a++) {
+            for (char b = '1'; b <= '4'; b++) {
+                for (char c = '1'; c <= '4'; c++) {
+                    cache.get("" + a + b + c);
+                }
+            }
+        }
+        assertTrue(cache.bytes() <= 32 * TILE_BYTES);
+        assertEquals(64, cache.size() + cache.evictions());
+    }
+
+    @Test
+    public void testConcurrentMissesDecodeOnce() throws Exception {
+        TileCache cache = new TileCache("img/", 1L << 30);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        BufferedImage[] seen = new BufferedImage[16];
+        for (int t = 0; t < seen.length; t++) {
+            int i = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    seen[i] = cache.get("root");
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, cache.misses());
+        for (BufferedImage image : seen) {
+            assertSame(seen[0], image);
+        }
+    }
+
+    @Test
+    public void testMissingTileIsNotCached() throws Exception {
+        TileCache cache = new TileCache("img/", 1L << 30);
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.get("5");
+                fail();
+            } catch (IOException expected) {
+                // no such tile
+            }
+        }
+        assertEquals(2, cache.misses());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testPreload() throws Exception {
+        TileCache cache = new TileCache("img/", 1L << 30);
+        cache.preload(3);
+        assertEquals(1 + 4 + 16, cache.size());
+        assertEquals(1 + 4 + 16, cache.misses());
+        assertTrue(cache.bytes() >= 21 * TILE_BYTES);
+        cache.get("44");
+        assertEquals(1, cache.hits());
+    }
+}